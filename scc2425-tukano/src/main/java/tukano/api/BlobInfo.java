@@ -0,0 +1,11 @@
+package tukano.api;
+
+/**
+ * Metadata of a blob, recorded when it was written.
+ *
+ * @param size the size of the blob, in bytes
+ * @param digest the SHA-256 of the contents, in hex
+ * @param lastModified the time the blob was written, in ms since the epoch
+ */
+public record BlobInfo(long size, String digest, long lastModified) {
+}
@@ -0,0 +1,11 @@
+package tukano.api;
+
+/**
+ * Storage used by the blobs of a user.
+ *
+ * @param userId the owner of the blobs
+ * @param blobs the number of blobs
+ * @param bytes their total size, in bytes
+ */
+public record BlobUsage(String userId, long blobs, long bytes) {
+}
@@ -1,5 +1,13 @@
 package tukano.api;
 
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+import utils.IO;
+
 /**
  * Interface of blob service for storing short videos media ...
  */
@@ -12,24 +20,153 @@ public interface Blobs {
 	 * 
 	 * @param String blobId the identifier generated by the Shorts service for this
 	 *               blob
-	 * @param bytes  the contents in bytes of the blob resource
+	 * @param in     the contents of the blob resource, as a stream
 	 * 
 	 * @return OK(void) if the upload is new or if the blobId and bytes match an
 	 *         existing blob;
 	 *         CONFLICT if a blobId exists but bytes do not match;
 	 *         FORBIDDEN if the blobId is not valid
 	 */
-	Result<Void> upload(String blobId, byte[] bytes, String token);
+	Result<Void> upload(String blobId, InputStream in, String token);
+
+	/**
+	 * Uploads a short video blob resource held in a single chunk of bytes.
+	 * Compatibility shim over the streaming upload.
+	 */
+	default Result<Void> upload(String blobId, byte[] bytes, String token) {
+		return upload(blobId, new ByteArrayInputStream(bytes), token);
+	}
+
+	/**
+	 * Obtains the size of a short video blob resource.
+	 * 
+	 * @param blobId the id of the blob;
+	 * @return (OK, size in bytes), if the blob exists;
+	 * 			 NOT_FOUND, if no blob matches the provided blobId
+	 */
+	Result<Long> size(String blobId, String token);
+
+	/**
+	 * Obtains the metadata of a short video blob resource, without reading its contents.
+	 * 
+	 * @param blobId the id of the blob;
+	 * @return (OK, size, digest and last modification time), if the blob exists;
+	 * 			 NOT_FOUND, if no blob matches the provided blobId
+	 */
+	Result<BlobInfo> stat(String blobId, String token);
+
+	/**
+	 * Downloads a byte range of a short video blob resource as a stream of bytes. 
+	 * The caller is responsible for closing the stream.
+	 * 
+	 * @param blobId the id of the blob;
+	 * @param offset the position of the first byte to download;
+	 * @param length the maximum number of bytes to download;
+	 * @return (OK, stream), if the blob exists;
+	 * 			 NOT_FOUND, if no blob matches the provided blobId
+	 */
+	Result<InputStream> downloadStream(String blobId, long offset, long length, String token);
+
+	/**
+	 * Downloads a short video blob resource as a stream of bytes. 
+	 * The caller is responsible for closing the stream.
+	 */
+	default Result<InputStream> downloadStream(String blobId, String token) {
+		return downloadStream(blobId, 0, Long.MAX_VALUE, token);
+	}
 
 	/**
 	 * Downloads a short video blob resource in a single byte chunk of bytes.
+	 * Compatibility shim over the streaming download.
 	 * 
 	 * @param blobId the id of the blob;
 	 * @return (OK, bytes), if the blob exists;
 	 * 			 NOT_FOUND, if no blob matches the provided blobId
 	 */
-	Result<byte[]> download(String blobId, String token);
+	default Result<byte[]> download(String blobId, String token) {
+		return Result.errorOrValue( downloadStream(blobId, token), IO::readAllBytes);
+	}
+
+
+	/**
+	 * Non-blocking variants of upload, stat and download; the latter reads a chunk of
+	 * up to length bytes (fewer only from a cache, none only at the end of the blob).
+	 * By default, run the blocking operations asynchronously.
+	 */
+	default CompletableFuture<Result<Void>> uploadAsync(String blobId, InputStream in, String token) {
+		return CompletableFuture.supplyAsync(() -> upload(blobId, in, token));
+	}
+
+	default CompletableFuture<Result<BlobInfo>> statAsync(String blobId, String token) {
+		return CompletableFuture.supplyAsync(() -> stat(blobId, token));
+	}
+
+	default CompletableFuture<Result<ByteBuffer>> downloadAsync(String blobId, long offset, int length, String token) {
+		return CompletableFuture.supplyAsync(() -> Result.errorOrValue(downloadStream(blobId, offset, length, token), in -> ByteBuffer.wrap(IO.readAllBytes(in))));
+	}
+
+	/**
+	 * Non-blocking download of a chunk on behalf of a client (eg. its address),
+	 * so the download bandwidth can be shared fairly among clients.
+	 * By default, the client is ignored.
+	 */
+	default CompletableFuture<Result<ByteBuffer>> downloadAsync(String blobId, long offset, int length, String token, String client) {
+		return downloadAsync(blobId, offset, length, token);
+	}
+
+	/**
+	 * Completes when the client may download its next length bytes, for downloads that are
+	 * streamed, rather than read in chunks, to get the same fair share as those.
+	 * By default, right away.
+	 */
+	default CompletableFuture<Void> downloadTurn(String client, int length) {
+		return CompletableFuture.completedFuture(null);
+	}
+
+	/**
+	 * Opens a resumable upload of a short video blob resource, sent in numbered chunks.
+	 * Once open, the session id is enough to send chunks, list and commit them,
+	 * so the upload can outlive the token.
+	 * 
+	 * @param blobId the id of the blob;
+	 * @return (OK, session id), if the upload can proceed;
+	 * 			 FORBIDDEN if the blobId is not valid
+	 */
+	Result<String> openUpload(String blobId, String token);
 
+	/**
+	 * Stores a chunk of a resumable upload. Chunks can be sent in any order, in parallel,
+	 * and sent again if they failed.
+	 * 
+	 * @param chunk the number of the chunk, starting at 0;
+	 * @param in the contents of the chunk, as a stream
+	 * @return OK(void), if the chunk was stored;
+	 * 			 NOT_FOUND, if there is no such session for the blobId;
+	 * 			 BAD_REQUEST, if the chunk number is out of bounds
+	 */
+	Result<Void> uploadChunk(String blobId, String sessionId, int chunk, InputStream in);
+
+	/**
+	 * Lists the chunks of a resumable upload received so far, so an interrupted upload
+	 * only needs to send the missing ones.
+	 * 
+	 * @return (OK, chunk numbers, in ascending order), if the session exists;
+	 * 			 NOT_FOUND, otherwise
+	 */
+	Result<List<Integer>> uploadedChunks(String blobId, String sessionId);
+
+	/**
+	 * Completes a resumable upload, storing chunks 0 to chunks-1, in order, as the blob,
+	 * with the same outcome as a regular upload. If it fails, the session is kept, for a retry.
+	 * Committing it again once it succeeded also succeeds (eg. when the reply was lost).
+	 * 
+	 * @param chunks the number of chunks of the blob, at least 1;
+	 * @return OK(void), as for upload;
+	 * 			 BAD_REQUEST, if chunks is missing or not positive, or some chunk is missing or beyond it;
+	 * 			 NOT_FOUND, if there is no such session for the blobId;
+	 * 			 CONFLICT, if the blob exists but bytes do not match
+	 */
+	Result<Void> commitUpload(String blobId, String sessionId, int chunks);
 
 	/**
 	 * Deletes a short video blob resource.
@@ -47,4 +184,22 @@ public interface Blobs {
 	 * @param userid the id of the owner of the blobs;
 	 */
 	Result<Void> deleteAllBlobs( String userId, String token );
+
+	/**
+	 * Obtains the number of blobs of a user and the bytes they take, in constant time.
+	 * 
+	 * @param userId the id of the owner of the blobs;
+	 * @return (OK, usage);
+	 * 			 FORBIDDEN if the token is not valid for the user
+	 */
+	Result<BlobUsage> usage( String userId, String token );
+
+	/**
+	 * Hints that the given blobs are likely to be downloaded soon (eg. they head a feed),
+	 * so their first bytes can be made ready in advance. No-op by default.
+	 * 
+	 * @param blobIds the ids of the blobs;
+	 */
+	default void prefetch( List<String> blobIds ) {
+	}
 }
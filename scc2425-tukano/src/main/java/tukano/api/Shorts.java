@@ -112,7 +112,7 @@ public interface Shorts {
 
 	/**
 	 * Returns the feed of the user, sorted by age. The feed is the list of shorts made by
-	 * the users followed by the user.
+	 * the users followed by the user, and by the user; only the newest (shorts.feed.size) are returned.
 	 * 
 	 * @param userId user of the requested feed
 	 * @param password the password of the user
@@ -1,15 +1,25 @@
 package tukano.api.rest;
 
+import java.io.InputStream;
+import java.util.List;
 
 import jakarta.ws.rs.Consumes;
 import jakarta.ws.rs.DELETE;
 import jakarta.ws.rs.GET;
+import jakarta.ws.rs.HEAD;
+import jakarta.ws.rs.HeaderParam;
 import jakarta.ws.rs.POST;
+import jakarta.ws.rs.PUT;
 import jakarta.ws.rs.Path;
 import jakarta.ws.rs.PathParam;
 import jakarta.ws.rs.Produces;
 import jakarta.ws.rs.QueryParam;
+import jakarta.ws.rs.container.AsyncResponse;
+import jakarta.ws.rs.container.Suspended;
+import jakarta.ws.rs.core.Context;
 import jakarta.ws.rs.core.MediaType;
+import jakarta.ws.rs.core.Request;
+import tukano.api.BlobUsage;
 
 @Path(RestBlobs.PATH)
 public interface RestBlobs {
@@ -19,23 +29,59 @@ public interface RestBlobs {
 	String TOKEN = "token";
 	String BLOBS = "blobs";
 	String USER_ID = "userId";
+	String RANGE = "Range";
+	String UPLOADS = "uploads";
+	String SESSION_ID = "sessionId";
+	String CHUNK = "chunk";
+	String CHUNKS = "chunks";
+	String USAGE = "usage";
 
  	@POST
  	@Path("/{" + BLOB_ID +"}")
  	@Consumes(MediaType.APPLICATION_OCTET_STREAM)
-	void upload(@PathParam(BLOB_ID) String blobId, byte[] bytes, @QueryParam(TOKEN) String token);
+	void upload(@PathParam(BLOB_ID) String blobId, InputStream in, @QueryParam(TOKEN) String token, @Suspended AsyncResponse ar);
 
 
  	@GET
  	@Path("/{" + BLOB_ID +"}") 	
  	@Produces(MediaType.APPLICATION_OCTET_STREAM)
- 	byte[] download(@PathParam(BLOB_ID) String blobId, @QueryParam(TOKEN) String token);
+ 	void download(@PathParam(BLOB_ID) String blobId, @QueryParam(TOKEN) String token, @HeaderParam(RANGE) String range, @Context Request request, @Suspended AsyncResponse ar);
+
+ 	@HEAD
+ 	@Path("/{" + BLOB_ID +"}")
+ 	@Produces(MediaType.APPLICATION_OCTET_STREAM)
+ 	void stat(@PathParam(BLOB_ID) String blobId, @QueryParam(TOKEN) String token, @Suspended AsyncResponse ar);
  	
  	
+	@POST
+	@Path("/{" + BLOB_ID +"}/" + UPLOADS)
+	@Produces(MediaType.APPLICATION_JSON)
+	String openUpload(@PathParam(BLOB_ID) String blobId, @QueryParam(TOKEN) String token);
+
+	@PUT
+	@Path("/{" + BLOB_ID +"}/" + UPLOADS + "/{" + SESSION_ID + "}/{" + CHUNK + "}")
+	@Consumes(MediaType.APPLICATION_OCTET_STREAM)
+	void uploadChunk(@PathParam(BLOB_ID) String blobId, @PathParam(SESSION_ID) String sessionId, @PathParam(CHUNK) int chunk, InputStream in);
+
+	@GET
+	@Path("/{" + BLOB_ID +"}/" + UPLOADS + "/{" + SESSION_ID + "}")
+	@Produces(MediaType.APPLICATION_JSON)
+	List<Integer> uploadedChunks(@PathParam(BLOB_ID) String blobId, @PathParam(SESSION_ID) String sessionId);
+
+	@POST
+	@Path("/{" + BLOB_ID +"}/" + UPLOADS + "/{" + SESSION_ID + "}")
+	void commitUpload(@PathParam(BLOB_ID) String blobId, @PathParam(SESSION_ID) String sessionId, @QueryParam(CHUNKS) int chunks);
+
+
 	@DELETE
 	@Path("/{" + BLOB_ID + "}")
 	void delete(@PathParam(BLOB_ID) String blobId, @QueryParam(TOKEN) String token );		
 
+	@GET
+	@Path("/{" + USER_ID + "}/" + USAGE)
+	@Produces(MediaType.APPLICATION_JSON)
+	BlobUsage usage(@PathParam(USER_ID) String userId, @QueryParam(TOKEN) String token );
+
 	@DELETE
 	@Path("/{" + USER_ID + "}/" + BLOBS)
 	void deleteAllBlobs(@PathParam(USER_ID) String userId, @QueryParam(TOKEN) String token );		
@@ -0,0 +1,220 @@
+package tukano.impl;
+
+import static java.util.concurrent.CompletableFuture.completedFuture;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+import utils.Props;
+
+/**
+ * Fair sharing of the download bandwidth among clients.
+ *
+ * Each chunk of a download is granted before it is read. Clients with chunks waiting are served
+ * in deficit round-robin: on its turn, a client gets blobs.download.quantum bytes of credit and is
+ * granted its chunks while they fit, so a client with many downloads in progress gets no more bytes
+ * than one with a single download. Grants are paced by a token bucket per client
+ * (blobs.download.userRate, bytes per second) and a global one (blobs.download.globalRate);
+ * both allow bursts of one second, and 0 means unlimited. With both unlimited, nothing is scheduled.
+ *
+ * When the global rate is the bottleneck, the round resumes, once there are tokens again, with the
+ * client that was denied, so everyone is served in turn, and a viewer starting a video only waits
+ * for a chunk of each of the other clients, not for their whole backlog.
+ */
+public class DownloadScheduler {
+	private static Logger Log = Logger.getLogger(DownloadScheduler.class.getName());
+
+	private static final String USER_RATE_PROP = "blobs.download.userRate";
+	private static final String GLOBAL_RATE_PROP = "blobs.download.globalRate";
+	private static final String QUANTUM_PROP = "blobs.download.quantum";
+	private static final long DEFAULT_USER_RATE = 0;
+	private static final long DEFAULT_GLOBAL_RATE = 0;
+	private static final int DEFAULT_QUANTUM = 256 * 1024;
+	private static final long IDLE_SWEEP_NANOS = TimeUnit.SECONDS.toNanos( 10 );
+
+	public record Stats(int clients, int waiting, long grants, long bytes, double avgWaitMillis) {}
+
+	record Grant(long bytes, long queued, CompletableFuture<Void> done) {}
+
+	/*
+	 * Tokens are allowed to go negative, so a chunk larger than the burst is still granted;
+	 * the debt is paid before the next grant.
+	 */
+	static class Bucket {
+		final double perNano, burst;
+		double tokens;
+		long stamp;
+
+		Bucket( long rate, long now ) {
+			this.perNano = rate / 1e9;
+			this.burst = this.tokens = rate;
+			this.stamp = now;
+		}
+
+		long delay( long now ) {
+			tokens = Math.min( burst, tokens + (now - stamp) * perNano );
+			stamp = now;
+			return tokens >= 0 ? 0 : (long) Math.ceil( -tokens / perNano );
+		}
+
+		boolean full( long now ) {
+			delay( now );
+			return tokens >= burst;
+		}
+	}
+
+	static class Client {
+		final ArrayDeque<Grant> pending = new ArrayDeque<>();
+		final Bucket bucket;
+		long deficit;
+
+		Client( Bucket bucket ) {
+			this.bucket = bucket;
+		}
+	}
+
+	final long userRate;
+	final int quantum;
+	final Bucket global;
+	final Map<String, Client> clients = new HashMap<>();
+	final ArrayDeque<Client> active = new ArrayDeque<>();
+
+	long grants, bytes, waitNanos, lastSweep = System.nanoTime();
+
+	public DownloadScheduler() {
+		this( Props.get(USER_RATE_PROP, DEFAULT_USER_RATE), Props.get(GLOBAL_RATE_PROP, DEFAULT_GLOBAL_RATE), Props.get(QUANTUM_PROP, DEFAULT_QUANTUM));
+	}
+
+	public DownloadScheduler( long userRate, long globalRate, int quantum ) {
+		this.userRate = userRate;
+		this.quantum = quantum;
+		this.global = globalRate > 0 ? new Bucket( globalRate, System.nanoTime() ) : null;
+		if( enabled() ) {
+			var t = new Thread( this::run, "download-scheduler" );
+			t.setDaemon( true );
+			t.start();
+			Log.info(() -> String.format("download scheduler: user rate %d B/s, global rate %d B/s\n", userRate, globalRate));
+		}
+	}
+
+	public boolean enabled() {
+		return userRate > 0 || global != null;
+	}
+
+	/**
+	 * Completes when the client may read the given number of bytes.
+	 */
+	public CompletableFuture<Void> acquire( String client, long bytes ) {
+		if( ! enabled() )
+			return completedFuture( null );
+
+		var grant = new Grant( bytes, System.nanoTime(), new CompletableFuture<>() );
+		synchronized( this ) {
+			var c = clients.computeIfAbsent( client, __ -> new Client( userRate > 0 ? new Bucket( userRate, grant.queued() ) : null ));
+			if( c.pending.isEmpty() )
+				active.add( c );
+			c.pending.add( grant );
+			notify();
+		}
+		return grant.done();
+	}
+
+	synchronized public Stats stats() {
+		return new Stats( clients.size(), active.stream().mapToInt( c -> c.pending.size() ).sum(), grants, bytes, grants == 0 ? 0 : waitNanos / 1e6 / grants );
+	}
+
+	/*
+	 * Grants are completed outside the lock, since they go on to start the reads.
+	 */
+	private void run() {
+		try {
+			for(;;) {
+				var granted = new ArrayList<CompletableFuture<Void>>();
+				synchronized( this ) {
+					while( active.isEmpty() )
+						wait();
+
+					var delay = round( granted );
+					if( granted.isEmpty() )
+						TimeUnit.NANOSECONDS.timedWait( this, Math.max( delay, 1 ));
+				}
+				granted.forEach( f -> f.complete( null ));
+			}
+		} catch( InterruptedException x ) {
+			Log.warning("download scheduler interrupted");
+		}
+	}
+
+	/*
+	 * One round over the clients with chunks waiting. Returns how long until a grant might be possible.
+	 */
+	private long round( ArrayList<CompletableFuture<Void>> granted ) {
+		var now = System.nanoTime();
+		var delay = Long.MAX_VALUE;
+		for( int i = 0, n = active.size(); i < n; i++ ) {
+			var c = active.poll();
+			c.deficit += quantum;
+
+			int served = 0;
+			var limited = false;
+			while( ! c.pending.isEmpty() && c.pending.peek().bytes() <= c.deficit ) {
+				var globalDelay = global == null ? 0 : global.delay( now );
+				if( globalDelay > 0 ) {
+					// the round resumes with this client, as if its turn had not started
+					if( served == 0 )
+						c.deficit -= quantum;
+					active.addFirst( c );
+					return globalDelay;
+				}
+				var userDelay = c.bucket == null ? 0 : c.bucket.delay( now );
+				if( userDelay > 0 ) {
+					if( served == 0 )
+						c.deficit -= quantum;
+					delay = Math.min( delay, userDelay );
+					limited = true;
+					break;
+				}
+
+				var g = c.pending.poll();
+				c.deficit -= g.bytes();
+				if( c.bucket != null )
+					c.bucket.tokens -= g.bytes();
+				if( global != null )
+					global.tokens -= g.bytes();
+
+				grants++;
+				bytes += g.bytes();
+				waitNanos += now - g.queued();
+				granted.add( g.done() );
+				served++;
+			}
+
+			if( c.pending.isEmpty() )
+				c.deficit = 0;
+			else {
+				// short of credit, it will have more next round, right away
+				if( ! limited )
+					delay = 0;
+				active.add( c );
+			}
+		}
+		sweep( now );
+		return delay;
+	}
+
+	/*
+	 * Forgets the clients without chunks waiting and with full buckets, who would start the same anew.
+	 */
+	private void sweep( long now ) {
+		if( now - lastSweep < IDLE_SWEEP_NANOS )
+			return;
+
+		lastSweep = now;
+		clients.values().removeIf( c -> c.pending.isEmpty() && (c.bucket == null || c.bucket.full( now )));
+	}
+}
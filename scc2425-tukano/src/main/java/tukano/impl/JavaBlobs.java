@@ -1,26 +1,54 @@
 package tukano.impl;
 
 import static java.lang.String.format;
+import static java.util.concurrent.CompletableFuture.completedFuture;
 import static tukano.api.Result.error;
+import static tukano.api.Result.ok;
 import static tukano.api.Result.ErrorCode.FORBIDDEN;
 
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
 import java.util.logging.Logger;
 
+import tukano.api.BlobInfo;
+import tukano.api.BlobUsage;
 import tukano.api.Blobs;
 import tukano.api.Result;
 import tukano.impl.rest.TukanoRestServer;
+import tukano.impl.storage.AsyncIO;
 import tukano.impl.storage.BlobStorage;
+import tukano.impl.storage.CachingStorage;
+import tukano.impl.storage.ContentAddressedStorage;
+import tukano.impl.storage.ErasureCodedStorage;
 import tukano.impl.storage.FilesystemStorage;
-import utils.Hash;
-import utils.Hex;
+import tukano.impl.storage.HeadCachingStorage;
+import tukano.impl.storage.ReplicatedStorage;
+import tukano.impl.storage.SegmentStorage;
+import tukano.impl.storage.TieredStorage;
+import tukano.impl.storage.UploadSessions;
+import tukano.impl.storage.UserIndexStorage;
+import utils.Props;
 
 public class JavaBlobs implements Blobs {
 	
 	private static Blobs instance;
 	private static Logger Log = Logger.getLogger(JavaBlobs.class.getName());
 
+	private static final String STORAGE_PROP = "blobs.storage";
+	private static final String FILESYSTEM = "fs";
+	private static final String CONTENT_ADDRESSED = "cas";
+	private static final String REPLICATED = "replicated";
+	private static final String ERASURE_CODED = "ec";
+	private static final String SEGMENTS = "segments";
+
 	public String baseURI;
 	private BlobStorage storage;
+	private final UserIndexStorage index;
+	private final UploadSessions uploads;
+	private final DownloadScheduler downloads;
+	private final TieredStorage tiered;
 	
 	synchronized public static Blobs getInstance() {
 		if( instance == null )
@@ -29,28 +57,138 @@ public class JavaBlobs implements Blobs {
 	}
 	
 	private JavaBlobs() {
-		storage = new FilesystemStorage();
+		storage = storage( Props.get(STORAGE_PROP, FILESYSTEM));
+		tiered = Props.get(TieredStorage.INTERVAL_PROP, 0) > 0 ? new TieredStorage( storage ) : null;
+		if( tiered != null )
+			storage = tiered;
+		if( Props.get(CachingStorage.MAX_BYTES_PROP, 1L) > 0 )
+			storage = new CachingStorage( storage );
+		if( Props.get(HeadCachingStorage.HEAD_BYTES_PROP, 1) > 0 )
+			storage = new HeadCachingStorage( storage );
+		storage = index = new UserIndexStorage( storage );
+		if( tiered != null )
+			tiered.start( index );
+		uploads = new UploadSessions();
+		downloads = new DownloadScheduler();
 		baseURI = String.format("%s/%s/", TukanoRestServer.serverURI, Blobs.NAME);
 	}
 	
 	@Override
-	public Result<Void> upload(String blobId, byte[] bytes, String token) {
-		Log.info(() -> format("upload : blobId = %s, sha256 = %s, token = %s\n", blobId, Hex.of(Hash.sha256(bytes)), token));
+	public Result<Void> upload(String blobId, InputStream in, String token) {
+		Log.info(() -> format("upload : blobId = %s, token = %s\n", blobId, token));
 
 		if (!validBlobId(blobId, token))
 			return error(FORBIDDEN);
 
-		return storage.write( toPath( blobId ), bytes);
+		return storage.write( toPath( blobId ), in);
+	}
+
+	@Override
+	public CompletableFuture<Result<Void>> uploadAsync(String blobId, InputStream in, String token) {
+		Log.info(() -> format("uploadAsync : blobId = %s, token = %s\n", blobId, token));
+
+		if (!validBlobId(blobId, token))
+			return completedFuture( error(FORBIDDEN) );
+
+		return storage.writeAsync( toPath( blobId ), in);
+	}
+
+	@Override
+	public Result<Long> size(String blobId, String token) {
+		Log.info(() -> format("size : blobId = %s, token=%s\n", blobId, token));
+
+		if( ! validBlobId( blobId, token ) )
+			return error(FORBIDDEN);
+
+		return storage.size( toPath( blobId ) );
+	}
+
+	@Override
+	public Result<BlobInfo> stat(String blobId, String token) {
+		Log.info(() -> format("stat : blobId = %s, token=%s\n", blobId, token));
+
+		if( ! validBlobId( blobId, token ) )
+			return error(FORBIDDEN);
+
+		return storage.stat( toPath( blobId ) );
 	}
 
 	@Override
-	public Result<byte[]> download(String blobId, String token) {
-		Log.info(() -> format("download : blobId = %s, token=%s\n", blobId, token));
+	public CompletableFuture<Result<BlobInfo>> statAsync(String blobId, String token) {
+		return CompletableFuture.supplyAsync( () -> stat( blobId, token ), AsyncIO.pool() );
+	}
+
+	/*
+	 * A download from the start counts as an access for tiering. It is recorded here, above the caches,
+	 * so that downloads they serve count too, and their own reads (eg. prefetches) do not.
+	 */
+	@Override
+	public Result<InputStream> downloadStream(String blobId, long offset, long length, String token) {
+		Log.info(() -> format("download : blobId = %s, offset = %d, length = %d, token=%s\n", blobId, offset, length, token));
 
 		if( ! validBlobId( blobId, token ) )
 			return error(FORBIDDEN);
 
-		return storage.read( toPath( blobId ) );
+		var path = toPath( blobId );
+		if( offset == 0 && tiered != null )
+			tiered.accessed( path );
+
+		return storage.readStream( path, offset, length );
+	}
+
+	@Override
+	public CompletableFuture<Result<ByteBuffer>> downloadAsync(String blobId, long offset, int length, String token) {
+		return downloadAsync( blobId, offset, length, token, token );
+	}
+
+	/*
+	 * Called once per chunk of a download, so not logged...
+	 * Each chunk is read once the scheduler grants it to the client.
+	 */
+	@Override
+	public CompletableFuture<Result<ByteBuffer>> downloadAsync(String blobId, long offset, int length, String token, String client) {
+		if( ! validBlobId( blobId, token ) )
+			return completedFuture( error(FORBIDDEN) );
+
+		return downloadTurn( client != null ? client : token, length ).thenCompose( __ -> storage.readAsync( toPath( blobId ), offset, length ));
+	}
+
+	@Override
+	public CompletableFuture<Void> downloadTurn(String client, int length) {
+		return downloads.acquire( client, length );
+	}
+
+	@Override
+	public Result<String> openUpload(String blobId, String token) {
+		Log.info(() -> format("openUpload : blobId = %s, token = %s\n", blobId, token));
+
+		if (!validBlobId(blobId, token))
+			return error(FORBIDDEN);
+
+		return uploads.open( toPath( blobId ) );
+	}
+
+	/*
+	 * Called once per chunk of an upload, so not logged...
+	 */
+	@Override
+	public Result<Void> uploadChunk(String blobId, String sessionId, int chunk, InputStream in) {
+		return uploads.put( toPath( blobId ), sessionId, chunk, in );
+	}
+
+	@Override
+	public Result<List<Integer>> uploadedChunks(String blobId, String sessionId) {
+		Log.info(() -> format("uploadedChunks : blobId = %s, sessionId = %s\n", blobId, sessionId));
+
+		return uploads.received( toPath( blobId ), sessionId );
+	}
+
+	@Override
+	public Result<Void> commitUpload(String blobId, String sessionId, int chunks) {
+		Log.info(() -> format("commitUpload : blobId = %s, sessionId = %s, chunks = %d\n", blobId, sessionId, chunks));
+
+		var path = toPath( blobId );
+		return uploads.commit( path, sessionId, chunks, in -> storage.write( path, in ));
 	}
 
 	@Override
@@ -73,6 +211,42 @@ public class JavaBlobs implements Blobs {
 		return storage.delete( toPath(userId));
 	}
 	
+	@Override
+	public Result<BlobUsage> usage(String userId, String token) {
+		Log.info(() -> format("usage : userId = %s, token=%s\n", userId, token));
+
+		if( ! Token.isValid( token, userId ) )
+			return error(FORBIDDEN);
+
+		return ok( index.usage( toPath(userId) ));
+	}
+
+	@Override
+	public void prefetch(List<String> blobIds) {
+		Log.info(() -> format("prefetch : blobIds = %s\n", blobIds));
+		
+		blobIds.forEach( blobId -> storage.prefetch( toPath( blobId )));
+	}
+
+	BlobStorage storage() {
+		return storage;
+	}
+
+	UserIndexStorage index() {
+		return index;
+	}
+
+	private static BlobStorage storage( String kind ) {
+		return switch( kind ) {
+			case CONTENT_ADDRESSED -> new ContentAddressedStorage();
+			case REPLICATED -> new ReplicatedStorage();
+			case ERASURE_CODED -> new ErasureCodedStorage();
+			case SEGMENTS -> new SegmentStorage();
+			case FILESYSTEM -> new FilesystemStorage();
+			default -> throw new IllegalArgumentException("Unknown blob storage: " + kind);
+		};
+	}
+	
 	private boolean validBlobId(String blobId, String token) {		
 		return Token.isValid(token, blobId);
 	}
@@ -4,10 +4,10 @@ import static java.lang.String.format;
 import static tukano.api.Result.error;
 import static tukano.api.Result.errorOrResult;
 import static tukano.api.Result.errorOrValue;
-import static tukano.api.Result.errorOrVoid;
 import static tukano.api.Result.ok;
 import static tukano.api.Result.ErrorCode.BAD_REQUEST;
 import static tukano.api.Result.ErrorCode.FORBIDDEN;
+import static tukano.api.Result.ErrorCode.NOT_FOUND;
 import static utils.DB.getOne;
 
 import java.util.List;
@@ -23,6 +23,8 @@ import tukano.impl.data.Following;
 import tukano.impl.data.Likes;
 import tukano.impl.rest.TukanoRestServer;
 import utils.DB;
+import utils.DB.Query;
+import utils.Props;
 
 public class JavaShorts implements Shorts {
 
@@ -30,13 +32,34 @@ public class JavaShorts implements Shorts {
 	
 	private static Shorts instance;
 	
+	private static final int FEED_PREFETCH = Props.get("shorts.feed.prefetch", 5);
+
+	private static final Query<String> SHORTS_OF_OWNER = DB.query("shorts.ofOwner", "SELECT s.shortId FROM Short s WHERE s.ownerId = ?", String.class);
+	private static final Query<String> FOLLOWERS = DB.query("shorts.followers", "SELECT f.follower FROM Following f WHERE f.followee = ?", String.class);
+	private static final Query<String> LIKERS = DB.query("shorts.likers", "SELECT l.userId FROM Likes l WHERE l.shortId = ?", String.class);
+
+	private static final Query<Void> ADD_LIKES = DB.update("shorts.addLikes", "UPDATE Short SET totalLikes = totalLikes + ? WHERE shortId = ?");
+	private static final Query<Void> DELETE_FOLLOWING = DB.update("shorts.deleteFollowing", "DELETE FROM Following WHERE follower = ? AND followee = ?");
+	private static final Query<Void> DELETE_LIKE = DB.update("shorts.deleteLike", "DELETE FROM Likes WHERE userId = ? AND shortId = ?");
+	private static final Query<Void> UNCOUNT_LIKES_OF_USER = DB.update("shorts.uncountLikesOfUser", """
+			UPDATE Short s SET totalLikes = totalLikes - (SELECT count(*) FROM Likes l WHERE l.shortId = s.shortId AND l.userId = ?)
+				WHERE s.shortId IN (SELECT l.shortId FROM Likes l WHERE l.userId = ?)""");
+	private static final Query<Void> DELETE_LIKES_OF_SHORT = DB.update("shorts.deleteLikesOfShort", "DELETE FROM Likes WHERE shortId = ?");
+	private static final Query<Void> DELETE_SHORTS_OF_OWNER = DB.update("shorts.deleteShortsOfOwner", "DELETE FROM Short WHERE ownerId = ?");
+	private static final Query<Void> DELETE_FOLLOWS_OF_USER = DB.update("shorts.deleteFollowsOfUser", "DELETE FROM Following WHERE follower = ? OR followee = ?");
+	private static final Query<Void> DELETE_LIKES_OF_USER = DB.update("shorts.deleteLikesOfUser", "DELETE FROM Likes WHERE ownerId = ? OR userId = ?");
+	
 	synchronized public static Shorts getInstance() {
 		if( instance == null )
 			instance = new JavaShorts();
 		return instance;
 	}
 	
-	private JavaShorts() {}
+	final Timelines timelines;
+
+	private JavaShorts() {
+		this.timelines = new Timelines();
+	}
 	
 	
 	@Override
@@ -49,7 +72,14 @@ public class JavaShorts implements Shorts {
 			var blobUrl = format("%s/%s/%s", TukanoRestServer.serverURI, Blobs.NAME, shortId); 
 			var shrt = new Short(shortId, userId, blobUrl);
 
-			return errorOrValue(DB.insertOne(shrt), s -> s.copyWithLikes_And_Token(0));
+			var res = DB.transaction( hibernate -> {
+				hibernate.persist( shrt );
+				timelines.posted( hibernate, shrt );
+			});
+			if( res.isOK() )
+				timelines.fanOut( shrt );
+
+			return errorOrValue(res, __ -> shrt.copyWithLikes_And_Token(0));
 		});
 	}
 
@@ -60,9 +90,7 @@ public class JavaShorts implements Shorts {
 		if( shortId == null )
 			return error(BAD_REQUEST);
 
-		var query = format("SELECT count(*) FROM Likes l WHERE l.shortId = '%s'", shortId);
-		var likes = DB.sql(query, Long.class);
-		return errorOrValue( getOne(shortId, Short.class), shrt -> shrt.copyWithLikes_And_Token( likes.get(0)));
+		return errorOrValue( getOne(shortId, Short.class), shrt -> shrt.copyWithLikes_And_Token( shrt.getTotalLikes()));
 	}
 
 	
@@ -75,10 +103,12 @@ public class JavaShorts implements Shorts {
 			return errorOrResult( okUser( shrt.getOwnerId(), password), user -> {
 				return DB.transaction( hibernate -> {
 
-					hibernate.remove( shrt);
+					// shrt is a copy, with the likes and token; the short itself may be in the session already
+					hibernate.remove( hibernate.getReference( Short.class, shortId ));
 					
-					var query = format("DELETE Likes l WHERE l.shortId = '%s'", shortId);
-					hibernate.createNativeQuery( query, Likes.class).executeUpdate();
+					DB.update( hibernate, DELETE_LIKES_OF_SHORT, shortId );
+
+					timelines.deleted( hibernate, shortId );
 					
 					JavaBlobs.getInstance().delete(shrt.getBlobUrl(), Token.get() );
 				});
@@ -90,8 +120,7 @@ public class JavaShorts implements Shorts {
 	public Result<List<String>> getShorts(String userId) {
 		Log.info(() -> format("getShorts : userId = %s\n", userId));
 
-		var query = format("SELECT s.shortId FROM Short s WHERE s.ownerId = '%s'", userId);
-		return errorOrValue( okUser(userId), DB.sql( query, String.class));
+		return errorOrValue( okUser(userId), DB.sql( SHORTS_OF_OWNER, userId ));
 	}
 
 	@Override
@@ -100,17 +129,31 @@ public class JavaShorts implements Shorts {
 	
 		
 		return errorOrResult( okUser(userId1, password), user -> {
-			var f = new Following(userId1, userId2);
-			return errorOrVoid( okUser( userId2), isFollowing ? DB.insertOne( f ) : DB.deleteOne( f ));	
-		});			
+			return errorOrResult( okUser( userId2), __ -> {
+				// the timeline of the follower changes with the follow
+				Result<Void> res = DB.transaction( hibernate -> {
+					if( isFollowing ) {
+						hibernate.persist( new Following(userId1, userId2));
+						hibernate.flush();
+						timelines.followed( hibernate, userId1, userId2 );
+					} else if( DB.update( hibernate, DELETE_FOLLOWING, userId1, userId2 ) == 0 )
+						return error(NOT_FOUND);
+					else
+						timelines.unfollowed( hibernate, userId1, userId2 );
+					return ok();
+				});
+				if( res.isOK() )
+					timelines.followersChanged( userId2, isFollowing ? 1 : -1 );
+				return res;
+			});
+		});
 	}
 
 	@Override
 	public Result<List<String>> followers(String userId, String password) {
 		Log.info(() -> format("followers : userId = %s, pwd = %s\n", userId, password));
 
-		var query = format("SELECT f.follower FROM Following f WHERE f.followee = '%s'", userId);		
-		return errorOrValue( okUser(userId, password), DB.sql(query, String.class));
+		return errorOrValue( okUser(userId, password), DB.sql( FOLLOWERS, userId ));
 	}
 
 	@Override
@@ -119,8 +162,19 @@ public class JavaShorts implements Shorts {
 
 		
 		return errorOrResult( getShort(shortId), shrt -> {
-			var l = new Likes(userId, shortId, shrt.getOwnerId());
-			return errorOrVoid( okUser( userId, password), isLiked ? DB.insertOne( l ) : DB.deleteOne( l ));	
+			return errorOrResult( okUser( userId, password), user -> {
+				// the like and the count of the short change together
+				return DB.transaction( hibernate -> {
+					if( isLiked ) {
+						hibernate.persist( new Likes(userId, shortId, shrt.getOwnerId()));
+						hibernate.flush();
+					} else if( DB.update( hibernate, DELETE_LIKE, userId, shortId ) == 0 )
+						return error(NOT_FOUND);
+
+					DB.update( hibernate, ADD_LIKES, isLiked ? 1 : -1, shortId );
+					return ok();
+				});
+			});
 		});
 	}
 
@@ -130,9 +184,7 @@ public class JavaShorts implements Shorts {
 
 		return errorOrResult( getShort(shortId), shrt -> {
 			
-			var query = format("SELECT l.userId FROM Likes l WHERE l.shortId = '%s'", shortId);					
-			
-			return errorOrValue( okUser( shrt.getOwnerId(), password ), DB.sql(query, String.class));
+			return errorOrValue( okUser( shrt.getOwnerId(), password ), DB.sql( LIKERS, shortId ));
 		});
 	}
 
@@ -140,15 +192,11 @@ public class JavaShorts implements Shorts {
 	public Result<List<String>> getFeed(String userId, String password) {
 		Log.info(() -> format("getFeed : userId = %s, pwd = %s\n", userId, password));
 
-		final var QUERY_FMT = """
-				SELECT s.shortId, s.timestamp FROM Short s WHERE	s.ownerId = '%s'				
-				UNION			
-				SELECT s.shortId, s.timestamp FROM Short s, Following f 
-					WHERE 
-						f.followee = s.ownerId AND f.follower = '%s' 
-				ORDER BY s.timestamp DESC""";
-
-		return errorOrValue( okUser( userId, password), DB.sql( format(QUERY_FMT, userId, userId), String.class));		
+		var feed = errorOrValue( okUser( userId, password), __ -> timelines.feed( userId ));
+		if( feed.isOK() )
+			JavaBlobs.getInstance().prefetch( feed.value().stream().limit( FEED_PREFETCH ).toList() );
+		
+		return feed;
 	}
 		
 	protected Result<User> okUser( String userId, String pwd) {
@@ -173,16 +221,17 @@ public class JavaShorts implements Shorts {
 		return DB.transaction( (hibernate) -> {
 						
 			//delete shorts
-			var query1 = format("DELETE Short s WHERE s.ownerId = '%s'", userId);		
-			hibernate.createQuery(query1, Short.class).executeUpdate();
+			DB.update( hibernate, DELETE_SHORTS_OF_OWNER, userId );
 			
 			//delete follows
-			var query2 = format("DELETE Following f WHERE f.follower = '%s' OR f.followee = '%s'", userId, userId);		
-			hibernate.createQuery(query2, Following.class).executeUpdate();
+			DB.update( hibernate, DELETE_FOLLOWS_OF_USER, userId, userId );
 			
-			//delete likes
-			var query3 = format("DELETE Likes l WHERE l.ownerId = '%s' OR l.userId = '%s'", userId, userId);		
-			hibernate.createQuery(query3, Likes.class).executeUpdate();
+			//delete timeline, and the shorts of the user from those of others
+			timelines.userDeleted( hibernate, userId );
+
+			//delete likes, and take those on the shorts of others off their counts
+			DB.update( hibernate, UNCOUNT_LIKES_OF_USER, userId, userId );
+			DB.update( hibernate, DELETE_LIKES_OF_USER, userId, userId );
 			
 		});
 	}
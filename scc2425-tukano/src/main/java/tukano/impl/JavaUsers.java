@@ -16,12 +16,16 @@ import tukano.api.Result;
 import tukano.api.User;
 import tukano.api.Users;
 import utils.DB;
+import utils.DB.Query;
 
 public class JavaUsers implements Users {
 	
 	private static Logger Log = Logger.getLogger(JavaUsers.class.getName());
 
 	private static Users instance;
+
+	private static final Query<User> SEARCH = DB.query("users.search", "SELECT * FROM User u WHERE UPPER(u.userId) LIKE ?",
+			rs -> new User( rs.getString("userId"), rs.getString("pwd"), rs.getString("email"), rs.getString("displayName")));
 	
 	synchronized public static Users getInstance() {
 		if( instance == null )
@@ -84,8 +88,7 @@ public class JavaUsers implements Users {
 	public Result<List<User>> searchUsers(String pattern) {
 		Log.info( () -> format("searchUsers : patterns = %s\n", pattern));
 
-		var query = format("SELECT * FROM User u WHERE UPPER(u.userId) LIKE '%%%s%%'", pattern.toUpperCase());
-		var hits = DB.sql(query, User.class)
+		var hits = DB.sql(SEARCH, "%" + pattern.toUpperCase() + "%")
 				.stream()
 				.map(User::copyWithoutPassword)
 				.toList();
@@ -0,0 +1,233 @@
+package tukano.impl;
+
+import static java.lang.String.format;
+import static tukano.api.Result.ErrorCode.NOT_FOUND;
+
+import java.util.HashSet;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+import java.util.stream.Collectors;
+
+import tukano.api.Short;
+import tukano.impl.storage.BlobStorage;
+import tukano.impl.storage.UserIndexStorage;
+import utils.DB;
+import utils.DB.Query;
+import utils.Props;
+
+/**
+ * Background reconciler of blobs and shorts, which can drift apart (eg. the blob of a deleted short
+ * is left behind, or a short is created but its blob is never uploaded).
+ *
+ * Each pass goes through the blobs known to the user index, owner by owner, and then through the
+ * shorts, in shortId order, in bounded batches: one query checks a batch of blobs against the shorts,
+ * and one query fetches the next batch of shorts. Blobs without a short are deleted, as are shorts
+ * without a blob; in both cases, only once they are older than a grace period, so uploads and
+ * deletes in progress are left alone.
+ *
+ * It also reconciles the like counts kept in the shorts with their likes: one more query counts the
+ * likes of each batch of shorts, and the shorts whose count drifted are recounted.
+ *
+ * It runs in a single, low priority thread, and sleeps between batches so that no more than
+ * blobs.gc.itemsPerSecond items are checked per second, to keep out of the way of foreground requests.
+ */
+public class OrphanCollector {
+	private static Logger Log = Logger.getLogger(OrphanCollector.class.getName());
+
+	private static final String INTERVAL_PROP = "blobs.gc.interval";
+	private static final String BATCH_SIZE_PROP = "blobs.gc.batchSize";
+	private static final String ITEMS_PER_SECOND_PROP = "blobs.gc.itemsPerSecond";
+	private static final String GRACE_PROP = "blobs.gc.grace";
+	private static final int DEFAULT_INTERVAL = 600;
+	private static final int DEFAULT_BATCH_SIZE = 100;
+	private static final int DEFAULT_ITEMS_PER_SECOND = 200;
+	private static final int DEFAULT_GRACE = 3600;
+
+	public enum Phase { IDLE, BLOBS, SHORTS }
+
+	public record Stats(long passes, Phase phase, String position, long blobsScanned, long shortsScanned,
+			long orphanBlobs, long orphanBytes, long danglingShorts, long recountedShorts, long errors, long lastPassMillis) {}
+
+	private static final Query<String> EXISTING_SHORTS = DB.query("gc.existingShorts", "SELECT s.shortId FROM Short s WHERE s.shortId IN ( UNNEST(?) )", String.class);
+	private static final Query<Short> SHORTS_AFTER = DB.query("gc.shortsAfter", "SELECT * FROM Short s WHERE s.shortId > ? ORDER BY s.shortId LIMIT ?",
+			rs -> new Short( rs.getString("shortId"), rs.getString("ownerId"), rs.getString("blobUrl"), rs.getLong("timestamp"), rs.getInt("totalLikes")));
+	private static final Query<Map.Entry<String, Long>> LIKES_OF_SHORTS = DB.query("gc.likesOfShorts", "SELECT l.shortId, count(*) FROM Likes l WHERE l.shortId IN ( UNNEST(?) ) GROUP BY l.shortId",
+			rs -> Map.entry( rs.getString(1), rs.getLong(2)));
+	// only if unchanged since it was read, so a like in the meantime is not undone
+	private static final Query<Void> RECOUNT_LIKES = DB.update("gc.recountLikes", "UPDATE Short s SET totalLikes = (SELECT count(*) FROM Likes l WHERE l.shortId = s.shortId) WHERE s.shortId = ? AND s.totalLikes = ?");
+	private static final Query<Void> DELETE_LIKES = DB.update("gc.deleteLikes", "DELETE FROM Likes WHERE shortId = ?");
+	private static final Query<Void> DELETE_SHORT = DB.update("gc.deleteShort", "DELETE FROM Short WHERE shortId = ?");
+	private static final Query<Void> DELETE_TIMELINE_ENTRIES = DB.update("gc.deleteTimelineEntries", "DELETE FROM Timeline WHERE shortId = ?");
+
+	private static OrphanCollector instance;
+
+	final BlobStorage storage;
+	final UserIndexStorage index;
+	final int interval, batchSize, itemsPerSecond;
+	final long graceMillis;
+
+	volatile Phase phase = Phase.IDLE;
+	volatile String position = "";
+	volatile long lastPassMillis;
+	final AtomicLong passes = new AtomicLong(), blobsScanned = new AtomicLong(), shortsScanned = new AtomicLong();
+	final AtomicLong orphanBlobs = new AtomicLong(), orphanBytes = new AtomicLong(), danglingShorts = new AtomicLong(), recountedShorts = new AtomicLong(), errors = new AtomicLong();
+
+	/**
+	 * Starts the collector, unless blobs.gc.interval is not positive.
+	 */
+	synchronized public static void start() {
+		if( instance == null && Props.get(INTERVAL_PROP, DEFAULT_INTERVAL) > 0 ) {
+			var blobs = (JavaBlobs) JavaBlobs.getInstance();
+			instance = new OrphanCollector( blobs.storage(), blobs.index() );
+			var t = new Thread( instance::run, "orphan-collector" );
+			t.setDaemon( true );
+			t.setPriority( Thread.MIN_PRIORITY );
+			t.start();
+		}
+	}
+
+	synchronized public static OrphanCollector getInstance() {
+		return instance;
+	}
+
+	OrphanCollector( BlobStorage storage, UserIndexStorage index ) {
+		this.storage = storage;
+		this.index = index;
+		this.interval = Props.get(INTERVAL_PROP, DEFAULT_INTERVAL);
+		this.batchSize = Props.get(BATCH_SIZE_PROP, DEFAULT_BATCH_SIZE);
+		this.itemsPerSecond = Props.get(ITEMS_PER_SECOND_PROP, DEFAULT_ITEMS_PER_SECOND);
+		this.graceMillis = Props.get(GRACE_PROP, DEFAULT_GRACE) * 1000L;
+	}
+
+	public Stats stats() {
+		return new Stats( passes.get(), phase, position, blobsScanned.get(), shortsScanned.get(),
+				orphanBlobs.get(), orphanBytes.get(), danglingShorts.get(), recountedShorts.get(), errors.get(), lastPassMillis );
+	}
+
+	private void run() {
+		for(;;) {
+			try {
+				TimeUnit.SECONDS.sleep( interval );
+				var t0 = System.currentTimeMillis();
+				blobs();
+				shorts();
+				idle();
+				lastPassMillis = System.currentTimeMillis() - t0;
+				passes.incrementAndGet();
+				Log.info(() -> format("orphan collector pass done: %s\n", stats()));
+			} catch( InterruptedException x ) {
+				return;
+			} catch( RuntimeException x ) {
+				errors.incrementAndGet();
+				Log.warning(() -> format("orphan collector pass failed at %s: %s\n", stats(), x));
+				idle();
+			}
+		}
+	}
+
+	private void idle() {
+		phase = Phase.IDLE;
+		position = "";
+	}
+
+	/*
+	 * Blobs whose short does not exist.
+	 */
+	private void blobs() throws InterruptedException {
+		phase = Phase.BLOBS;
+		for( var owner : index.owners() ) {
+			var names = index.names( owner );
+			for( int i = 0; i < names.size(); i += batchSize ) {
+				var batch = names.subList( i, Math.min( names.size(), i + batchSize ))
+						.stream().map( name -> owner + "+" + name ).toList();
+
+				position = batch.get(0);
+				var existing = new HashSet<>( DB.sql( EXISTING_SHORTS, batch ));
+				for( var shortId : batch )
+					if( ! existing.contains( shortId ))
+						deleteBlob( toPath( shortId ));
+
+				blobsScanned.addAndGet( batch.size() );
+				pace( batch.size() );
+			}
+		}
+	}
+
+	/*
+	 * Shorts whose blob was never uploaded, or whose like count is off, fetched in batches,
+	 * after the last one seen (keyset pagination).
+	 */
+	private void shorts() throws InterruptedException {
+		phase = Phase.SHORTS;
+		var after = "";
+		for(;;) {
+			var batch = DB.sql( SHORTS_AFTER, after, batchSize );
+			if( batch.isEmpty() )
+				return;
+
+			var likes = DB.sql( LIKES_OF_SHORTS, batch.stream().map( Short::getShortId ).toList() ).stream()
+					.collect( Collectors.toMap( Map.Entry::getKey, Map.Entry::getValue ));
+
+			var deadline = System.currentTimeMillis() - graceMillis;
+			for( var shrt : batch )
+				if( shrt.getTimestamp() < deadline && storage.stat( toPath( shrt.getShortId() )).error() == NOT_FOUND )
+					deleteShort( shrt.getShortId() );
+				else if( likes.getOrDefault( shrt.getShortId(), 0L ) != shrt.getTotalLikes() )
+					recountLikes( shrt );
+
+			after = position = batch.get( batch.size() - 1 ).getShortId();
+			shortsScanned.addAndGet( batch.size() );
+			pace( batch.size() );
+		}
+	}
+
+	private void deleteBlob( String path ) {
+		var info = storage.stat( path );
+		if( ! info.isOK() || info.value().lastModified() > System.currentTimeMillis() - graceMillis )
+			return;
+
+		var res = storage.delete( path );
+		if( res.isOK() ) {
+			orphanBlobs.incrementAndGet();
+			orphanBytes.addAndGet( info.value().size() );
+			Log.info(() -> format("orphan blob deleted: %s\n", path));
+		} else if( res.error() != NOT_FOUND )
+			errors.incrementAndGet();
+	}
+
+	private void deleteShort( String shortId ) {
+		var res = DB.transaction( hibernate -> {
+			DB.update( hibernate, DELETE_LIKES, shortId );
+			DB.update( hibernate, DELETE_SHORT, shortId );
+			DB.update( hibernate, DELETE_TIMELINE_ENTRIES, shortId );
+		});
+		if( res.isOK() ) {
+			danglingShorts.incrementAndGet();
+			Log.info(() -> format("short without blob deleted: %s\n", shortId));
+		} else
+			errors.incrementAndGet();
+	}
+
+	private void recountLikes( Short shrt ) {
+		var res = DB.update( RECOUNT_LIKES, shrt.getShortId(), shrt.getTotalLikes() );
+		if( ! res.isOK() )
+			errors.incrementAndGet();
+		else if( res.value() > 0 ) {
+			recountedShorts.incrementAndGet();
+			Log.info(() -> format("likes of short recounted: %s, was %d\n", shrt.getShortId(), shrt.getTotalLikes()));
+		}
+	}
+
+	/*
+	 * Sleeps as long as it takes for the items just checked not to exceed the rate.
+	 */
+	private void pace( int items ) throws InterruptedException {
+		TimeUnit.MILLISECONDS.sleep( items * 1000L / Math.max( 1, itemsPerSecond ));
+	}
+
+	private static String toPath( String shortId ) {
+		return shortId.replace("+", "/");
+	}
+}
@@ -0,0 +1,220 @@
+package tukano.impl;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+import java.util.logging.Logger;
+
+import org.hibernate.Session;
+
+import tukano.api.Result;
+import tukano.api.Short;
+import utils.DB;
+import utils.DB.Query;
+import utils.Props;
+
+/**
+ * Materialized timelines, so a feed is read from a list kept sorted by timestamp, instead of
+ * joining the shorts with the follows of the user on each call.
+ *
+ * - A new short goes into the timeline of its author right away, and into those of its followers
+ *   in the background (fan-out on write), with a single INSERT ... SELECT over the followers.
+ * - Following someone backfills the timeline with their latest shorts; unfollowing prunes them.
+ * - Shorts of authors with more than shorts.timeline.fanoutLimit followers are not fanned out:
+ *   they are pulled when a feed is read, and merged with the timeline. When such an author falls
+ *   back under the limit, their latest shorts are fanned out to all their followers.
+ *
+ * A feed has the newest shorts.feed.size shorts. The follower counts are cached, loaded on first use
+ * and kept up to date by follows; they are only used to pick the authors to pull, so they need not be exact.
+ */
+public class Timelines {
+	private static Logger Log = Logger.getLogger(Timelines.class.getName());
+
+	private static final String FEED_SIZE_PROP = "shorts.feed.size";
+	private static final String FANOUT_LIMIT_PROP = "shorts.timeline.fanoutLimit";
+	private static final int DEFAULT_FEED_SIZE = 1000;
+	private static final int DEFAULT_FANOUT_LIMIT = 10_000;
+
+	public record Stats(long fanouts, long entries, int pending, long pulls) {}
+
+	record Entry(String shortId, long timestamp) {}
+
+	// ordered as the (userId, timestamp) index, so it is read from the index, newest first, and stops at the limit
+	private static final Query<Entry> TIMELINE = DB.query("timelines.read", "SELECT t.shortId, t.timestamp FROM Timeline t WHERE t.userId = ? ORDER BY t.userId DESC, t.timestamp DESC LIMIT ?",
+			rs -> new Entry( rs.getString(1), rs.getLong(2)));
+	private static final Query<Entry> LATEST_OF = DB.query("timelines.latestOf", "SELECT s.shortId, s.timestamp FROM Short s WHERE s.ownerId IN ( UNNEST(?) ) ORDER BY s.timestamp DESC LIMIT ?",
+			rs -> new Entry( rs.getString(1), rs.getLong(2)));
+	private static final Query<String> FOLLOWEES = DB.query("timelines.followees", "SELECT f.followee FROM Following f WHERE f.follower = ?", String.class);
+	private static final Query<Long> FOLLOWERS_COUNT = DB.query("timelines.followersCount", "SELECT count(*) FROM Following f WHERE f.followee = ?", Long.class);
+
+	private static final Query<Void> ADD = DB.update("timelines.add", "INSERT INTO Timeline (userId, shortId, ownerId, timestamp) VALUES (?, ?, ?, ?)");
+	// from the short, so one deleted meanwhile is not fanned out
+	private static final Query<Void> FAN_OUT = DB.update("timelines.fanOut", """
+			INSERT INTO Timeline (userId, shortId, ownerId, timestamp)
+				SELECT f.follower, s.shortId, s.ownerId, s.timestamp FROM Following f, Short s
+					WHERE s.shortId = ? AND f.followee = s.ownerId
+						AND NOT EXISTS (SELECT 1 FROM Timeline t WHERE t.userId = f.follower AND t.shortId = s.shortId)""");
+	private static final Query<Void> BACKFILL = DB.update("timelines.backfill", """
+			INSERT INTO Timeline (userId, shortId, ownerId, timestamp)
+				SELECT ?, s.shortId, s.ownerId, s.timestamp FROM Short s
+					WHERE s.shortId IN (SELECT r.shortId FROM Short r WHERE r.ownerId = ? ORDER BY r.timestamp DESC LIMIT ?)
+						AND NOT EXISTS (SELECT 1 FROM Timeline t WHERE t.userId = ? AND t.shortId = s.shortId)""");
+	private static final Query<Void> REFAN = DB.update("timelines.refan", """
+			INSERT INTO Timeline (userId, shortId, ownerId, timestamp)
+				SELECT f.follower, s.shortId, s.ownerId, s.timestamp FROM Following f, Short s
+					WHERE f.followee = ?
+						AND s.shortId IN (SELECT r.shortId FROM Short r WHERE r.ownerId = ? ORDER BY r.timestamp DESC LIMIT ?)
+						AND NOT EXISTS (SELECT 1 FROM Timeline t WHERE t.userId = f.follower AND t.shortId = s.shortId)""");
+	// but for the own shorts of a user that unfollows itself
+	private static final Query<Void> PRUNE = DB.update("timelines.prune", "DELETE FROM Timeline WHERE userId = ? AND ownerId = ? AND ownerId <> userId");
+	private static final Query<Void> DELETE_SHORT = DB.update("timelines.deleteShort", "DELETE FROM Timeline WHERE shortId = ?");
+	private static final Query<Void> DELETE_USER = DB.update("timelines.deleteUser", "DELETE FROM Timeline WHERE userId = ? OR ownerId = ?");
+
+	final int feedSize, fanoutLimit;
+	final ExecutorService fanout;
+	final Map<String, Long> followers = new ConcurrentHashMap<>();
+	final AtomicLong fanouts = new AtomicLong(), entries = new AtomicLong(), pulls = new AtomicLong();
+	final AtomicInteger pending = new AtomicInteger();
+
+	public Timelines() {
+		this( Props.get(FEED_SIZE_PROP, DEFAULT_FEED_SIZE), Props.get(FANOUT_LIMIT_PROP, DEFAULT_FANOUT_LIMIT));
+	}
+
+	public Timelines( int feedSize, int fanoutLimit ) {
+		this.feedSize = feedSize;
+		this.fanoutLimit = fanoutLimit;
+		this.fanout = Executors.newSingleThreadExecutor( r -> {
+			var t = new Thread( r, "timeline-fanout" );
+			t.setDaemon( true );
+			return t;
+		});
+	}
+
+	/**
+	 * The newest shorts of the timeline of the user, merged with those of the authors it follows
+	 * that are not fanned out.
+	 */
+	public List<String> feed( String userId ) {
+		var timeline = DB.sql( TIMELINE, userId, feedSize );
+
+		var pulled = DB.sql( FOLLOWEES, userId ).stream().filter( this::pulled ).toList();
+		if( pulled.isEmpty() )
+			return timeline.stream().map( Entry::shortId ).toList();
+
+		pulls.incrementAndGet();
+		return merge( timeline, DB.sql( LATEST_OF, pulled, feedSize ));
+	}
+
+	/**
+	 * Adds a new short to the timeline of its author, in the transaction that creates it.
+	 */
+	public void posted( Session hibernate, Short shrt ) {
+		DB.update( hibernate, ADD, shrt.getOwnerId(), shrt.getShortId(), shrt.getOwnerId(), shrt.getTimestamp() );
+	}
+
+	/**
+	 * Adds a new short to the timelines of the followers of its author, in the background, once it is
+	 * committed, unless the author has too many.
+	 */
+	public void fanOut( Short shrt ) {
+		if( pulled( shrt.getOwnerId() ))
+			return;
+
+		DB.afterCommit( () -> submit( () -> DB.update( FAN_OUT, shrt.getShortId() )));
+	}
+
+	/**
+	 * Backfills the timeline of the follower with the latest shorts of the followee, in the follow transaction.
+	 */
+	public void followed( Session hibernate, String follower, String followee ) {
+		DB.update( hibernate, BACKFILL, follower, followee, feedSize, follower );
+	}
+
+	/**
+	 * Prunes the shorts of the followee from the timeline of the follower, in the unfollow transaction.
+	 */
+	public void unfollowed( Session hibernate, String follower, String followee ) {
+		DB.update( hibernate, PRUNE, follower, followee );
+	}
+
+	/**
+	 * Updates the follower count of the followee, once a follow or unfollow is committed. An author that
+	 * falls back under the limit has its latest shorts, which were not fanned out, fanned out now.
+	 */
+	public void followersChanged( String followee, int delta ) {
+		DB.afterCommit( () -> {
+			var count = followers.computeIfPresent( followee, (__, n) -> n + delta );
+			if( count != null && delta < 0 && count == fanoutLimit )
+				submit( () -> {
+					Log.info(() -> String.format("fanning out the latest shorts of %s, back under %d followers\n", followee, fanoutLimit));
+					return DB.update( REFAN, followee, followee, feedSize );
+				});
+		});
+	}
+
+	public void deleted( Session hibernate, String shortId ) {
+		DB.update( hibernate, DELETE_SHORT, shortId );
+	}
+
+	/**
+	 * Deletes the timeline of the user, and its shorts from those of others. The follower counts
+	 * of those it followed are reloaded, when next needed.
+	 */
+	public void userDeleted( Session hibernate, String userId ) {
+		DB.update( hibernate, DELETE_USER, userId, userId );
+		followers.clear();
+	}
+
+	public Stats stats() {
+		return new Stats( fanouts.get(), entries.get(), pending.get(), pulls.get() );
+	}
+
+	private boolean pulled( String author ) {
+		var count = followers.get( author );
+		if( count == null ) {
+			count = DB.sql( FOLLOWERS_COUNT, author ).get(0);
+			followers.putIfAbsent( author, count );
+		}
+		return count > fanoutLimit;
+	}
+
+	private void submit( Supplier<Result<Integer>> task ) {
+		pending.incrementAndGet();
+		fanout.execute( () -> {
+			try {
+				var res = task.get();
+				fanouts.incrementAndGet();
+				if( res.isOK() )
+					entries.addAndGet( res.value() );
+				else
+					Log.warning(() -> String.format("timeline fan-out failed: %s\n", res.error()));
+			} catch( RuntimeException x ) {
+				Log.warning(() -> String.format("timeline fan-out failed: %s\n", x));
+			} finally {
+				pending.decrementAndGet();
+			}
+		});
+	}
+
+	/*
+	 * Both lists are newest first; a short in both (eg. fanned out before its author went over the limit) is taken once.
+	 */
+	private List<String> merge( List<Entry> a, List<Entry> b ) {
+		var res = new LinkedHashSet<String>();
+		int i = 0, j = 0;
+		while( res.size() < feedSize && (i < a.size() || j < b.size()) ) {
+			if( j == b.size() || (i < a.size() && a.get(i).timestamp() >= b.get(j).timestamp()) )
+				res.add( a.get(i++).shortId() );
+			else
+				res.add( b.get(j++).shortId() );
+		}
+		return new ArrayList<>( res );
+	}
+}
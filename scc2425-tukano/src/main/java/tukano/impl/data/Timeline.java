@@ -0,0 +1,90 @@
+package tukano.impl.data;
+
+import java.util.Objects;
+
+import jakarta.persistence.Entity;
+import jakarta.persistence.Id;
+import jakarta.persistence.Index;
+import jakarta.persistence.Table;
+
+/**
+ * An entry of the timeline (feed) of a user: a short of someone the user follows, or of the user.
+ * Timelines are read newest first, so they are indexed by user and timestamp.
+ */
+@Entity
+@Table(indexes = { @Index(columnList = "userId, timestamp"), @Index(columnList = "shortId"), @Index(columnList = "ownerId") })
+public class Timeline {
+
+	@Id
+	String userId;
+
+	@Id
+	String shortId;
+
+	String ownerId;
+
+	long timestamp;
+
+	Timeline() {}
+
+	public Timeline(String userId, String shortId, String ownerId, long timestamp) {
+		this.userId = userId;
+		this.shortId = shortId;
+		this.ownerId = ownerId;
+		this.timestamp = timestamp;
+	}
+
+	public String getUserId() {
+		return userId;
+	}
+
+	public void setUserId(String userId) {
+		this.userId = userId;
+	}
+
+	public String getShortId() {
+		return shortId;
+	}
+
+	public void setShortId(String shortId) {
+		this.shortId = shortId;
+	}
+
+	public String getOwnerId() {
+		return ownerId;
+	}
+
+	public void setOwnerId(String ownerId) {
+		this.ownerId = ownerId;
+	}
+
+	public long getTimestamp() {
+		return timestamp;
+	}
+
+	public void setTimestamp(long timestamp) {
+		this.timestamp = timestamp;
+	}
+
+	@Override
+	public String toString() {
+		return "Timeline [userId=" + userId + ", shortId=" + shortId + ", ownerId=" + ownerId + ", timestamp=" + timestamp + "]";
+	}
+
+	@Override
+	public int hashCode() {
+		return Objects.hash(userId, shortId);
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		if (this == obj)
+			return true;
+		if (obj == null)
+			return false;
+		if (getClass() != obj.getClass())
+			return false;
+		Timeline other = (Timeline) obj;
+		return Objects.equals(userId, other.userId) && Objects.equals(shortId, other.shortId);
+	}
+}
@@ -1,27 +1,115 @@
 package tukano.impl.rest;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.Date;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Function;
+
+import jakarta.inject.Inject;
+import jakarta.inject.Provider;
 import jakarta.inject.Singleton;
+import jakarta.ws.rs.container.AsyncResponse;
+import jakarta.ws.rs.core.EntityTag;
+import jakarta.ws.rs.core.HttpHeaders;
+import jakarta.ws.rs.core.MediaType;
+import jakarta.ws.rs.core.Request;
+import jakarta.ws.rs.core.Response;
+import jakarta.ws.rs.core.Response.ResponseBuilder;
+import jakarta.ws.rs.core.Response.Status;
+import jakarta.ws.rs.core.StreamingOutput;
+import tukano.api.BlobInfo;
+import tukano.api.BlobUsage;
 import tukano.api.Blobs;
+import tukano.api.Result;
 import tukano.api.rest.RestBlobs;
 import tukano.impl.JavaBlobs;
+import tukano.impl.rest.utils.ByteRanges;
+import tukano.impl.rest.utils.ByteRanges.Range;
+import tukano.impl.storage.ZeroCopyStream;
+import utils.Props;
+import utils.Random;
 
 @Singleton
 public class RestBlobsResource extends RestResource implements RestBlobs {
+	static final String ACCEPT_RANGES = "Accept-Ranges";
+	static final String CONTENT_RANGE = "Content-Range";
+	static final String BYTES = "bytes";
+	static final String REPR_DIGEST = "Repr-Digest";
+	static final String CRLF = "\r\n";
+
+	static final String CHUNK_SIZE_PROP = "blobs.io.chunkSize";
+	static final int DEFAULT_CHUNK_SIZE = 1024 * 1024;
 
 	final Blobs impl;
+	final int chunkSize;
+	final ExecutorService responder;
+
+	@Inject
+	Provider<org.glassfish.grizzly.http.server.Request> requests;
 	
 	public RestBlobsResource() {
 		this.impl = JavaBlobs.getInstance();
+		this.chunkSize = Props.get(CHUNK_SIZE_PROP, DEFAULT_CHUNK_SIZE);
+		this.responder = Executors.newCachedThreadPool( r -> {
+			var t = Executors.defaultThreadFactory().newThread(r);
+			t.setName("blobs-response:" + t.getName());
+			t.setDaemon(true);
+			return t;
+		});
 	}
 	
 	@Override
-	public void upload(String blobId, byte[] bytes, String token) {
-		super.resultOrThrow( impl.upload(blobId, bytes, token));
+	public void upload(String blobId, InputStream in, String token, AsyncResponse ar) {
+		resume( ar, impl.uploadAsync(blobId, in, token), __ -> Response.noContent().build());
+	}
+
+	/*
+	 * Validators come from the metadata recorded at write time, so conditional requests
+	 * for unchanged blobs are answered with 304 without reading them.
+	 */
+	@Override
+	public void download(String blobId, String token, String range, Request request, AsyncResponse ar) {
+		var client = client();
+		resume( ar, impl.statAsync(blobId, token), info -> download( blobId, token, client, range, request, info ));
+	}
+
+	@Override
+	public void stat(String blobId, String token, AsyncResponse ar) {
+		resume( ar, impl.statAsync(blobId, token), info -> validators( Response.ok(), info )
+				.header(ACCEPT_RANGES, BYTES)
+				.header(HttpHeaders.CONTENT_LENGTH, info.size())
+				.header(REPR_DIGEST, reprDigest( info ))
+				.build());
+	}
+
+	@Override
+	public String openUpload(String blobId, String token) {
+		return super.resultOrThrow( impl.openUpload( blobId, token ));
+	}
+
+	@Override
+	public void uploadChunk(String blobId, String sessionId, int chunk, InputStream in) {
+		super.resultOrThrow( impl.uploadChunk( blobId, sessionId, chunk, in ));
 	}
 
 	@Override
-	public byte[] download(String blobId, String token) {
-		return super.resultOrThrow( impl.download( blobId, token ));
+	public List<Integer> uploadedChunks(String blobId, String sessionId) {
+		return super.resultOrThrow( impl.uploadedChunks( blobId, sessionId ));
+	}
+
+	@Override
+	public void commitUpload(String blobId, String sessionId, int chunks) {
+		super.resultOrThrow( impl.commitUpload( blobId, sessionId, chunks ));
 	}
 
 	@Override
@@ -29,8 +117,165 @@ public class RestBlobsResource extends RestResource implements RestBlobs {
 		super.resultOrThrow( impl.delete( blobId, token ));
 	}
 	
+	@Override
+	public BlobUsage usage(String userId, String token) {
+		return super.resultOrThrow( impl.usage( userId, token ));
+	}
+
 	@Override
 	public void deleteAllBlobs(String userId, String password) {
 		super.resultOrThrow( impl.deleteAllBlobs( userId, password ));
 	}
+
+	private Response download( String blobId, String token, String client, String range, Request request, BlobInfo info ) {
+		var size = info.size();
+
+		var notModified = request.evaluatePreconditions( lastModified( info ), etag( info ));
+		if( notModified != null )
+			return validators( notModified, info ).build();
+
+		var ranges = ByteRanges.parse( range, size );
+		if( ranges == null )
+			return validators( Response.ok( stream( blobId, token, client, 0, size ) ), info )
+					.header(ACCEPT_RANGES, BYTES)
+					.header(HttpHeaders.CONTENT_LENGTH, size)
+					.build();
+		
+		if( ranges.isEmpty() )
+			return Response.status( Status.REQUESTED_RANGE_NOT_SATISFIABLE )
+					.header(CONTENT_RANGE, String.format("bytes */%d", size))
+					.build();
+		
+		if( ranges.size() == 1 ) {
+			var r = ranges.get(0);
+			return validators( Response.status( Status.PARTIAL_CONTENT ), info )
+					.entity( stream( blobId, token, client, r.start(), r.length() ) )
+					.header(ACCEPT_RANGES, BYTES)
+					.header(CONTENT_RANGE, r.contentRange(size))
+					.header(HttpHeaders.CONTENT_LENGTH, r.length())
+					.build();
+		}
+		return validators( multipart( blobId, token, client, ranges, size ), info ).build();
+	}
+
+	/*
+	 * Resumes the suspended request once the operation completes. Responses are written
+	 * by the responder threads, so the I/O pool is never blocked on slow clients.
+	 */
+	private <T> void resume( AsyncResponse ar, CompletableFuture<Result<T>> op, Function<T, Response> toResponse ) {
+		op.whenCompleteAsync( (res, x) -> {
+			try {
+				if( x != null )
+					throw x instanceof CompletionException ? x.getCause() : x;
+				ar.resume( toResponse.apply( super.resultOrThrow( res )));
+			} catch( Throwable t ) {
+				ar.resume( t );
+			}
+		}, responder );
+	}
+
+	private StreamingOutput stream( String blobId, String token, String client, long offset, long length ) {
+		return out -> copyRange( blobId, token, client, offset, length, out );
+	}
+
+	/*
+	 * Downloads are scheduled per client address; only known while the request is being dispatched.
+	 */
+	private String client() {
+		var req = requests.get();
+		return req == null ? null : req.getRemoteAddr();
+	}
+
+	/*
+	 * multipart/byteranges response, see RFC 9110, 14.6
+	 */
+	private ResponseBuilder multipart( String blobId, String token, String client, List<Range> ranges, long size ) {
+		var boundary = Random.key128();
+		var headers = ranges.stream().map( r -> partHeader(boundary, r, size)).toList();
+		var trailer = bytes(CRLF + "--" + boundary + "--" + CRLF);
+		
+		long length = trailer.length;
+		for( int i = 0; i < ranges.size(); i++ )
+			length += headers.get(i).length + ranges.get(i).length();
+		
+		StreamingOutput body = out -> {
+			for( int i = 0; i < ranges.size(); i++ ) {
+				var r = ranges.get(i);
+				out.write( headers.get(i) );
+				copyRange( blobId, token, client, r.start(), r.length(), out );
+			}
+			out.write( trailer );
+		};
+		return Response.status( Status.PARTIAL_CONTENT )
+				.entity( body )
+				.type("multipart/byteranges; boundary=" + boundary)
+				.header(ACCEPT_RANGES, BYTES)
+				.header(HttpHeaders.CONTENT_LENGTH, length);
+	}
+
+	private static ResponseBuilder validators( ResponseBuilder res, BlobInfo info ) {
+		return res.tag( etag( info ) ).lastModified( lastModified( info ) );
+	}
+
+	private static EntityTag etag( BlobInfo info ) {
+		return new EntityTag( info.digest() );
+	}
+
+	private static Date lastModified( BlobInfo info ) {
+		return new Date( info.lastModified() );
+	}
+
+	/*
+	 * RFC 9530, the digest as a structured field byte sequence
+	 */
+	private static String reprDigest( BlobInfo info ) {
+		return "sha-256=:" + Base64.getEncoder().encodeToString( HexFormat.of().parseHex( info.digest() )) + ":";
+	}
+
+	/*
+	 * Sends the range in chunks, each once the client is granted it. A range the storage can send without
+	 * copying (eg. a file, see ZeroCopyStream) is streamed straight into the response; any other is copied
+	 * through a buffer, a chunk at a time, from the same stream.
+	 */
+	private void copyRange( String blobId, String token, String client, long offset, long length, OutputStream out ) throws IOException {
+		var res = impl.downloadStream( blobId, offset, length, token );
+		if( ! res.isOK() )
+			throw new IOException("Failed to read: " + blobId + " : " + res.error());
+
+		try( var in = res.value() ) {
+			copyRange( blobId, in, client != null ? client : token, length, out );
+		}
+	}
+
+	private void copyRange( String blobId, InputStream in, String client, long length, OutputStream out ) throws IOException {
+		var buf = in instanceof ZeroCopyStream ? null : new byte[chunkSize];
+		for( long sent = 0; sent < length; ) {
+			var n = (int) Math.min( chunkSize, length - sent );
+			await( impl.downloadTurn( client, n ), blobId );
+			var done = in instanceof ZeroCopyStream zc ? zc.transferTo( out, n ) : in.readNBytes( buf, 0, n );
+			if( done == 0 )
+				throw new IOException("Unexpected end of: " + blobId + " at: " + sent);
+			if( buf != null )
+				out.write( buf, 0, (int) done );
+			sent += done;
+		}
+	}
+
+	private static <T> T await( CompletableFuture<T> f, String blobId ) throws IOException {
+		try {
+			return f.get();
+		} catch( InterruptedException | ExecutionException x ) {
+			throw new IOException( x );
+		}
+	}
+	
+	private static byte[] partHeader( String boundary, Range r, long size ) {
+		return bytes(CRLF + "--" + boundary + CRLF 
+				+ HttpHeaders.CONTENT_TYPE + ": " + MediaType.APPLICATION_OCTET_STREAM + CRLF 
+				+ CONTENT_RANGE + ": " + r.contentRange(size) + CRLF + CRLF);
+	}
+	
+	private static byte[] bytes( String s ) {
+		return s.getBytes(StandardCharsets.US_ASCII);
+	}
 }
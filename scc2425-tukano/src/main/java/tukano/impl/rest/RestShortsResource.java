@@ -7,8 +7,10 @@ import tukano.api.Short;
 import tukano.api.Shorts;
 import tukano.api.rest.RestShorts;
 import tukano.impl.JavaShorts;
+import tukano.impl.rest.utils.UnitOfWork;
 
 @Singleton
+@UnitOfWork
 public class RestShortsResource extends RestResource implements RestShorts {
 
 	static final Shorts impl = JavaShorts.getInstance();
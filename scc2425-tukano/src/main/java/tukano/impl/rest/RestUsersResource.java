@@ -7,8 +7,10 @@ import tukano.api.User;
 import tukano.api.Users;
 import tukano.api.rest.RestUsers;
 import tukano.impl.JavaUsers;
+import tukano.impl.rest.utils.UnitOfWork;
 
 @Singleton
+@UnitOfWork
 public class RestUsersResource extends RestResource implements RestUsers {
 
 	final Users impl;
@@ -3,12 +3,15 @@ package tukano.impl.rest;
 import java.net.URI;
 import java.util.logging.Logger;
 
-import org.glassfish.jersey.jdkhttp.JdkHttpServerFactory;
+import org.glassfish.jersey.grizzly2.httpserver.GrizzlyHttpServerFactory;
 import org.glassfish.jersey.server.ResourceConfig;
 
+import tukano.impl.OrphanCollector;
 import tukano.impl.Token;
+import tukano.impl.rest.utils.UnitOfWorkFilter;
 import utils.Args;
 import utils.IP;
+import utils.Props;
 
 
 public class TukanoRestServer {
@@ -37,9 +40,13 @@ public class TukanoRestServer {
 		config.register(RestBlobsResource.class);
 		config.register(RestUsersResource.class); 
 		config.register(RestShortsResource.class);
+		config.register(UnitOfWorkFilter.Feature.class);
+		config.register(UnitOfWorkFilter.Listener.class);
 		
-		JdkHttpServerFactory.createHttpServer( URI.create(serverURI.replace(IP.hostname(), INETADDR_ANY)), config);
+		GrizzlyHttpServerFactory.createHttpServer( URI.create(serverURI.replace(IP.hostname(), INETADDR_ANY)), config);
 		
+		OrphanCollector.start();
+
 		Log.info(String.format("Tukano Server ready @ %s\n",  serverURI));
 	}
 	
@@ -48,7 +55,7 @@ public class TukanoRestServer {
 		Args.use(args);
 		
 		Token.setSecret( Args.valueOf("-secret", ""));
-//		Props.load( Args.valueOf("-props", "").split(","));
+		Props.load( Args.valueOf("-props", "").split(","));
 		
 		new TukanoRestServer().start();
 	}
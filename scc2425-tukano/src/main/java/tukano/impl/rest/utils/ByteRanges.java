@@ -0,0 +1,82 @@
+package tukano.impl.rest.utils;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Parses HTTP Range headers of the form "bytes=0-99,200-,-50" (RFC 9110, 14.1.2).
+ * 
+ * Ranges are resolved against the size of the representation, sorted and coalesced
+ * when they overlap or touch.
+ */
+public class ByteRanges {
+	static final String BYTES_UNIT = "bytes=";
+	static final int MAX_RANGES = 16;
+
+	public record Range(long start, long end) {
+		public long length() {
+			return end - start + 1;
+		}
+
+		public String contentRange(long size) {
+			return String.format("bytes %d-%d/%d", start, end, size);
+		}
+	}
+
+	/**
+	 * @return null if the header is absent or malformed (and should be ignored),
+	 * an empty list if none of the ranges is satisfiable, or the ranges to serve.
+	 */
+	public static List<Range> parse(String header, long size) {
+		if (header == null || !header.startsWith(BYTES_UNIT))
+			return null;
+
+		var specs = header.substring(BYTES_UNIT.length()).split(",");
+		if (specs.length > MAX_RANGES)
+			return null;
+
+		var ranges = new ArrayList<Range>();
+		try {
+			for (var spec : specs) {
+				spec = spec.trim();
+				var dash = spec.indexOf('-');
+				if (dash < 0)
+					return null;
+
+				long start, end;
+				if (dash == 0) {
+					var suffix = Long.parseLong(spec.substring(1));
+					if (suffix <= 0)
+						continue;
+					start = Math.max(0, size - suffix);
+					end = size - 1;
+				} else {
+					start = Long.parseLong(spec.substring(0, dash));
+					end = dash == spec.length() - 1 ? size - 1 : Long.parseLong(spec.substring(dash + 1));
+					if (end < start)
+						return null;
+					end = Math.min(end, size - 1);
+				}
+				if (start < size && start <= end)
+					ranges.add(new Range(start, end));
+			}
+		} catch (NumberFormatException x) {
+			return null;
+		}
+		return coalesce(ranges);
+	}
+
+	private static List<Range> coalesce(List<Range> ranges) {
+		ranges.sort(Comparator.comparingLong(Range::start));
+		var res = new ArrayList<Range>();
+		for (var r : ranges) {
+			var last = res.isEmpty() ? null : res.get(res.size() - 1);
+			if (last != null && r.start() <= last.end() + 1)
+				res.set(res.size() - 1, new Range(last.start(), Math.max(last.end(), r.end())));
+			else
+				res.add(r);
+		}
+		return res;
+	}
+}
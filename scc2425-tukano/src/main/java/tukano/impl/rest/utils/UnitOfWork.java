@@ -0,0 +1,14 @@
+package tukano.impl.rest.utils;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Marks the resources whose requests each run in a unit of work of their own (see UnitOfWorkFilter).
+ */
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.TYPE)
+public @interface UnitOfWork {
+}
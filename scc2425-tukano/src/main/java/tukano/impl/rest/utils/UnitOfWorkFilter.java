@@ -0,0 +1,92 @@
+package tukano.impl.rest.utils;
+
+import java.io.IOException;
+
+import jakarta.ws.rs.container.ContainerRequestContext;
+import jakarta.ws.rs.container.ContainerRequestFilter;
+import jakarta.ws.rs.container.ContainerResponseContext;
+import jakarta.ws.rs.container.ContainerResponseFilter;
+import jakarta.ws.rs.container.DynamicFeature;
+import jakarta.ws.rs.container.ResourceInfo;
+import jakarta.ws.rs.core.FeatureContext;
+import jakarta.ws.rs.core.Response.Status;
+import org.glassfish.jersey.server.monitoring.ApplicationEvent;
+import org.glassfish.jersey.server.monitoring.ApplicationEventListener;
+import org.glassfish.jersey.server.monitoring.RequestEvent;
+import org.glassfish.jersey.server.monitoring.RequestEventListener;
+import tukano.api.Result.ErrorCode;
+import utils.DB;
+
+/**
+ * Runs each request in a unit of work: one session, connection and transaction for the whole call,
+ * instead of one per database access. It is committed if the request succeeds, and rolled back
+ * if it fails, so a call that fails halfway leaves nothing behind.
+ *
+ * A commit that fails turns the response into an error.
+ *
+ * A request whose response filters do not all run (eg. one of them throws) would leave its unit of work,
+ * and so its connection, with the worker thread: its Listener rolls back whatever is still open once
+ * the request is finished, however it ended.
+ *
+ * Only for resources marked with UnitOfWork, which run synchronously, as the request and response
+ * filters must run in the same thread. It is bound to them by its Feature, rather than by name binding,
+ * since their JAX-RS annotations are on the interfaces they implement.
+ */
+public class UnitOfWorkFilter implements ContainerRequestFilter, ContainerResponseFilter {
+
+	@Override
+	public void filter(ContainerRequestContext request) throws IOException {
+		DB.begin();
+	}
+
+	@Override
+	public void filter(ContainerRequestContext request, ContainerResponseContext response) throws IOException {
+		var res = DB.end(response.getStatus() < 400);
+		if (!res.isOK()) {
+			response.setStatus(res.error() == ErrorCode.CONFLICT ? Status.CONFLICT.getStatusCode() : Status.INTERNAL_SERVER_ERROR.getStatusCode());
+			response.setEntity(null);
+		}
+	}
+
+	/**
+	 * Ends, rolling it back, the unit of work of a request that is finished but left it open.
+	 * Requests in a unit of work run synchronously, so they finish in the thread that holds it.
+	 * Whether the request has one is known once it is matched (the request itself may be recycled
+	 * by the time it is finished).
+	 */
+	public static class Listener implements ApplicationEventListener {
+
+		@Override
+		public void onEvent(ApplicationEvent event) {
+		}
+
+		@Override
+		public RequestEventListener onRequest(RequestEvent event) {
+			return new RequestEventListener() {
+				boolean unitOfWork;
+
+				@Override
+				public void onEvent(RequestEvent e) {
+					switch (e.getType()) {
+					case REQUEST_MATCHED -> unitOfWork = e.getUriInfo().getMatchedResourceMethod().getInvocable().getHandler()
+							.getHandlerClass().isAnnotationPresent(UnitOfWork.class);
+					case FINISHED -> {
+						if (unitOfWork)
+							DB.end(false);
+					}
+					default -> {}
+					}
+				}
+			};
+		}
+	}
+
+	public static class Feature implements DynamicFeature {
+
+		@Override
+		public void configure(ResourceInfo resource, FeatureContext context) {
+			if (resource.getResourceClass().isAnnotationPresent(UnitOfWork.class))
+				context.register(UnitOfWorkFilter.class);
+		}
+	}
+}
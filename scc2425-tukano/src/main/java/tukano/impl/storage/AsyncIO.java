@@ -0,0 +1,143 @@
+package tukano.impl.storage;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.channels.CompletionHandler;
+import java.security.MessageDigest;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import utils.IO;
+import utils.Props;
+
+/**
+ * CompletableFuture adapters over AsynchronousFileChannel, plus the small I/O pool
+ * where the async operations of the storages that do not have their own complete,
+ * and the pool where uploads are read from the clients.
+ */
+public class AsyncIO {
+	private static final String THREADS_PROP = "blobs.io.threads";
+	private static final int DEFAULT_THREADS = 4;
+
+	private static ExecutorService pool, uploads;
+
+	synchronized public static ExecutorService pool() {
+		if (pool == null)
+			pool = Executors.newFixedThreadPool(Props.get(THREADS_PROP, DEFAULT_THREADS), r -> {
+				var t = Executors.defaultThreadFactory().newThread(r);
+				t.setName("blobs-io:" + t.getName());
+				t.setDaemon(true);
+				return t;
+			});
+		return pool;
+	}
+
+	/**
+	 * Where the (blocking) reads of upload streams run. It grows with the uploads in progress,
+	 * so slow clients only hold threads of their own, not those of the disks or of the I/O pool.
+	 */
+	synchronized public static ExecutorService uploads() {
+		if (uploads == null)
+			uploads = Executors.newCachedThreadPool(r -> {
+				var t = Executors.defaultThreadFactory().newThread(r);
+				t.setName("blobs-upload:" + t.getName());
+				t.setDaemon(true);
+				return t;
+			});
+		return uploads;
+	}
+
+	/**
+	 * Reads into buf, starting at position, until it is full or the end of the file is reached.
+	 */
+	public static CompletableFuture<Integer> readFully(AsynchronousFileChannel channel, ByteBuffer buf, long position) {
+		var res = new CompletableFuture<Integer>();
+		channel.read(buf, position, 0, new CompletionHandler<Integer, Integer>() {
+			@Override
+			public void completed(Integer n, Integer total) {
+				if (n < 0 || !buf.hasRemaining())
+					res.complete(total + Math.max(0, n));
+				else
+					channel.read(buf, position + total + n, total + n, this);
+			}
+
+			@Override
+			public void failed(Throwable x, Integer total) {
+				res.completeExceptionally(x);
+			}
+		});
+		return res;
+	}
+
+	public static CompletableFuture<Void> writeFully(AsynchronousFileChannel channel, ByteBuffer buf, long position) {
+		var res = new CompletableFuture<Void>();
+		channel.write(buf, position, position, new CompletionHandler<Integer, Long>() {
+			@Override
+			public void completed(Integer n, Long pos) {
+				if (!buf.hasRemaining())
+					res.complete(null);
+				else
+					channel.write(buf, pos + n, pos + n, this);
+			}
+
+			@Override
+			public void failed(Throwable x, Long pos) {
+				res.completeExceptionally(x);
+			}
+		});
+		return res;
+	}
+
+	/**
+	 * Copies the stream into the channel, updating the digest, one chunk at a time.
+	 * The (blocking) reads from the stream run in the given executor, each overlapping
+	 * the write of the previous chunk. Completes with the number of bytes copied.
+	 */
+	public static CompletableFuture<Long> copy(InputStream in, AsynchronousFileChannel channel, MessageDigest md, Executor executor) {
+		var res = new CompletableFuture<Long>();
+		copy(in, channel, md, executor, 0, CompletableFuture.completedFuture(null), res);
+		return res;
+	}
+
+	private static void copy(InputStream in, AsynchronousFileChannel channel, MessageDigest md, Executor executor, long position, CompletableFuture<Void> pending, CompletableFuture<Long> res) {
+		CompletableFuture.supplyAsync(() -> readChunk(in), executor).whenComplete((buf, x) -> {
+			if (x != null) {
+				res.completeExceptionally(x);
+				return;
+			}
+			if (buf.remaining() == 0) {
+				pending.whenComplete((__, y) -> {
+					if (y != null)
+						res.completeExceptionally(y);
+					else
+						res.complete(position);
+				});
+				return;
+			}
+			var len = buf.remaining();
+			md.update(buf.duplicate());
+			pending.thenCompose(__ -> {
+				var written = writeFully(channel, buf, position);
+				copy(in, channel, md, executor, position + len, written, res);
+				return written;
+			}).exceptionally(y -> {
+				res.completeExceptionally(y);
+				return null;
+			});
+		});
+	}
+
+	private static ByteBuffer readChunk(InputStream in) {
+		try {
+			var chunk = new byte[IO.BUFFER_SIZE];
+			return ByteBuffer.wrap(chunk, 0, in.readNBytes(chunk, 0, chunk.length));
+		} catch (IOException x) {
+			throw new CompletionException(x);
+		}
+	}
+}
@@ -1,17 +1,75 @@
 package tukano.impl.storage;
 
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.CompletableFuture;
 import java.util.function.Consumer;
 
+import tukano.api.BlobInfo;
 import tukano.api.Result;
+import utils.IO;
 
 public interface BlobStorage {
 		
-	public Result<Void> write(String path, byte[] bytes );
+	public Result<Void> write(String path, InputStream in );
 		
 	public Result<Void> delete(String path);
 	
-	public Result<byte[]> read(String path);
+	public Result<Long> size(String path);
 
+	/**
+	 * Size, digest and modification time of the blob, as recorded when it was written.
+	 */
+	public Result<BlobInfo> stat(String path);
+
+	/**
+	 * Positioned read of length bytes of the blob, starting at offset.
+	 */
+	public Result<InputStream> readStream(String path, long offset, long length);
+
+	/**
+	 * Passes the blob to the sink in chunks. The array of a chunk is reused for the next one,
+	 * so the sink must copy it to keep it.
+	 */
 	public Result<Void> read(String path, Consumer<byte[]> sink);
 
+	/**
+	 * Hints that the blob is likely to be read soon. 
+	 */
+	default void prefetch(String path) {
+	}
+
+	/**
+	 * Non-blocking write, completed in the I/O pool.
+	 * By default, runs the blocking write there.
+	 */
+	default CompletableFuture<Result<Void>> writeAsync(String path, InputStream in) {
+		return CompletableFuture.supplyAsync( () -> write( path, in ), AsyncIO.pool() );
+	}
+
+	/**
+	 * Non-blocking positioned read of up to length bytes, completed in the I/O pool.
+	 * The bytes are held in memory, so it is meant to be used in chunks.
+	 * It may return fewer bytes (eg. from a cache), but none only at the end of the blob.
+	 * By default, runs the blocking read there.
+	 */
+	default CompletableFuture<Result<ByteBuffer>> readAsync(String path, long offset, int length) {
+		return CompletableFuture.supplyAsync( () -> Result.errorOrValue( readStream( path, offset, length ), in -> ByteBuffer.wrap( IO.readAllBytes( in ))), AsyncIO.pool() );
+	}
+
+	/*
+	 * Whole blob and byte[] compatibility shims over the streaming operations...
+	 */
+	default Result<Void> write(String path, byte[] bytes ) {
+		return write( path, new ByteArrayInputStream( bytes ));
+	}
+
+	default Result<InputStream> readStream(String path) {
+		return readStream( path, 0, Long.MAX_VALUE );
+	}
+
+	default Result<byte[]> read(String path) {
+		return Result.errorOrValue( readStream( path ), IO::readAllBytes);
+	}
 }
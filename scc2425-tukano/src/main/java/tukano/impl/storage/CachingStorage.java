@@ -0,0 +1,362 @@
+package tukano.impl.storage;
+
+import static java.util.concurrent.CompletableFuture.completedFuture;
+import static tukano.api.Result.error;
+import static tukano.api.Result.ok;
+import static tukano.api.Result.ErrorCode.BAD_REQUEST;
+import static tukano.api.Result.ErrorCode.INTERNAL_ERROR;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.logging.Logger;
+
+import tukano.api.BlobInfo;
+import tukano.api.Result;
+import utils.Props;
+
+/**
+ * A BlobStorage decorator that keeps hot blobs in direct (off-heap) memory, within a byte budget.
+ *
+ * Uses a segmented LRU: new blobs enter a small probation segment and are promoted to the
+ * protected segment on their second hit; blobs demoted from the protected segment go back
+ * to probation. A doorkeeper only admits a blob the second time it misses, so one-hit wonders
+ * never displace cached content.
+ */
+public class CachingStorage implements BlobStorage {
+	private static Logger Log = Logger.getLogger(CachingStorage.class.getName());
+
+	private static final long MB = 1024 * 1024;
+	public static final String MAX_BYTES_PROP = "blobs.cache.maxBytes";
+	private static final String MAX_ENTRY_BYTES_PROP = "blobs.cache.maxEntryBytes";
+	private static final long DEFAULT_MAX_BYTES = 128 * MB;
+	private static final long DEFAULT_MAX_ENTRY_BYTES = 16 * MB;
+	private static final double PROTECTED_RATIO = 0.8;
+	private static final int DOORKEEPER_SIZE = 16 * 1024;
+
+	public record Stats(long hits, long misses, long evictions, long rejections, long bytes, int entries) {}
+
+	final BlobStorage storage;
+	final long maxEntryBytes, probationMaxBytes, protectedMaxBytes;
+
+	final LinkedHashMap<String, ByteBuffer> probation = new LinkedHashMap<>(16, 0.75f, true);
+	final LinkedHashMap<String, ByteBuffer> protectd = new LinkedHashMap<>(16, 0.75f, true);
+	long probationBytes, protectedBytes;
+
+	final LinkedHashMap<String, Boolean> doorkeeper = new LinkedHashMap<>(16, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+			return size() > DOORKEEPER_SIZE;
+		}
+	};
+
+	/*
+	 * The loads in progress, each with a token of its own, which an invalidation of its path drops,
+	 * so a load that read the blob before it was deleted does not put it back in the cache.
+	 */
+	final Map<String, Object> loads = new HashMap<>();
+
+	final AtomicLong hits = new AtomicLong(), misses = new AtomicLong(), evictions = new AtomicLong(), rejections = new AtomicLong();
+
+	public CachingStorage(BlobStorage storage) {
+		this( storage, Props.get(MAX_BYTES_PROP, DEFAULT_MAX_BYTES), Props.get(MAX_ENTRY_BYTES_PROP, DEFAULT_MAX_ENTRY_BYTES));
+	}
+
+	public CachingStorage(BlobStorage storage, long maxBytes, long maxEntryBytes) {
+		this.storage = storage;
+		this.protectedMaxBytes = (long) (maxBytes * PROTECTED_RATIO);
+		this.probationMaxBytes = maxBytes - protectedMaxBytes;
+		this.maxEntryBytes = Math.min(maxEntryBytes, probationMaxBytes);
+	}
+
+	@Override
+	public Result<Void> write(String path, InputStream in) {
+		return storage.write(path, in);
+	}
+
+	@Override
+	public CompletableFuture<Result<Void>> writeAsync(String path, InputStream in) {
+		return storage.writeAsync(path, in);
+	}
+
+	/*
+	 * Invalidated again once deleted, to drop whatever was loaded while the delete was in progress.
+	 */
+	@Override
+	public Result<Void> delete(String path) {
+		invalidate(path);
+		try {
+			return storage.delete(path);
+		} finally {
+			invalidate(path);
+		}
+	}
+
+	@Override
+	public Result<Long> size(String path) {
+		var buf = peek(path);
+		return buf != null ? ok((long) buf.capacity()) : storage.size(path);
+	}
+
+	@Override
+	public Result<BlobInfo> stat(String path) {
+		return storage.stat(path);
+	}
+
+	@Override
+	public Result<InputStream> readStream(String path, long offset, long length) {
+		if (path == null || offset < 0 || length < 0)
+			return error(BAD_REQUEST);
+
+		var buf = cached(path);
+		return buf != null ? ok(slice(buf, offset, length)) : storage.readStream(path, offset, length);
+	}
+
+	/*
+	 * Hits complete right away; misses may load the blob, so they go to the I/O pool,
+	 * and then to the underlying storage, if the blob was not admitted.
+	 */
+	@Override
+	public CompletableFuture<Result<ByteBuffer>> readAsync(String path, long offset, int length) {
+		if (path == null || offset < 0 || length < 0)
+			return completedFuture(error(BAD_REQUEST));
+
+		var buf = lookup(path);
+		if (buf != null) {
+			hits.incrementAndGet();
+			return completedFuture(ok(range(buf, offset, length)));
+		}
+		return CompletableFuture.supplyAsync(() -> cached(path), AsyncIO.pool())
+				.thenCompose(b -> b != null ? completedFuture(ok(range(b, offset, length))) : storage.readAsync(path, offset, length));
+	}
+
+	@Override
+	public Result<Void> read(String path, Consumer<byte[]> sink) {
+		return storage.read(path, sink);
+	}
+
+	@Override
+	public void prefetch(String path) {
+		storage.prefetch(path);
+	}
+
+	public Stats stats() {
+		synchronized (this) {
+			return new Stats(hits.get(), misses.get(), evictions.get(), rejections.get(), probationBytes + protectedBytes, probation.size() + protectd.size());
+		}
+	}
+
+	synchronized private ByteBuffer peek(String path) {
+		var buf = protectd.get(path);
+		return buf != null ? buf : probation.get(path);
+	}
+
+	/*
+	 * A hit in probation promotes the blob to the protected segment,
+	 * which may push its least recently used entries back to probation.
+	 */
+	synchronized private ByteBuffer lookup(String path) {
+		var buf = protectd.get(path);
+		if (buf != null)
+			return buf;
+
+		buf = probation.remove(path);
+		if (buf != null) {
+			probationBytes -= buf.capacity();
+			protectd.put(path, buf);
+			protectedBytes += buf.capacity();
+
+			var it = protectd.entrySet().iterator();
+			while (protectedBytes > protectedMaxBytes && it.hasNext()) {
+				var eldest = it.next();
+				it.remove();
+				protectedBytes -= eldest.getValue().capacity();
+				probation.put(eldest.getKey(), eldest.getValue());
+				probationBytes += eldest.getValue().capacity();
+			}
+			evictProbation();
+		}
+		return buf;
+	}
+
+	/*
+	 * On the second miss, returns the token of the load of the blob; null, until then.
+	 */
+	synchronized private Object admit(String path) {
+		if (doorkeeper.remove(path) != null) {
+			var token = new Object();
+			loads.put(path, token);
+			return token;
+		}
+
+		doorkeeper.put(path, Boolean.TRUE);
+		return null;
+	}
+
+	/*
+	 * Only if the load is still current, ie. the blob was not invalidated (nor loaded again) meanwhile.
+	 */
+	synchronized private void insert(String path, ByteBuffer buf, Object token) {
+		if (!loads.remove(path, token))
+			return;
+
+		if (protectd.containsKey(path) || probation.containsKey(path))
+			return;
+
+		probation.put(path, buf);
+		probationBytes += buf.capacity();
+		evictProbation();
+	}
+
+	synchronized private void done(String path, Object token) {
+		loads.remove(path, token);
+	}
+
+	private void evictProbation() {
+		var it = probation.entrySet().iterator();
+		while (probationBytes > probationMaxBytes && it.hasNext()) {
+			var eldest = it.next();
+			it.remove();
+			probationBytes -= eldest.getValue().capacity();
+			evictions.incrementAndGet();
+			Log.fine(() -> String.format("cache evicted: %s\n", eldest.getKey()));
+		}
+	}
+
+	/*
+	 * Drops the blob at the given path, or all the blobs under it, if it is a prefix.
+	 */
+	synchronized private void invalidate(String path) {
+		var prefix = path + "/";
+		probationBytes -= invalidate(probation, path, prefix);
+		protectedBytes -= invalidate(protectd, path, prefix);
+		doorkeeper.keySet().removeIf(k -> k.equals(path) || k.startsWith(prefix));
+		loads.keySet().removeIf(k -> k.equals(path) || k.startsWith(prefix));
+	}
+
+	private static long invalidate(Map<String, ByteBuffer> segment, String path, String prefix) {
+		long bytes = 0;
+		var it = segment.entrySet().iterator();
+		while (it.hasNext()) {
+			var e = it.next();
+			if (e.getKey().equals(path) || e.getKey().startsWith(prefix)) {
+				it.remove();
+				bytes += e.getValue().capacity();
+			}
+		}
+		return bytes;
+	}
+
+	/*
+	 * The contents of the blob, from the cache, or loaded into it if admitted; null otherwise.
+	 */
+	private ByteBuffer cached(String path) {
+		var buf = lookup(path);
+		if (buf != null) {
+			hits.incrementAndGet();
+			return buf;
+		}
+		misses.incrementAndGet();
+
+		var token = admit(path);
+		if (token == null)
+			return null;
+
+		try {
+			var size = storage.size(path);
+			if (!size.isOK())
+				return null;
+
+			if (size.value() > maxEntryBytes) {
+				rejections.incrementAndGet();
+				return null;
+			}
+
+			var res = storage.readStream(path);
+			if (!res.isOK())
+				return null;
+
+			try (var in = res.value()) {
+				buf = load(in, size.value().intValue());
+			} catch (IOException x) {
+				x.printStackTrace();
+				return null;
+			}
+			insert(path, buf, token);
+			return buf;
+		} finally {
+			done(path, token);
+		}
+	}
+
+	private static ByteBuffer load(InputStream in, int size) throws IOException {
+		var buf = ByteBuffer.allocateDirect(size);
+		var ch = Channels.newChannel(in);
+		while (buf.hasRemaining() && ch.read(buf) >= 0)
+			;
+		return buf.flip().asReadOnlyBuffer();
+	}
+
+	private static InputStream slice(ByteBuffer buf, long offset, long length) {
+		return new ByteBufferInputStream(range(buf, offset, length));
+	}
+
+	private static ByteBuffer range(ByteBuffer buf, long offset, long length) {
+		var start = (int) Math.min(offset, buf.capacity());
+		var end = (int) Math.min(buf.capacity(), start + Math.min(length, buf.capacity()));
+		return buf.duplicate().position(start).limit(end).slice();
+	}
+
+	static class ByteBufferInputStream extends InputStream implements ZeroCopyStream {
+		final ByteBuffer buf;
+
+		ByteBufferInputStream(ByteBuffer buf) {
+			this.buf = buf;
+		}
+
+		@Override
+		public int read() {
+			return buf.hasRemaining() ? buf.get() & 0xFF : -1;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) {
+			if (!buf.hasRemaining())
+				return -1;
+			len = Math.min(len, buf.remaining());
+			buf.get(b, off, len);
+			return len;
+		}
+
+		@Override
+		public int available() {
+			return buf.remaining();
+		}
+
+		@Override
+		public long transferTo(OutputStream out) throws IOException {
+			return transferTo(out, buf.remaining());
+		}
+
+		@Override
+		public long transferTo(OutputStream out, long count) throws IOException {
+			var part = buf.slice().limit((int) Math.min(count, buf.remaining()));
+			var n = part.remaining();
+			var ch = Channels.newChannel(out);
+			while (part.hasRemaining())
+				ch.write(part);
+			buf.position(buf.position() + n);
+			return n;
+		}
+	}
+}
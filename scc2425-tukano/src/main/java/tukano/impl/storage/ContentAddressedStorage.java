@@ -0,0 +1,310 @@
+package tukano.impl.storage;
+
+import static tukano.api.Result.error;
+import static tukano.api.Result.ok;
+import static tukano.api.Result.ErrorCode.BAD_REQUEST;
+import static tukano.api.Result.ErrorCode.CONFLICT;
+import static tukano.api.Result.ErrorCode.INTERNAL_ERROR;
+import static tukano.api.Result.ErrorCode.NOT_FOUND;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+import java.util.logging.Logger;
+
+import tukano.api.BlobInfo;
+import tukano.api.Result;
+import tukano.impl.storage.FileRangeInputStream.TransferMode;
+import utils.Hash;
+import utils.Hex;
+import utils.IO;
+import utils.Props;
+import utils.TryCatch;
+
+/**
+ * Content-addressed blob storage.
+ *
+ * The contents of a blob are stored once, in a file named after their SHA-256 digest.
+ * An index maps each blob path to its digest and keeps a reference count per digest,
+ * so the same video posted by many users consumes disk only once.
+ *
+ * Re-uploads of an existing path are answered from the index, without touching the stored file.
+ *
+ * The index is kept in memory and persisted as an append-only journal, which is
+ * replayed and compacted on startup.
+ */
+public class ContentAddressedStorage implements BlobStorage {
+	private static Logger Log = Logger.getLogger(ContentAddressedStorage.class.getName());
+
+	private static final int CHUNK_SIZE = 4096;
+	private static final String ROOT_DIR_PROP = "blobs.cas.root";
+	private static final String DEFAULT_ROOT_DIR = "/tmp/cas/";
+	private static final String DATA_DIR = "data";
+	private static final String TMP_DIR = "tmp";
+	private static final String JOURNAL = "index.journal";
+	private static final String ADD = "+", REMOVE = "-", SEP = "\t";
+
+	private final File dataDir, tmpDir, journalFile;
+	private final TransferMode transferMode;
+
+	private final Map<String, String> index = new ConcurrentHashMap<>();
+	private final Map<String, Integer> refs = new ConcurrentHashMap<>();
+	private Writer journal;
+
+	public ContentAddressedStorage() {
+		var rootDir = new File( Props.get(ROOT_DIR_PROP, DEFAULT_ROOT_DIR));
+		this.dataDir = new File( rootDir, DATA_DIR );
+		this.tmpDir = new File( rootDir, TMP_DIR );
+		this.journalFile = new File( rootDir, JOURNAL );
+		this.transferMode = TransferMode.configured();
+
+		dataDir.mkdirs();
+		tmpDir.mkdirs();
+		recover();
+	}
+
+	@Override
+	public Result<Void> write(String path, InputStream in) {
+		if (path == null)
+			return error(BAD_REQUEST);
+
+		var existing = index.get( path );
+		if( existing != null )
+			return existing.equals( Hex.of( Hash.sha256( in ))) ? ok() : error(CONFLICT);
+
+		File tmp = null;
+		try {
+			tmp = File.createTempFile("upload", null, tmpDir);
+			var md = TryCatch.maybe( () -> MessageDigest.getInstance("SHA-256"));
+			IO.write( tmp, new DigestInputStream( in, md ));
+			var digest = Hex.of( md.digest() );
+
+			acquire( digest, tmp );
+
+			// journaled within the update of the entry, so it cannot land after the REMOVE of a concurrent delete
+			var added = new AtomicBoolean();
+			var current = index.computeIfAbsent( path, __ -> {
+				log( ADD, path, digest );
+				added.set( true );
+				return digest;
+			});
+			if( ! added.get() ) {
+				release( digest );
+				return current.equals( digest ) ? ok() : error(CONFLICT);
+			}
+			return ok();
+		} catch( IOException | RuntimeException x ) {
+			x.printStackTrace();
+			return error(INTERNAL_ERROR);
+		} finally {
+			if( tmp != null )
+				IO.delete( tmp );
+		}
+	}
+
+	@Override
+	public Result<Long> size(String path) {
+		if (path == null)
+			return error(BAD_REQUEST);
+
+		var digest = index.get( path );
+		if( digest == null )
+			return error(NOT_FOUND);
+
+		return ok( toFile( digest ).length() );
+	}
+
+	/*
+	 * The digest is the name of the contents; their file is only stat'ed, not read.
+	 */
+	@Override
+	public Result<BlobInfo> stat(String path) {
+		if (path == null)
+			return error(BAD_REQUEST);
+
+		var digest = index.get( path );
+		if( digest == null )
+			return error(NOT_FOUND);
+
+		var file = toFile( digest );
+		return ok( new BlobInfo( file.length(), digest, file.lastModified() ));
+	}
+
+	@Override
+	public Result<InputStream> readStream(String path, long offset, long length) {
+		if (path == null || offset < 0 || length < 0)
+			return error(BAD_REQUEST);
+
+		var digest = index.get( path );
+		if( digest == null )
+			return error(NOT_FOUND);
+
+		try {
+			var channel = FileChannel.open( toFile( digest ).toPath(), StandardOpenOption.READ );
+			return ok( new FileRangeInputStream( channel, offset, length, transferMode ) );
+		} catch( IOException x ) {
+			x.printStackTrace();
+			return error(INTERNAL_ERROR);
+		}
+	}
+
+	@Override
+	public Result<Void> read(String path, Consumer<byte[]> sink) {
+		if (path == null)
+			return error(BAD_REQUEST);
+
+		var digest = index.get( path );
+		if( digest == null )
+			return error(NOT_FOUND);
+
+		IO.read( toFile( digest ), CHUNK_SIZE, sink );
+		return ok();
+	}
+
+	/*
+	 * Deletes the blob at the given path, or all the blobs under it, if it is a prefix (eg. a userId).
+	 * Only a prefix has to scan the index.
+	 */
+	@Override
+	public Result<Void> delete(String path) {
+		if (path == null)
+			return error(BAD_REQUEST);
+
+		try {
+			if( remove( path ) )
+				return ok();
+
+			var prefix = path + "/";
+			var paths = index.keySet().stream()
+					.filter( p -> p.startsWith( prefix ))
+					.toList();
+
+			if( paths.isEmpty() )
+				return error(NOT_FOUND);
+
+			paths.forEach( this::remove );
+			return ok();
+		} catch( RuntimeException x ) {
+			x.printStackTrace();
+			return error(INTERNAL_ERROR);
+		}
+	}
+
+	/*
+	 * Removes the entry and journals it as one step, then drops its reference to the contents.
+	 */
+	private boolean remove( String path ) {
+		var removed = new AtomicReference<String>();
+		index.computeIfPresent( path, (__, digest) -> {
+			log( REMOVE, path );
+			removed.set( digest );
+			return null;
+		});
+		if( removed.get() == null )
+			return false;
+
+		release( removed.get() );
+		return true;
+	}
+
+	/*
+	 * Adds a reference to the content, moving the uploaded file into place if it is new.
+	 */
+	private void acquire( String digest, File upload ) {
+		refs.compute( digest, (__, count) -> {
+			if( count == null ) {
+				var file = toFile( digest );
+				file.getParentFile().mkdirs();
+				move( upload, file );
+				return 1;
+			}
+			return count + 1;
+		});
+	}
+
+	private void release( String digest ) {
+		refs.compute( digest, (__, count) -> {
+			if( count == null || count <= 1 ) {
+				IO.delete( toFile( digest ) );
+				return null;
+			}
+			return count - 1;
+		});
+	}
+
+	synchronized private void log( String... fields ) {
+		try {
+			journal.write( String.join( SEP, fields ) + "\n");
+			journal.flush();
+		} catch( IOException x ) {
+			throw new UncheckedIOException( x );
+		}
+	}
+
+	/*
+	 * Replays the journal, rebuilds the reference counts, drops unreferenced contents
+	 * and rewrites the journal with only the live entries.
+	 */
+	private void recover() {
+		try {
+			if( journalFile.exists() )
+				for( var line : Files.readAllLines( journalFile.toPath() ) ) {
+					var fields = line.split( SEP );
+					if( fields[0].equals( ADD ) && fields.length == 3 )
+						index.put( fields[1], fields[2] );
+					else if( fields[0].equals( REMOVE ) && fields.length == 2 )
+						index.remove( fields[1] );
+				}
+
+			var counts = new HashMap<String, Integer>();
+			index.values().forEach( d -> counts.merge( d, 1, Integer::sum ));
+			refs.putAll( counts );
+
+			try( var files = Files.walk( dataDir.toPath() ) ) {
+				files.filter( Files::isRegularFile )
+					.filter( f -> ! refs.containsKey( f.getFileName().toString() ))
+					.forEach( f -> IO.delete( f.toFile() ));
+			}
+			for( var f : tmpDir.listFiles() )
+				IO.delete( f );
+
+			var compacted = new File( journalFile.getPath() + ".new" );
+			try( var w = new FileWriter( compacted ) ) {
+				for( var e : index.entrySet() )
+					w.write( String.join( SEP, ADD, e.getKey(), e.getValue() ) + "\n");
+			}
+			move( compacted, journalFile );
+			journal = new FileWriter( journalFile, true );
+			Log.info(() -> String.format("CAS storage: %d blobs, %d distinct contents\n", index.size(), refs.size()));
+		} catch( IOException x ) {
+			throw new UncheckedIOException( x );
+		}
+	}
+
+	private static void move( File from, File to ) {
+		try {
+			Files.move( from.toPath(), to.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING );
+		} catch( IOException x ) {
+			throw new UncheckedIOException( x );
+		}
+	}
+
+	private File toFile( String digest ) {
+		return new File( dataDir, digest.substring(0, 2) + "/" + digest );
+	}
+}
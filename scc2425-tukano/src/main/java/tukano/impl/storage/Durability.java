@@ -0,0 +1,129 @@
+package tukano.impl.storage;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+import utils.Props;
+
+/**
+ * When a write is acknowledged (blobs.fs.durability):
+ *
+ * - none, as soon as it is in the page cache, so a crash may lose it;
+ * - sync, after an fsync of its own;
+ * - group, after an fsync done by a flusher thread that, every few ms (blobs.fs.groupCommitMs),
+ *   syncs all the files written meanwhile, each once, and acknowledges them together.
+ *   Concurrent writes share the cost of the journal commits, at the price of some latency.
+ */
+public class Durability {
+	private static Logger Log = Logger.getLogger(Durability.class.getName());
+
+	public enum Mode { NONE, SYNC, GROUP }
+
+	public record Stats(Mode mode, long requests, long fsyncs, long batches, double avgBatch) {}
+
+	private static final String MODE_PROP = "blobs.fs.durability";
+	private static final String GROUP_COMMIT_MS_PROP = "blobs.fs.groupCommitMs";
+	private static final int DEFAULT_GROUP_COMMIT_MS = 5;
+
+	record Request(Path path, CompletableFuture<Void> done) {}
+
+	final Mode mode;
+	final int groupCommitMs;
+	final LinkedBlockingQueue<Request> queue = new LinkedBlockingQueue<>();
+	final AtomicLong requests = new AtomicLong(), fsyncs = new AtomicLong(), batches = new AtomicLong();
+
+	public Durability() {
+		this( Mode.valueOf( Props.get(MODE_PROP, Mode.NONE.name()).toUpperCase()), Props.get(GROUP_COMMIT_MS_PROP, DEFAULT_GROUP_COMMIT_MS));
+	}
+
+	public Durability(Mode mode, int groupCommitMs) {
+		this.mode = mode;
+		this.groupCommitMs = groupCommitMs;
+		if( mode == Mode.GROUP ) {
+			var flusher = new Thread( this::flusher, "group-commit" );
+			flusher.setDaemon( true );
+			flusher.start();
+		}
+	}
+
+	/**
+	 * Completes when the contents of the file, or the entries of the directory,
+	 * are durable, according to the mode.
+	 */
+	public CompletableFuture<Void> force( Path path ) {
+		requests.incrementAndGet();
+		switch( mode ) {
+			case NONE:
+				return CompletableFuture.completedFuture( null );
+			case SYNC:
+				try {
+					fsync( path );
+					return CompletableFuture.completedFuture( null );
+				} catch( IOException x ) {
+					return CompletableFuture.failedFuture( x );
+				}
+			default:
+				var done = new CompletableFuture<Void>();
+				queue.add( new Request( path, done ));
+				return done;
+		}
+	}
+
+	public Stats stats() {
+		var b = batches.get();
+		return new Stats( mode, requests.get(), fsyncs.get(), b, b == 0 ? 0 : (double) requests.get() / b );
+	}
+
+	/*
+	 * Waits for a first request, gives others the group commit interval to join it,
+	 * then syncs each path of the batch once.
+	 */
+	private void flusher() {
+		var batch = new ArrayList<Request>();
+		for(;;) {
+			try {
+				batch.add( queue.take() );
+				TimeUnit.MILLISECONDS.sleep( groupCommitMs );
+				queue.drainTo( batch );
+
+				var byPath = new LinkedHashMap<Path, List<CompletableFuture<Void>>>();
+				for( var r : batch )
+					byPath.computeIfAbsent( r.path(), __ -> new ArrayList<>() ).add( r.done() );
+
+				byPath.forEach( (path, waiting) -> {
+					try {
+						fsync( path );
+						waiting.forEach( f -> f.complete( null ));
+					} catch( IOException x ) {
+						Log.warning(() -> String.format("fsync of %s failed: %s\n", path, x.getMessage()));
+						waiting.forEach( f -> f.completeExceptionally( x ));
+					}
+				});
+				batches.incrementAndGet();
+				batch.clear();
+			} catch( InterruptedException x ) {
+				return;
+			}
+		}
+	}
+
+	/*
+	 * Also works for directories (on Linux), so renames into them become durable.
+	 */
+	private void fsync( Path path ) throws IOException {
+		try( var channel = FileChannel.open( path, StandardOpenOption.READ )) {
+			channel.force( true );
+		}
+		fsyncs.incrementAndGet();
+	}
+}
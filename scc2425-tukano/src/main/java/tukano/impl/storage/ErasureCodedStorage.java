@@ -0,0 +1,424 @@
+package tukano.impl.storage;
+
+import static tukano.api.Result.error;
+import static tukano.api.Result.ok;
+import static tukano.api.Result.ErrorCode.BAD_REQUEST;
+import static tukano.api.Result.ErrorCode.CONFLICT;
+import static tukano.api.Result.ErrorCode.INTERNAL_ERROR;
+import static tukano.api.Result.ErrorCode.NOT_FOUND;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.logging.Logger;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+
+import tukano.api.BlobInfo;
+import tukano.api.Result;
+import utils.Hash;
+import utils.Hex;
+import utils.IO;
+import utils.Props;
+import utils.ReedSolomon;
+import utils.TryCatch;
+
+/**
+ * Splits each blob into k data fragments plus m parity fragments (Reed-Solomon),
+ * each stored in a different volume, so that any m volumes can be lost, at a
+ * disk cost of (k+m)/k instead of the N times of full replication.
+ *
+ * Blobs are cut into stripes of k cells; fragment i holds cell i of every stripe,
+ * after a small header with the size, write time and SHA-256 of the blob. Reads fetch only the cells of the
+ * stripes that overlap the requested range, from the data fragments alone, unless
+ * some are missing, in which case they are rebuilt from the parity fragments.
+ */
+public class ErasureCodedStorage implements BlobStorage {
+	private static Logger Log = Logger.getLogger(ErasureCodedStorage.class.getName());
+
+	public static final String ROOTS_PROP = "blobs.ec.roots";
+	private static final String DATA_PROP = "blobs.ec.data";
+	private static final String PARITY_PROP = "blobs.ec.parity";
+	private static final String CELL_SIZE_PROP = "blobs.ec.cellSize";
+	private static final String DEFAULT_ROOTS = "/tmp/ec0/,/tmp/ec1/,/tmp/ec2/,/tmp/ec3/,/tmp/ec4/,/tmp/ec5/";
+	private static final int DEFAULT_DATA = 4;
+	private static final int DEFAULT_PARITY = 2;
+	private static final int DEFAULT_CELL_SIZE = 64 * 1024;
+	private static final int DIGEST_SIZE = 32;
+	private static final int HEADER_SIZE = 2 * Long.BYTES + DIGEST_SIZE;
+	private static final int STRIPES_PER_READ = 4;
+	private static final int LOCK_STRIPES = 1024;
+
+	final List<BlobStorage> volumes;
+	final ReedSolomon codec;
+	final int k, m, cellSize;
+	final File spoolDir;
+	final ReentrantLock[] locks = new ReentrantLock[LOCK_STRIPES];
+
+	public ErasureCodedStorage() {
+		this( Stream.of( Props.get(ROOTS_PROP, DEFAULT_ROOTS).split(",")).map( r -> (BlobStorage) new FilesystemStorage( r.trim() )).toList(),
+				Props.get(DATA_PROP, DEFAULT_DATA), Props.get(PARITY_PROP, DEFAULT_PARITY), Props.get(CELL_SIZE_PROP, DEFAULT_CELL_SIZE));
+	}
+
+	public ErasureCodedStorage(List<BlobStorage> volumes, int k, int m, int cellSize) {
+		if( volumes.size() < k + m )
+			Log.warning(() -> String.format("%d volumes for %d+%d fragments: some volumes will hold more than one fragment\n", volumes.size(), k, m));
+
+		this.volumes = volumes;
+		this.codec = new ReedSolomon(k, m);
+		this.k = k;
+		this.m = m;
+		this.cellSize = cellSize;
+		this.spoolDir = new File( System.getProperty("java.io.tmpdir") );
+		for( int i = 0; i < locks.length; i++ )
+			locks[i] = new ReentrantLock();
+	}
+
+	/*
+	 * Encodes the blob into k+m temporary fragment files, one stripe at a time,
+	 * then writes each fragment to its volume, in parallel.
+	 * The blob is stored if at least k fragments made it; otherwise, those that did are removed.
+	 * Re-uploads are checked against the digest in the header of the existing fragments.
+	 * The check and the writes of the fragments are done under the (striped) lock of the path,
+	 * so concurrent uploads of the same blob cannot each store some of its fragments.
+	 */
+	@Override
+	public Result<Void> write(String path, InputStream in) {
+		if (path == null)
+			return error(BAD_REQUEST);
+
+		var existing = stat( path );
+		if( existing.isOK() )
+			return existing.value().digest().equals( Hex.of( Hash.sha256( in ))) ? ok() : error(CONFLICT);
+
+		var spools = new File[k + m];
+		var lock = lockOf( path );
+		try {
+			var digest = encode( in, spools );
+
+			lock.lock();
+			var winner = stat( path );
+			if( winner.isOK() )
+				return winner.value().digest().equals( digest ) ? ok() : error(CONFLICT);
+
+			var results = IntStream.range(0, k + m).parallel()
+					.mapToObj( i -> {
+						var res = store( path, i, spools[i] );
+						// left behind by an earlier upload that did not store enough of them (the blob is absent)
+						if( res.error() == CONFLICT && volumeOf( path, i ).delete( fragment( path, i )).isOK() )
+							res = store( path, i, spools[i] );
+						return res;
+					}).toList();
+
+			var stored = results.stream().filter( Result::isOK ).count();
+			if( stored >= k ) {
+				if( stored < k + m )
+					Log.warning(() -> String.format("%s stored with %d of %d fragments\n", path, stored, k + m));
+				return ok();
+			}
+
+			Log.warning(() -> String.format("%s not stored, only %d of %d fragments made it\n", path, stored, k + m));
+			for( int i = 0; i < k + m; i++ )
+				if( results.get( i ).isOK() )
+					volumeOf( path, i ).delete( fragment( path, i ));
+			return error(INTERNAL_ERROR);
+		} catch( IOException | RuntimeException x ) {
+			x.printStackTrace();
+			return error(INTERNAL_ERROR);
+		} finally {
+			if( lock.isHeldByCurrentThread() )
+				lock.unlock();
+			for( var f : spools )
+				if( f != null )
+					IO.delete( f );
+		}
+	}
+
+	private Result<Void> store( String path, int i, File spool ) {
+		try( var fin = new FileInputStream( spool )) {
+			return volumeOf( path, i ).write( fragment( path, i ), fin );
+		} catch( IOException x ) {
+			return Result.<Void>error(INTERNAL_ERROR);
+		}
+	}
+
+	/*
+	 * Stripes the contents into the fragment files, returning their digest.
+	 */
+	private String encode( InputStream in, File[] spools ) throws IOException {
+		var channels = new FileChannel[k + m];
+		try {
+			for( int i = 0; i < k + m; i++ ) {
+				spools[i] = File.createTempFile("fragment", null, spoolDir);
+				channels[i] = FileChannel.open( spools[i].toPath(), StandardOpenOption.WRITE );
+				channels[i].position( HEADER_SIZE );
+			}
+
+			var md = TryCatch.maybe( () -> MessageDigest.getInstance("SHA-256"));
+			var din = new DigestInputStream( in, md );
+
+			var shards = new byte[k + m][cellSize];
+			long size = 0;
+			for(;;) {
+				int n = 0;
+				for( int j = 0; j < k; j++ ) {
+					var read = din.readNBytes( shards[j], 0, cellSize );
+					Arrays.fill( shards[j], read, cellSize, (byte) 0 );
+					n += read;
+				}
+				if( n == 0 )
+					break;
+
+				codec.encodeParity( shards, 0, cellSize );
+				for( int i = 0; i < k + m; i++ )
+					writeFully( channels[i], ByteBuffer.wrap( shards[i] ));
+
+				size += n;
+				if( n < k * cellSize )
+					break;
+			}
+			var digest = md.digest();
+			var header = ByteBuffer.allocate( HEADER_SIZE ).putLong( size ).putLong( System.currentTimeMillis() ).put( digest ).flip();
+			for( var ch : channels )
+				ch.write( header.duplicate(), 0 );
+
+			return Hex.of( digest );
+		} finally {
+			for( var ch : channels )
+				if( ch != null )
+					IO.close( ch );
+		}
+	}
+
+	@Override
+	public Result<Void> delete(String path) {
+		if (path == null)
+			return error(BAD_REQUEST);
+
+		List<Result<Void>> results;
+		if( path.contains("/") ) {
+			var lock = lockOf( path );
+			lock.lock();
+			try {
+				results = IntStream.range(0, k + m).parallel().mapToObj( i -> volumeOf( path, i ).delete( fragment( path, i ) )).toList();
+			} finally {
+				lock.unlock();
+			}
+		} else
+			results = volumes.parallelStream().map( v -> v.delete( path ) ).toList();
+
+		if( results.stream().anyMatch( Result::isOK ))
+			return ok();
+		return results.stream().allMatch( r -> r.error() == NOT_FOUND ) ? error(NOT_FOUND) : error(INTERNAL_ERROR);
+	}
+
+	@Override
+	public Result<Long> size(String path) {
+		return Result.errorOrValue( stat( path ), BlobInfo::size );
+	}
+
+	/*
+	 * Every fragment carries the metadata of the blob. The blob exists once k fragments agree on it:
+	 * with fewer, it cannot be read back (eg. fragments left behind by a failed upload).
+	 */
+	@Override
+	public Result<BlobInfo> stat(String path) {
+		if (path == null)
+			return error(BAD_REQUEST);
+
+		BlobInfo info = null;
+		int agreeing = 0;
+		for( int i = 0; i < k + m && agreeing < k; i++ ) {
+			var res = volumeOf( path, i ).readStream( fragment( path, i ), 0, HEADER_SIZE );
+			if( res.isOK() )
+				try( var in = res.value() ) {
+					var header = ByteBuffer.wrap( in.readNBytes( HEADER_SIZE ));
+					var size = header.getLong();
+					var lastModified = header.getLong();
+					var digest = new byte[DIGEST_SIZE];
+					header.get( digest );
+					if( info == null )
+						info = new BlobInfo( size, Hex.of( digest ), lastModified );
+					if( info.digest().equals( Hex.of( digest )))
+						agreeing++;
+				} catch( IOException | RuntimeException x ) {
+					continue;
+				}
+		}
+		return agreeing >= k ? ok( info ) : error(NOT_FOUND);
+	}
+
+	@Override
+	public Result<InputStream> readStream(String path, long offset, long length) {
+		if (path == null || offset < 0 || length < 0)
+			return error(BAD_REQUEST);
+
+		var present = new boolean[k + m];
+		int available = 0;
+		for( int i = 0; i < k + m; i++ )
+			if( present[i] = volumeOf( path, i ).size( fragment( path, i ) ).isOK() )
+				available++;
+
+		if( available == 0 )
+			return error(NOT_FOUND);
+		if( available < k ) {
+			var n = available;
+			Log.severe(() -> String.format("%s is lost: only %d of %d fragments left\n", path, n, k + m));
+			return error(INTERNAL_ERROR);
+		}
+
+		var size = size( path );
+		if( ! size.isOK() )
+			return error( size.error() );
+
+		var start = Math.min( offset, size.value() );
+		var end = start + Math.min( length, size.value() - start );
+		return ok( new StripeInputStream( path, present, start, end ) );
+	}
+
+	@Override
+	public Result<Void> read(String path, Consumer<byte[]> sink) {
+		var res = readStream( path );
+		if( ! res.isOK() )
+			return error( res.error() );
+
+		try( var in = res.value() ) {
+			IO.read( in, IO.BUFFER_SIZE, sink );
+			return ok();
+		} catch( IOException | RuntimeException x ) {
+			x.printStackTrace();
+			return error(INTERNAL_ERROR);
+		}
+	}
+
+	private ReentrantLock lockOf( String path ) {
+		return locks[ Math.floorMod( path.hashCode(), locks.length ) ];
+	}
+
+	/*
+	 * The fragments of a blob go to consecutive volumes, starting at one picked by its path,
+	 * so that the parity (and the reconstruction work) is spread across all of them.
+	 */
+	private BlobStorage volumeOf( String path, int fragment ) {
+		return volumes.get( Math.floorMod( path.hashCode() + fragment, volumes.size() ));
+	}
+
+	private static String fragment( String path, int i ) {
+		return path + "." + i;
+	}
+
+	private static void writeFully( FileChannel ch, ByteBuffer buf ) throws IOException {
+		while( buf.hasRemaining() )
+			ch.write( buf );
+	}
+
+	/*
+	 * Serves [start, end) of a blob, decoding a few stripes at a time.
+	 */
+	class StripeInputStream extends InputStream {
+		final String path;
+		final boolean[] present;
+		final boolean degraded;
+		final long stripeSize;
+		final long end;
+		long pos;
+
+		byte[] buffer = new byte[0];
+		long bufferStart;
+
+		StripeInputStream( String path, boolean[] present, long start, long end ) {
+			this.path = path;
+			this.pos = start;
+			this.end = end;
+			this.stripeSize = (long) k * cellSize;
+
+			var degraded = false;
+			for( int j = 0; j < k; j++ )
+				degraded |= ! present[j];
+			this.degraded = degraded;
+
+			// only the first k fragments that are present are needed
+			this.present = present.clone();
+			for( int i = 0, n = 0; i < k + m; i++ )
+				if( this.present[i] && ++n > k )
+					this.present[i] = false;
+		}
+
+		@Override
+		public int read() throws IOException {
+			var b = new byte[1];
+			return read( b, 0, 1 ) < 0 ? -1 : b[0] & 0xFF;
+		}
+
+		@Override
+		public int read( byte[] b, int off, int len ) throws IOException {
+			if( pos >= end )
+				return -1;
+			if( len == 0 )
+				return 0;
+
+			if( pos < bufferStart || pos >= bufferStart + buffer.length )
+				fill();
+
+			var n = (int) Math.min( len, Math.min( end - pos, bufferStart + buffer.length - pos ));
+			System.arraycopy( buffer, (int) (pos - bufferStart), b, off, n );
+			pos += n;
+			return n;
+		}
+
+		@Override
+		public long skip( long n ) {
+			var skipped = Math.max( 0, Math.min( n, end - pos ));
+			pos += skipped;
+			return skipped;
+		}
+
+		@Override
+		public int available() {
+			return (int) Math.min( Integer.MAX_VALUE, Math.max( 0, Math.min( end - pos, bufferStart + buffer.length - pos )));
+		}
+
+		/*
+		 * Loads the stripes from the one holding pos onwards, reading from each fragment
+		 * only the cells of those stripes, and rebuilding the missing data cells, if any.
+		 */
+		private void fill() throws IOException {
+			var first = pos / stripeSize;
+			var last = Math.min( first + STRIPES_PER_READ, (end + stripeSize - 1) / stripeSize );
+			var stripes = (int) (last - first);
+			var len = stripes * cellSize;
+
+			var shards = new byte[k + m][];
+			for( int i = 0; i < k + m; i++ ) {
+				shards[i] = new byte[len];
+				if( ! present[i] )
+					continue;
+
+				var res = volumeOf( path, i ).readStream( fragment( path, i ), HEADER_SIZE + first * cellSize, len );
+				if( ! res.isOK() )
+					throw new IOException( String.format("fragment %d of %s: %s", i, path, res.error()));
+				try( var in = res.value() ) {
+					in.readNBytes( shards[i], 0, len );
+				}
+			}
+			if( degraded )
+				codec.decodeMissing( shards, present, 0, len );
+
+			buffer = new byte[(int) (stripes * stripeSize)];
+			for( int s = 0; s < stripes; s++ )
+				for( int j = 0; j < k; j++ )
+					System.arraycopy( shards[j], s * cellSize, buffer, (int) (s * stripeSize + j * cellSize), cellSize );
+			bufferStart = first * stripeSize;
+		}
+	}
+}
@@ -0,0 +1,141 @@
+package tukano.impl.storage;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.util.function.LongConsumer;
+
+import utils.IO;
+import utils.Props;
+
+/**
+ * An InputStream over a byte range of a file, using positioned reads.
+ * 
+ * transferTo() bypasses the intermediate heap buffer of the default implementation, 
+ * either by handing the range to FileChannel.transferTo (sendfile, when the target allows it) 
+ * or by writing memory-mapped slices of the file straight into the target.
+ */
+public class FileRangeInputStream extends InputStream implements ZeroCopyStream {
+	static final long MAP_WINDOW = 16 * 1024 * 1024;
+
+	static final String TRANSFER_MODE_PROP = "blobs.transferMode";
+
+	public enum TransferMode { STREAM, TRANSFER_TO, MMAP;
+		
+		public static TransferMode configured() {
+			return valueOf( Props.get(TRANSFER_MODE_PROP, TRANSFER_TO.name()));
+		}
+	};
+	
+	final FileChannel channel;
+	final TransferMode mode;
+	final LongConsumer onClose;
+	final boolean shared;
+	final long start, end;
+	long position;
+	boolean closed;
+
+	public FileRangeInputStream(FileChannel channel, long offset, long length, TransferMode mode) throws IOException {
+		this(channel, offset, length, mode, __ -> {});
+	}
+
+	/**
+	 * @param onClose receives the number of bytes consumed, when the stream is closed
+	 */
+	public FileRangeInputStream(FileChannel channel, long offset, long length, TransferMode mode, LongConsumer onClose) throws IOException {
+		this(channel, offset, length, mode, onClose, false);
+	}
+
+	/**
+	 * Over a channel shared with other readers, which is left open when the stream is closed.
+	 * @param onClose runs once, when the stream is closed (eg. to release the channel)
+	 */
+	public static FileRangeInputStream shared(FileChannel channel, long offset, long length, TransferMode mode, Runnable onClose) throws IOException {
+		return new FileRangeInputStream(channel, offset, length, mode, __ -> onClose.run(), true);
+	}
+
+	private FileRangeInputStream(FileChannel channel, long offset, long length, TransferMode mode, LongConsumer onClose, boolean shared) throws IOException {
+		this.channel = channel;
+		this.shared = shared;
+		this.mode = mode;
+		this.onClose = onClose;
+		this.start = this.position = offset;
+		this.end = offset + Math.min(length, Math.max(0, channel.size() - offset));
+	}
+
+	@Override
+	public int read() throws IOException {
+		var b = new byte[1];
+		return read(b, 0, 1) < 0 ? -1 : b[0] & 0xFF;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		if (position >= end)
+			return -1;
+		
+		int n = channel.read(ByteBuffer.wrap(b, off, (int) Math.min(len, end - position)), position);
+		if (n > 0)
+			position += n;
+		return n;
+	}
+
+	@Override
+	public long skip(long n) {
+		var skipped = Math.max(0, Math.min(n, end - position));
+		position += skipped;
+		return skipped;
+	}
+
+	@Override
+	public int available() {
+		return (int) Math.min(Integer.MAX_VALUE, end - position);
+	}
+
+	@Override
+	public long transferTo(OutputStream out) throws IOException {
+		return transferTo(out, end - position);
+	}
+
+	@Override
+	public long transferTo(OutputStream out, long count) throws IOException {
+		var from = position;
+		var to = position + Math.max(0, Math.min(count, end - position));
+		var target = Channels.newChannel(out);
+		switch (mode) {
+			case TRANSFER_TO -> {
+				while (position < to)
+					position += channel.transferTo(position, to - position, target);
+			}
+			case MMAP -> {
+				while (position < to) {
+					var slice = channel.map(MapMode.READ_ONLY, position, Math.min(MAP_WINDOW, to - position));
+					while (slice.hasRemaining())
+						position += target.write(slice);
+				}
+			}
+			default -> {
+				var buf = new byte[(int) Math.min(IO.BUFFER_SIZE, Math.max(1, to - position))];
+				int n;
+				while (position < to && (n = read(buf, 0, (int) Math.min(buf.length, to - position))) > 0)
+					out.write(buf, 0, n);
+			}
+		}
+		return position - from;
+	}
+
+	@Override
+	public void close() throws IOException {
+		if (closed)
+			return;
+
+		closed = true;
+		if (!shared)
+			channel.close();
+		onClose.accept(position - start);
+	}
+}
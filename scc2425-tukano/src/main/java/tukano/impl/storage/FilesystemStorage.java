@@ -1,6 +1,7 @@
 package tukano.impl.storage;
 
 
+import static java.util.concurrent.CompletableFuture.completedFuture;
 import static tukano.api.Result.error;
 import static tukano.api.Result.ok;
 import static tukano.api.Result.ErrorCode.BAD_REQUEST;
@@ -10,96 +11,634 @@ import static tukano.api.Result.ErrorCode.NOT_FOUND;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.FileVisitResult;
 import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
-import java.util.Arrays;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
 import java.util.Comparator;
+import java.util.List;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.function.Consumer;
+import java.util.logging.Logger;
 
+import tukano.api.BlobInfo;
 import tukano.api.Result;
+import tukano.impl.storage.FileRangeInputStream.TransferMode;
 import utils.Hash;
+import utils.Hex;
 import utils.IO;
+import utils.Props;
+import utils.TryCatch;
 
+/**
+ * Stores each blob in its own file.
+ *
+ * A blob path of the form owner/name is laid out as root/hh/owner/hh/name, where each hh
+ * is a hash-based fan-out directory, so neither the number of owners nor the number of
+ * blobs of a heavy creator puts too many entries in a single directory.
+ *
+ * Blobs are spread across the configured volumes (blobs.fs.roots) with consistent hashing.
+ * Each volume has its own I/O thread pool. Adding a volume rebalances, in the background,
+ * only the blobs that now belong to it; until then, they are still found in their old volume.
+ *
+ * The size, SHA-256 and write time of each blob are recorded in a small sidecar file, so
+ * they can be served (eg. as validators) and checked against re-uploads without reading the blob.
+ * Writes go to a temporary file, renamed into place when complete, so a blob is either
+ * absent or whole. Only the check for an existing blob and the rename are done under a
+ * (striped) per-path lock, so concurrent uploads of the same blob are decided as if serialized:
+ * the first one wins, the others succeed if their contents match, or fail with CONFLICT.
+ *
+ * Writes are acknowledged according to the durability mode (see Durability): the temporary
+ * file is synced before the rename, and the directory after it. Sidecars are not synced,
+ * since they are rebuilt if lost.
+ */
 public class FilesystemStorage implements BlobStorage {
-	private final String rootDir;
+	private static Logger Log = Logger.getLogger(FilesystemStorage.class.getName());
+
+	private final TransferMode transferMode;
+	private final List<Volume> volumes = new CopyOnWriteArrayList<>();
+	private volatile NavigableMap<Integer, Volume> ring = new TreeMap<>();
+	private final Set<File> createdDirs = ConcurrentHashMap.newKeySet();
+	private final int volumeThreads;
+	private final ReentrantLock[] locks;
+	private final Durability durability;
+
 	private static final int CHUNK_SIZE = 4096;
+	private static final int UPLOAD_CHUNK_SIZE = 256 * 1024;
+	private static final int FAN_OUT = 256;
+	private static final int VIRTUAL_NODES = 128;
+	private static final String ROOTS_PROP = "blobs.fs.roots";
+	private static final String VOLUME_THREADS_PROP = "blobs.fs.volumeThreads";
+	private static final String REPORT_INTERVAL_PROP = "blobs.fs.reportInterval";
+	private static final String LOCK_STRIPES_PROP = "blobs.fs.lockStripes";
 	private static final String DEFAULT_ROOT_DIR = "/tmp/";
+	private static final String INFO_PREFIX = ".", INFO_SUFFIX = ".info", INFO_SEP = "\t", TMP_SUFFIX = ".tmp";
+	private static final int DEFAULT_VOLUME_THREADS = 8;
+	private static final int DEFAULT_REPORT_INTERVAL = 60;
+	private static final int DEFAULT_LOCK_STRIPES = 1024;
 
 	public FilesystemStorage() {
-		this.rootDir = DEFAULT_ROOT_DIR;
+		this( Props.get(ROOTS_PROP, DEFAULT_ROOT_DIR).split(","));
+	}
+
+	public FilesystemStorage(String... roots) {
+		this.transferMode = TransferMode.configured();
+		this.volumeThreads = Props.get(VOLUME_THREADS_PROP, DEFAULT_VOLUME_THREADS);
+		this.durability = new Durability();
+		this.locks = new ReentrantLock[ Props.get(LOCK_STRIPES_PROP, DEFAULT_LOCK_STRIPES) ];
+		for( int i = 0; i < locks.length; i++ )
+			locks[i] = new ReentrantLock();
+		for( var root : roots )
+			addToRing( root.trim() );
+
+		if( volumes.size() > 1 )
+			daemon().newThread( this::rebalance ).start();
+
+		var interval = Props.get(REPORT_INTERVAL_PROP, DEFAULT_REPORT_INTERVAL);
+		if( interval > 0 )
+			Executors.newSingleThreadScheduledExecutor( daemon() )
+				.scheduleAtFixedRate( () -> Log.info(() -> String.format("volumes: %s, durability: %s\n", report(), durability.stats())), interval, interval, TimeUnit.SECONDS);
 	}
-	
+
 	@Override
-	public Result<Void> write(String path, byte[] bytes) {
+	public Result<Void> write(String path, InputStream in) {
 		if (path == null)
 			return error(BAD_REQUEST);
 
-		var file = toFile( path );
+		var existing = locate( path );
+		if (existing != null)
+			return matches( existing, Hex.of(Hash.sha256(in)) );
 
-		if (file.exists()) {
-			if (Arrays.equals(Hash.sha256(bytes), Hash.sha256(IO.read(file))))
-				return ok();
-			else
-				return error(CONFLICT);
+		var volume = volumeOf( path );
+		var file = toFile( volume, path );
+		File tmp = null;
+		try {
+			tmp = tempFile( file );
+			var md = sha256();
+			var bytes = copy( new DigestInputStream( in, md ), tmp, volume );
+			var written = tmp;
+			return volume.execute( () -> {
+				durability.force( written.toPath() ).join();
+				var res = publish( path, volume, file, written, new BlobInfo( bytes, Hex.of( md.digest() ), written.lastModified() ));
+				if( res.isOK() )
+					durability.force( file.getParentFile().toPath() ).join();
+				return res;
+			});
+		} catch( IOException | RuntimeException x ) {
+			x.printStackTrace();
+			return error(INTERNAL_ERROR);
+		} finally {
+			if( tmp != null )
+				IO.delete( tmp );
+		}
+	}
 
+	/*
+	 * The upload is read from the client on the calling thread; only the write of each chunk goes to
+	 * the pool of the volume, so a slow client does not hold one of its threads.
+	 */
+	private long copy( InputStream in, File tmp, Volume volume ) throws IOException {
+		try( var channel = FileChannel.open( tmp.toPath(), StandardOpenOption.WRITE )) {
+			var chunk = new byte[UPLOAD_CHUNK_SIZE];
+			long total = 0;
+			int n;
+			while( (n = in.readNBytes( chunk, 0, chunk.length )) > 0 ) {
+				var buf = ByteBuffer.wrap( chunk, 0, n );
+				var res = volume.execute( () -> {
+					while( buf.hasRemaining() )
+						channel.write( buf );
+					return ok();
+				});
+				if( ! res.isOK() )
+					throw new IOException( "write of " + tmp + " failed" );
+				total += n;
+			}
+			return total;
+		}
+	}
+
+	/*
+	 * Same as write(), but the contents go to the temporary file through an AsynchronousFileChannel
+	 * that completes in the pool of the volume, and no thread waits for the fsyncs, if any.
+	 * The client stream is read in the uploads pool, not in that of the volume.
+	 * Re-uploads go through the blocking conflict check.
+	 */
+	@Override
+	public CompletableFuture<Result<Void>> writeAsync(String path, InputStream in) {
+		if (path == null)
+			return completedFuture( error(BAD_REQUEST) );
+
+		var existing = locate( path );
+		if (existing != null)
+			return CompletableFuture.supplyAsync( () -> write( path, in ), AsyncIO.uploads() );
+
+		var volume = volumeOf( path );
+		var file = toFile( volume, path );
+		File tmp = null;
+		try {
+			tmp = tempFile( file );
+			var channel = AsynchronousFileChannel.open( tmp.toPath(), Set.of( StandardOpenOption.WRITE ), volume.pool );
+			var md = sha256();
+			var written = tmp;
+			return AsyncIO.copy( in, channel, md, AsyncIO.uploads() )
+				.thenCompose( bytes -> durability.force( written.toPath() ).thenApply( __ -> bytes ))
+				.thenApplyAsync( bytes -> {
+					try {
+						return publish( path, volume, file, written, new BlobInfo( bytes, Hex.of( md.digest() ), written.lastModified() ));
+					} catch( IOException x ) {
+						throw new CompletionException( x );
+					}
+				}, volume.pool )
+				.thenCompose( res -> res.isOK() ? durability.force( file.getParentFile().toPath() ).thenApply( __ -> res ) : completedFuture( res ))
+				.handle( (res, x) -> {
+					IO.close( channel );
+					IO.delete( written );
+					if( x != null ) {
+						x.printStackTrace();
+						return error(INTERNAL_ERROR);
+					}
+					return res;
+				});
+		} catch( IOException | RuntimeException x ) {
+			x.printStackTrace();
+			if( tmp != null )
+				IO.delete( tmp );
+			return completedFuture( error(INTERNAL_ERROR) );
 		}
-		IO.write(file, bytes);
-		return ok();
+	}
+
+	/*
+	 * Turns the fully written temporary file into the blob, unless a concurrent upload got there first.
+	 * Under the lock of the path, the sidecar is saved and the file renamed into place, so readers
+	 * see either no blob or a whole one, with its metadata. The (long) copy is done outside the lock.
+	 */
+	private Result<Void> publish( String path, Volume volume, File file, File tmp, BlobInfo info ) throws IOException {
+		var lock = lockOf( path );
+		lock.lock();
+		try {
+			var existing = locate( path );
+			if( existing != null )
+				return matches( existing, info.digest() );
+
+			saveInfo( file, info );
+			try {
+				Files.move( tmp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE );
+			} catch( IOException x ) {
+				IO.delete( infoFile( file ) );
+				throw x;
+			}
+			volume.writeDone( info.size() );
+			return ok();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private Result<Void> matches( File existing, String digest ) {
+		return digest.equals( info( existing ).digest() ) ? ok() : error(CONFLICT);
 	}
 
 	@Override
-	public Result<byte[]> read(String path) {
+	public Result<Long> size(String path) {
 		if (path == null)
 			return error(BAD_REQUEST);
-		
-		var file = toFile( path );
-		if( ! file.exists() )
+
+		var file = locate( path );
+		if( file == null )
 			return error(NOT_FOUND);
-		
-		var bytes = IO.read(file);
-		return bytes != null ? ok( bytes ) : error( INTERNAL_ERROR );
+
+		return ok( file.length() );
+	}
+
+	@Override
+	public Result<BlobInfo> stat(String path) {
+		if (path == null)
+			return error(BAD_REQUEST);
+
+		var file = locate( path );
+		if( file == null )
+			return error(NOT_FOUND);
+
+		return ok( info( file ) );
+	}
+
+	@Override
+	public Result<InputStream> readStream(String path, long offset, long length) {
+		if (path == null || offset < 0 || length < 0)
+			return error(BAD_REQUEST);
+
+		var file = locate( path );
+		if( file == null )
+			return error(NOT_FOUND);
+
+		var volume = volumeOf( file );
+		return volume.execute( () -> {
+			try {
+				var channel = FileChannel.open( file.toPath(), StandardOpenOption.READ );
+				return ok( new FileRangeInputStream( channel, offset, length, transferMode, volume::readDone ) );
+			} catch( NoSuchFileException x ) {
+				return error(NOT_FOUND);
+			}
+		});
+	}
+
+	@Override
+	public CompletableFuture<Result<ByteBuffer>> readAsync(String path, long offset, int length) {
+		if (path == null || offset < 0 || length < 0)
+			return completedFuture( error(BAD_REQUEST) );
+
+		var file = locate( path );
+		if( file == null )
+			return completedFuture( error(NOT_FOUND) );
+
+		var volume = volumeOf( file );
+		try {
+			var channel = AsynchronousFileChannel.open( file.toPath(), Set.of( StandardOpenOption.READ ), volume.pool );
+			var buf = ByteBuffer.allocate( (int) Math.min( length, Math.max( 0, channel.size() - offset )));
+			return AsyncIO.readFully( channel, buf, offset ).handle( (n, x) -> {
+				IO.close( channel );
+				if( x != null ) {
+					x.printStackTrace();
+					return error(INTERNAL_ERROR);
+				}
+				volume.readDone( n );
+				return ok( buf.flip() );
+			});
+		} catch( NoSuchFileException x ) {
+			return completedFuture( error(NOT_FOUND) );
+		} catch( IOException x ) {
+			x.printStackTrace();
+			return completedFuture( error(INTERNAL_ERROR) );
+		}
 	}
 
 	@Override
 	public Result<Void> read(String path, Consumer<byte[]> sink) {
 		if (path == null)
 			return error(BAD_REQUEST);
-		
-		var file = toFile( path );
-		if( ! file.exists() )
+
+		var file = locate( path );
+		if( file == null )
 			return error(NOT_FOUND);
-		
+
 		IO.read( file, CHUNK_SIZE, sink );
 		return ok();
 	}
-	
+
+	/*
+	 * Deletes the blob at the given path, or all the blobs under it, if it is a prefix (eg. a userId).
+	 * The blobs of an owner are spread across all volumes. A single blob is deleted
+	 * under its lock, so it does not interleave with an upload of the same path.
+	 */
 	@Override
 	public Result<Void> delete(String path) {
 		if (path == null)
 			return error(BAD_REQUEST);
 
+		var lock = path.contains("/") ? lockOf( path ) : null;
+		if( lock != null )
+			lock.lock();
 		try {
-			var file = toFile( path );
-			Files.walk(file.toPath())
-			.sorted(Comparator.reverseOrder())
-			.map(Path::toFile)
-			.forEach(File::delete);
-		} catch (IOException e) {
-			e.printStackTrace();
-			return error(INTERNAL_ERROR);
+			return deleteAll( path );
+		} finally {
+			if( lock != null )
+				lock.unlock();
 		}
-		return ok();
 	}
-	
-	private File toFile(String path) {
-		var res = new File( rootDir + path );
-		
-		var parent = res.getParentFile();
-		if( ! parent.exists() )
-			parent.mkdirs();
-		
-		return res;
+
+	private Result<Void> deleteAll( String path ) {
+		var found = false;
+		for( var volume : volumes ) {
+			var file = toFile( volume, path );
+			if( ! file.exists() )
+				continue;
+
+			found = true;
+			IO.delete( infoFile( file ) );
+			try (var files = Files.walk(file.toPath())) {
+				files.sorted(Comparator.reverseOrder())
+					.map(Path::toFile)
+					.forEach(File::delete);
+			} catch (IOException e) {
+				e.printStackTrace();
+				return error(INTERNAL_ERROR);
+			} finally {
+				createdDirs.removeIf( dir -> dir.toPath().startsWith( file.toPath() ));
+			}
+		}
+		return found ? ok() : error(NOT_FOUND);
+	}
+
+	/**
+	 * Adds a volume to the ring, and moves to it, in the background, the blobs it now owns.
+	 */
+	public void addVolume( String root ) {
+		addToRing( root );
+		daemon().newThread( this::rebalance ).start();
+	}
+
+	public Durability.Stats durabilityStats() {
+		return durability.stats();
+	}
+
+	/**
+	 * Per-volume throughput and queue depth.
+	 */
+	public List<Volume.Stats> report() {
+		return volumes.stream().map( Volume::stats ).toList();
+	}
+
+	synchronized private void addToRing( String root ) {
+		var volume = new Volume( new File( root ), volumeThreads );
+		var newRing = new TreeMap<>( ring );
+		for( int i = 0; i < VIRTUAL_NODES; i++ )
+			newRing.put( hash( root + "#" + i ), volume );
+
+		volumes.add( volume );
+		ring = newRing;
+	}
+
+	/*
+	 * Moves every blob that is not in the volume that owns it, according to the current ring.
+	 */
+	private void rebalance() {
+		for( var volume : volumes ) {
+			try {
+				Files.walkFileTree( volume.root.toPath(), new SimpleFileVisitor<>() {
+					@Override
+					public FileVisitResult visitFile( Path f, BasicFileAttributes attrs ) {
+						if( attrs.isRegularFile() )
+							rebalance( volume, f );
+						return FileVisitResult.CONTINUE;
+					}
+
+					@Override
+					public FileVisitResult visitFileFailed( Path f, IOException x ) {
+						return FileVisitResult.CONTINUE; // deleted (or moved) meanwhile...
+					}
+				});
+			} catch( IOException | RuntimeException x ) {
+				Log.warning(() -> String.format("rebalance of %s failed: %s\n", volume, x.getMessage()));
+			}
+		}
+		Log.info(() -> String.format("rebalance done: %s\n", report()));
+	}
+
+	private void rebalance( Volume volume, Path f ) {
+		var rel = volume.root.toPath().relativize( f );
+		if( rel.getNameCount() != 4 || rel.getName(3).toString().startsWith( INFO_PREFIX ))
+			return;
+
+		var path = rel.getName(1) + "/" + rel.getName(3);
+		if( ! toFile( volume, path ).toPath().equals( f ) )
+			return; // not a blob...
+
+		var target = volumeOf( path );
+		if( target != volume )
+			target.execute( () -> {
+				var lock = lockOf( path );
+				lock.lock();
+				try {
+					if( ! Files.exists( f ) )
+						return ok(); // deleted meanwhile...
+					move( f.toFile(), toFile( target, path ));
+					return ok();
+				} finally {
+					lock.unlock();
+				}
+			});
+	}
+
+	/*
+	 * Moves a blob to another volume, so that a reader, which looks in the new volume first, finds either
+	 * no blob there or a whole one: the sidecar goes first, then the contents are renamed into place,
+	 * after being copied next to it and synced, if on another disk. The source is deleted last.
+	 */
+	private void move( File src, File dst ) throws IOException {
+		mkdirs( dst.getParentFile() );
+		saveInfo( dst, info( src ));
+		try {
+			try {
+				Files.move( src.toPath(), dst.toPath(), StandardCopyOption.ATOMIC_MOVE );
+			} catch( AtomicMoveNotSupportedException x ) {
+				var tmp = tempFile( dst );
+				try {
+					Files.copy( src.toPath(), tmp.toPath(), StandardCopyOption.REPLACE_EXISTING );
+					try( var channel = FileChannel.open( tmp.toPath(), StandardOpenOption.WRITE )) {
+						channel.force( true );
+					}
+					Files.move( tmp.toPath(), dst.toPath(), StandardCopyOption.ATOMIC_MOVE );
+				} finally {
+					IO.delete( tmp );
+				}
+			}
+		} catch( IOException x ) {
+			IO.delete( infoFile( dst ));
+			throw x;
+		}
+		IO.delete( infoFile( src ));
+		IO.delete( src );
 	}
 
-	
+	/*
+	 * Finds the file of a blob, looking first in the volume that owns it,
+	 * then in the others, in case it has not been rebalanced yet.
+	 */
+	private File locate( String path ) {
+		var primary = volumeOf( path );
+		var file = toFile( primary, path );
+		if( file.exists() )
+			return file;
+
+		if( volumes.size() > 1 )
+			for( var volume : volumes )
+				if( volume != primary && (file = toFile( volume, path )).exists() )
+					return file;
+
+		return null;
+	}
+
+	private Volume volumeOf( String path ) {
+		var e = ring.ceilingEntry( hash( path ) );
+		return e != null ? e.getValue() : ring.firstEntry().getValue();
+	}
+
+	private Volume volumeOf( File file ) {
+		for( var volume : volumes )
+			if( file.toPath().startsWith( volume.root.toPath() ))
+				return volume;
+		return volumes.get(0);
+	}
+
+	/*
+	 * Maps owner/name to root/hh/owner/hh/name; a lone owner maps to its directory.
+	 */
+	private File toFile(Volume volume, String path) {
+		var parts = path.split("/", 2);
+		var owner = parts[0];
+
+		var dir = new File( volume.root, shard( owner.hashCode() ) + "/" + owner );
+		if( parts.length == 1 )
+			return dir;
+
+		return new File( dir, shard( parts[1].hashCode() ) + "/" + parts[1] );
+	}
+
+	private static String shard( int hash ) {
+		return String.format("%02x", Math.floorMod( (hash * 0x9E3779B9) >>> 16, FAN_OUT ));
+	}
+
+	/*
+	 * murmur3 finalizer over String.hashCode, to spread the ring positions
+	 */
+	private static int hash( String s ) {
+		int h = s.hashCode();
+		h ^= h >>> 16;
+		h *= 0x85ebca6b;
+		h ^= h >>> 13;
+		h *= 0xc2b2ae35;
+		h ^= h >>> 16;
+		return h;
+	}
+
+	/*
+	 * The metadata of a blob is kept in a sidecar file, next to it, written after its contents.
+	 * Blobs without one (eg. written before it existed, or interrupted) get it rebuilt on first use.
+	 */
+	private BlobInfo info( File file ) {
+		var sidecar = infoFile( file );
+		try {
+			var fields = Files.readString( sidecar.toPath() ).trim().split( INFO_SEP );
+			if( fields.length == 3 )
+				return new BlobInfo( Long.parseLong( fields[0] ), fields[1], Long.parseLong( fields[2] ));
+		} catch( NoSuchFileException x ) {
+			// rebuilt below...
+		} catch( IOException | NumberFormatException x ) {
+			Log.warning(() -> String.format("bad metadata for %s: %s\n", file, x.getMessage()));
+		}
+		var info = new BlobInfo( file.length(), Hex.of( Hash.sha256( file ) ), file.lastModified() );
+		try {
+			saveInfo( file, info );
+		} catch( IOException x ) {
+			Log.warning(() -> String.format("cannot save metadata for %s: %s\n", file, x.getMessage()));
+		}
+		return info;
+	}
+
+	/*
+	 * Replaced atomically too, so a reader never sees it half written.
+	 */
+	private static void saveInfo( File file, BlobInfo info ) throws IOException {
+		var sidecar = infoFile( file );
+		var tmp = File.createTempFile( sidecar.getName() + ".", TMP_SUFFIX, file.getParentFile() );
+		try {
+			Files.writeString( tmp.toPath(), String.join( INFO_SEP, "" + info.size(), info.digest(), "" + info.lastModified() ));
+			Files.move( tmp.toPath(), sidecar.toPath(), StandardCopyOption.ATOMIC_MOVE );
+		} finally {
+			IO.delete( tmp );
+		}
+	}
+
+	private static File infoFile( File file ) {
+		return new File( file.getParentFile(), INFO_PREFIX + file.getName() + INFO_SUFFIX );
+	}
+
+	/*
+	 * Uploads are written next to their final place, so the rename stays within the directory.
+	 * Their name starts with a dot, so they are never taken for blobs.
+	 */
+	private File tempFile( File file ) throws IOException {
+		mkdirs( file.getParentFile() );
+		return File.createTempFile( INFO_PREFIX + file.getName() + ".", TMP_SUFFIX, file.getParentFile() );
+	}
+
+	/*
+	 * Striped locks: paths that share a lock only contend when published or deleted at the same time.
+	 */
+	private ReentrantLock lockOf( String path ) {
+		return locks[ Math.floorMod( hash( path ), locks.length ) ];
+	}
+
+	private static MessageDigest sha256() {
+		return TryCatch.maybe( () -> MessageDigest.getInstance("SHA-256"));
+	}
+
+	/*
+	 * Directories are only created on the write path, once...
+	 */
+	private void mkdirs( File dir ) {
+		if( ! createdDirs.contains( dir ) ) {
+			dir.mkdirs();
+			createdDirs.add( dir );
+		}
+	}
+
+	private static ThreadFactory daemon() {
+		return r -> {
+			var t = Executors.defaultThreadFactory().newThread(r);
+			t.setDaemon(true);
+			return t;
+		};
+	}
 }
@@ -0,0 +1,236 @@
+package tukano.impl.storage;
+
+import static tukano.api.Result.error;
+import static tukano.api.Result.ok;
+import static tukano.api.Result.ErrorCode.BAD_REQUEST;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.SequenceInputStream;
+import java.nio.ByteBuffer;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Consumer;
+import java.util.logging.Logger;
+
+import tukano.api.BlobInfo;
+import tukano.api.Result;
+import utils.Props;
+
+/**
+ * A BlobStorage decorator that keeps the first few KB of recently published or
+ * soon to be watched blobs in memory, so that playback can start without waiting for the disk.
+ *
+ * Heads are loaded asynchronously, either after an upload or when prefetch() is
+ * hinted (eg. for the top entries of a feed). Reads that start within the head are
+ * served from memory, followed by the remainder from the underlying storage.
+ */
+public class HeadCachingStorage implements BlobStorage {
+	private static Logger Log = Logger.getLogger(HeadCachingStorage.class.getName());
+
+	public static final String HEAD_BYTES_PROP = "blobs.head.bytes";
+	private static final String MAX_ENTRIES_PROP = "blobs.head.maxEntries";
+	private static final String PREFETCH_THREADS_PROP = "blobs.head.threads";
+	private static final int DEFAULT_HEAD_BYTES = 128 * 1024;
+	private static final int DEFAULT_MAX_ENTRIES = 1024;
+	private static final int DEFAULT_PREFETCH_THREADS = 2;
+
+	record Head(byte[] bytes, BlobInfo info) {
+		long size() {
+			return info.size();
+		}
+	}
+
+	final BlobStorage storage;
+	final int headBytes;
+	final Map<String, Head> heads;
+
+	/*
+	 * The prefetches in progress, each with a token of its own, which an invalidation of its path drops,
+	 * so a prefetch that read the blob before it was deleted does not put its head back.
+	 */
+	final Map<String, Object> pending = new ConcurrentHashMap<>();
+	final ExecutorService prefetcher;
+
+	public HeadCachingStorage(BlobStorage storage) {
+		this.storage = storage;
+		this.headBytes = Props.get(HEAD_BYTES_PROP, DEFAULT_HEAD_BYTES);
+
+		var maxEntries = Props.get(MAX_ENTRIES_PROP, DEFAULT_MAX_ENTRIES);
+		this.heads = new LinkedHashMap<>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, Head> eldest) {
+				return size() > maxEntries;
+			}
+		};
+		this.prefetcher = Executors.newFixedThreadPool(Props.get(PREFETCH_THREADS_PROP, DEFAULT_PREFETCH_THREADS), r -> {
+			var t = Executors.defaultThreadFactory().newThread(r);
+			t.setDaemon(true);
+			return t;
+		});
+	}
+
+	@Override
+	public Result<Void> write(String path, InputStream in) {
+		var res = storage.write(path, in);
+		if (res.isOK())
+			prefetch(path);
+		return res;
+	}
+
+	@Override
+	public CompletableFuture<Result<Void>> writeAsync(String path, InputStream in) {
+		return storage.writeAsync(path, in).thenApply(res -> {
+			if (res.isOK())
+				prefetch(path);
+			return res;
+		});
+	}
+
+	/*
+	 * Invalidated again once deleted, to drop whatever was prefetched while the delete was in progress.
+	 */
+	@Override
+	public Result<Void> delete(String path) {
+		invalidate(path);
+		try {
+			return storage.delete(path);
+		} finally {
+			invalidate(path);
+		}
+	}
+
+	@Override
+	public Result<Long> size(String path) {
+		var head = get(path);
+		return head != null ? ok(head.size()) : storage.size(path);
+	}
+
+	@Override
+	public Result<BlobInfo> stat(String path) {
+		var head = get(path);
+		return head != null ? ok(head.info()) : storage.stat(path);
+	}
+
+	@Override
+	public Result<InputStream> readStream(String path, long offset, long length) {
+		if (path == null || offset < 0 || length < 0)
+			return error(BAD_REQUEST);
+
+		var head = get(path);
+		if (head == null || offset >= head.bytes().length)
+			return storage.readStream(path, offset, length);
+
+		var end = Math.min(head.size(), offset + Math.min(length, head.size()));
+		var fromHead = (int) (Math.min(end, head.bytes().length) - offset);
+		var first = new ByteArrayInputStream(head.bytes(), (int) offset, fromHead);
+		if (offset + fromHead >= end)
+			return ok(first);
+
+		return Result.errorOrValue(storage.readStream(path, offset + fromHead, end - offset - fromHead),
+				rest -> rest instanceof ZeroCopyStream ? new HeadInputStream(first, rest) : new SequenceInputStream(first, rest));
+	}
+
+	/*
+	 * A read that starts within the head completes right away, but only with the bytes in the head;
+	 * the caller asks for the rest, in the meantime, playback can start.
+	 */
+	@Override
+	public CompletableFuture<Result<ByteBuffer>> readAsync(String path, long offset, int length) {
+		if (path == null || offset < 0 || length < 0)
+			return CompletableFuture.completedFuture(error(BAD_REQUEST));
+
+		var head = get(path);
+		if (head == null || offset >= head.bytes().length)
+			return storage.readAsync(path, offset, length);
+
+		var fromHead = (int) Math.min(length, head.bytes().length - offset);
+		return CompletableFuture.completedFuture(ok(ByteBuffer.wrap(head.bytes(), (int) offset, fromHead).slice().asReadOnlyBuffer()));
+	}
+
+	@Override
+	public Result<Void> read(String path, Consumer<byte[]> sink) {
+		return storage.read(path, sink);
+	}
+
+	/*
+	 * Asynchronously loads the head of the blob, unless it is already in memory or being loaded.
+	 */
+	@Override
+	public void prefetch(String path) {
+		var token = new Object();
+		if (path == null || get(path) != null || pending.putIfAbsent(path, token) != null)
+			return;
+
+		prefetcher.execute(() -> {
+			try {
+				var info = storage.stat(path);
+				if (!info.isOK())
+					return;
+
+				var res = storage.readStream(path, 0, headBytes);
+				if (!res.isOK())
+					return;
+
+				try (var in = res.value()) {
+					var head = new Head(in.readNBytes(headBytes), info.value());
+					synchronized (heads) {
+						if (pending.remove(path, token))
+							heads.put(path, head);
+					}
+				}
+			} catch (IOException | RuntimeException x) {
+				Log.warning(() -> String.format("prefetch of %s failed: %s\n", path, x.getMessage()));
+			} finally {
+				pending.remove(path, token);
+			}
+		});
+	}
+
+	/*
+	 * The head, from memory, followed by the rest, which can be sent without copying it.
+	 */
+	static class HeadInputStream extends SequenceInputStream implements ZeroCopyStream {
+		final ByteArrayInputStream head;
+		final InputStream rest;
+
+		HeadInputStream(ByteArrayInputStream head, InputStream rest) {
+			super(head, rest);
+			this.head = head;
+			this.rest = rest;
+		}
+
+		@Override
+		public long transferTo(OutputStream out, long count) throws IOException {
+			var n = head.available();
+			if (n == 0)
+				return ((ZeroCopyStream) rest).transferTo(out, count);
+
+			var bytes = head.readNBytes((int) Math.min(n, count));
+			out.write(bytes);
+			return bytes.length + (count > bytes.length ? ((ZeroCopyStream) rest).transferTo(out, count - bytes.length) : 0);
+		}
+	}
+
+	private void invalidate(String path) {
+		var prefix = path + "/";
+		synchronized (heads) {
+			pending.keySet().removeIf(k -> k.equals(path) || k.startsWith(prefix));
+			heads.keySet().removeIf(k -> k.equals(path) || k.startsWith(prefix));
+		}
+	}
+
+	private Head get(String path) {
+		synchronized (heads) {
+			return heads.get(path);
+		}
+	}
+}
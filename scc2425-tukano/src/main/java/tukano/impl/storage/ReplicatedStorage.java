@@ -0,0 +1,424 @@
+package tukano.impl.storage;
+
+import static tukano.api.Result.error;
+import static tukano.api.Result.ok;
+import static tukano.api.Result.ErrorCode.BAD_REQUEST;
+import static tukano.api.Result.ErrorCode.CONFLICT;
+import static tukano.api.Result.ErrorCode.INTERNAL_ERROR;
+import static tukano.api.Result.ErrorCode.NOT_FOUND;
+import static tukano.api.Result.ErrorCode.TIMEOUT;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.logging.Logger;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+
+import tukano.api.BlobInfo;
+import tukano.api.Result;
+import utils.IO;
+import utils.Props;
+import utils.Queues;
+
+/**
+ * Replicates each blob in N independent storages (eg. local directories on different disks).
+ *
+ * Uploads are spooled to a temporary file, then written to all replicas in parallel and
+ * acknowledged once a quorum agrees. Reads go to the replica with the lowest observed latency;
+ * if it has not answered by the p95 of recent reads, a hedged read is sent to the next one and
+ * the first answer wins. Replicas that miss a blob, because a write failed or was still
+ * pending, are repaired in the background from one that has it.
+ *
+ * Deletes wait for the writes of the blob still pending in any replica, and leave a tombstone,
+ * journaled before any replica is touched, with the time of the delete. Repair checks it first:
+ * a copy written before the delete (eg. left behind by a replica whose delete failed) is deleted,
+ * not copied to the others. Tombstones are kept for blobs.replicated.tombstoneTtl seconds.
+ */
+public class ReplicatedStorage implements BlobStorage {
+	private static Logger Log = Logger.getLogger(ReplicatedStorage.class.getName());
+
+	public static final String ROOTS_PROP = "blobs.replicated.roots";
+	private static final String WRITE_QUORUM_PROP = "blobs.replicated.writeQuorum";
+	private static final String TOMBSTONES_PROP = "blobs.replicated.tombstones";
+	private static final String TOMBSTONE_TTL_PROP = "blobs.replicated.tombstoneTtl";
+	private static final String DEFAULT_ROOTS = "/tmp/replica0/,/tmp/replica1/,/tmp/replica2/";
+	private static final String DEFAULT_TOMBSTONES = "/tmp/replicated.tombstones";
+	private static final long DEFAULT_TOMBSTONE_TTL = 7 * 24 * 3600;
+	private static final String SEP = "\t";
+	private static final long MIN_HEDGE_DELAY_MS = 2;
+	private static final long INITIAL_HEDGE_DELAY_MS = 50;
+	private static final long MAX_WAIT_MS = 30_000;
+
+	final List<Replica> replicas;
+	final int writeQuorum;
+	final File spoolDir;
+	final ExecutorService executor;
+	final Latencies latencies = new Latencies(512);
+	final BlockingQueue<String> repairs = new LinkedBlockingQueue<>();
+
+	// the writes in progress, each completed once all the replicas are done with it
+	final Map<CompletableFuture<Void>, String> writing = new ConcurrentHashMap<>();
+	// the time of the last delete of each path (or owner prefix)
+	final Map<String, Long> tombstones = new ConcurrentHashMap<>();
+	final File tombstonesFile;
+	final long tombstoneTtlMillis;
+	private Writer journal;
+
+	public ReplicatedStorage() {
+		this( Stream.of( Props.get(ROOTS_PROP, DEFAULT_ROOTS).split(",")).map( r -> (BlobStorage) new FilesystemStorage( r.trim() )).toList());
+	}
+
+	public ReplicatedStorage(List<BlobStorage> storages) {
+		this.replicas = storages.stream().map( Replica::new ).toList();
+		this.writeQuorum = Props.get(WRITE_QUORUM_PROP, storages.size() / 2 + 1);
+		this.spoolDir = new File( System.getProperty("java.io.tmpdir") );
+		this.tombstonesFile = new File( Props.get(TOMBSTONES_PROP, DEFAULT_TOMBSTONES));
+		this.tombstoneTtlMillis = Props.get(TOMBSTONE_TTL_PROP, DEFAULT_TOMBSTONE_TTL) * 1000;
+		recover();
+		this.executor = Executors.newCachedThreadPool( r -> {
+			var t = Executors.defaultThreadFactory().newThread(r);
+			t.setDaemon(true);
+			return t;
+		});
+		executor.execute( this::repairLoop );
+	}
+
+	@Override
+	public Result<Void> write(String path, InputStream in) {
+		if (path == null)
+			return error(BAD_REQUEST);
+
+		File spool;
+		try {
+			spool = File.createTempFile("replicated", null, spoolDir);
+			IO.write( spool, in );
+		} catch( IOException | RuntimeException x ) {
+			x.printStackTrace();
+			return error(INTERNAL_ERROR);
+		}
+
+		var oks = new AtomicInteger();
+		var conflicts = new AtomicInteger();
+		var done = new AtomicInteger();
+		var result = new CompletableFuture<Result<Void>>();
+		var allDone = new CompletableFuture<Void>();
+		writing.put( allDone, path );
+		var n = replicas.size();
+		for( var r : replicas )
+			executor.execute( () -> {
+				Result<Void> res;
+				try( var fin = new FileInputStream( spool )) {
+					res = r.storage.write( path, fin );
+				} catch( IOException | RuntimeException x ) {
+					res = error(INTERNAL_ERROR);
+				}
+				try {
+					if( res.isOK() && oks.incrementAndGet() == writeQuorum )
+						result.complete( ok() );
+					else if( res.error() == CONFLICT && conflicts.incrementAndGet() > n - writeQuorum )
+						result.complete( error(CONFLICT) );
+					else if( ! res.isOK() && res.error() != CONFLICT )
+						repairs.add( path );
+				} finally {
+					if( done.incrementAndGet() == n ) {
+						result.complete( error(INTERNAL_ERROR) );
+						IO.delete( spool );
+						writing.remove( allDone );
+						allDone.complete( null );
+					}
+				}
+			});
+		return await( result );
+	}
+
+	/*
+	 * Deletes the blob at the given path, or all the blobs under it, if it is a prefix (eg. a userId),
+	 * once the pending writes are done. The replicas whose delete failed are left to repair.
+	 */
+	@Override
+	public Result<Void> delete(String path) {
+		if (path == null)
+			return error(BAD_REQUEST);
+
+		var prefix = path + "/";
+		var pending = writing.entrySet().stream()
+				.filter( e -> e.getValue().equals( path ) || e.getValue().startsWith( prefix ))
+				.map( Map.Entry::getKey )
+				.toArray( CompletableFuture[]::new );
+		if( await( CompletableFuture.allOf( pending ).thenApply( __ -> ok() )).error() == TIMEOUT )
+			return error(TIMEOUT);
+
+		try {
+			tombstone( path, System.currentTimeMillis() );
+		} catch( RuntimeException x ) {
+			x.printStackTrace();
+			return error(INTERNAL_ERROR);
+		}
+
+		var results = replicas.stream()
+				.map( r -> CompletableFuture.supplyAsync( () -> r.storage.delete( path ), executor ))
+				.toList()
+				.stream()
+				.map( this::await )
+				.toList();
+
+		// what is left of the blobs of an owner is repaired as each of them is read
+		if( path.contains("/") && results.stream().anyMatch( r -> ! r.isOK() && r.error() != NOT_FOUND ))
+			repairs.add( path );
+
+		if( results.stream().anyMatch( Result::isOK ))
+			return ok();
+		return results.stream().allMatch( r -> r.error() == NOT_FOUND ) ? error(NOT_FOUND) : error(INTERNAL_ERROR);
+	}
+
+	@Override
+	public Result<Long> size(String path) {
+		if (path == null)
+			return error(BAD_REQUEST);
+
+		return hedged( path, r -> r.storage.size( path ), __ -> {});
+	}
+
+	@Override
+	public Result<BlobInfo> stat(String path) {
+		if (path == null)
+			return error(BAD_REQUEST);
+
+		return hedged( path, r -> r.storage.stat( path ), __ -> {});
+	}
+
+	@Override
+	public Result<InputStream> readStream(String path, long offset, long length) {
+		if (path == null || offset < 0 || length < 0)
+			return error(BAD_REQUEST);
+
+		return hedged( path, r -> r.storage.readStream( path, offset, length ), IO::close );
+	}
+
+	@Override
+	public Result<Void> read(String path, Consumer<byte[]> sink) {
+		var deletedAt = deletedAt( path );
+		for( var r : byLatency() ) {
+			var info = deletedAt == 0 ? null : r.storage.stat( path );
+			var res = info != null && info.isOK() && info.value().lastModified() <= deletedAt ? Result.<Void>error(NOT_FOUND) : r.storage.read( path, sink );
+			if( res.error() != NOT_FOUND )
+				return res;
+			repairs.add( path );
+		}
+		return error(NOT_FOUND);
+	}
+
+	/*
+	 * Sends the read to the fastest replica, hedging to the next ones whenever the current
+	 * attempts take longer than the p95 of recent reads. Returns the first successful result;
+	 * late results are discarded (closed). A replica that does not have the blob schedules a repair;
+	 * so does one that still has a copy from before the blob was last deleted, which is not used.
+	 */
+	private <T> Result<T> hedged( String path, Function<Replica, Result<T>> live, Consumer<T> discard ) {
+		var deletedAt = deletedAt( path );
+		Function<Replica, Result<T>> op = deletedAt == 0 ? live : r -> {
+			var info = r.storage.stat( path );
+			return info.isOK() && info.value().lastModified() <= deletedAt ? error(NOT_FOUND) : live.apply( r );
+		};
+		var order = byLatency();
+		var winner = new CompletableFuture<Result<T>>();
+		var pending = new AtomicInteger( order.size() );
+		var notFound = new AtomicInteger();
+
+		for( int i = 0; i < order.size() && ! winner.isDone(); i++ ) {
+			var r = order.get(i);
+			var attempt = CompletableFuture.supplyAsync( () -> r.timed( op, latencies ), executor ).thenAccept( res -> {
+				if( res.isOK() ) {
+					if( ! winner.complete( res ) )
+						discard.accept( res.value() );
+				} else if( res.error() == NOT_FOUND ) {
+					notFound.incrementAndGet();
+					repairs.add( path );
+				}
+				if( pending.decrementAndGet() == 0 )
+					winner.complete( error( notFound.get() == order.size() ? NOT_FOUND : INTERNAL_ERROR ));
+			});
+			try {
+				// a failed attempt moves on to the next replica right away
+				CompletableFuture.anyOf( winner, attempt ).get( latencies.p95(), TimeUnit.MILLISECONDS );
+			} catch( Exception x ) {
+				// slower than usual... hedge
+			}
+		}
+		return await( winner );
+	}
+
+	private List<Replica> byLatency() {
+		var res = new ArrayList<>( replicas );
+		res.sort( Comparator.comparingDouble( Replica::latency ));
+		return res;
+	}
+
+	private <T> Result<T> await( CompletableFuture<Result<T>> f ) {
+		try {
+			return f.get( MAX_WAIT_MS, TimeUnit.MILLISECONDS );
+		} catch( Exception x ) {
+			return error(TIMEOUT);
+		}
+	}
+
+	/*
+	 * Copies missing blobs from a replica that has them to the ones that do not. Copies written
+	 * before the last delete of the blob are deleted instead, and are never used as a source.
+	 */
+	private void repairLoop() {
+		for(;;) {
+			var path = Queues.takeFrom( repairs );
+			while( repairs.remove( path ) )
+				;
+			try {
+				var deletedAt = deletedAt( path );
+				var infos = replicas.stream().map( r -> r.storage.stat( path )).toList();
+				for( int i = 0; i < replicas.size(); i++ )
+					if( infos.get(i).isOK() && infos.get(i).value().lastModified() <= deletedAt ) {
+						var res = replicas.get(i).storage.delete( path );
+						var replica = i;
+						Log.info(() -> String.format("deleted %s from replica %d: %s\n", path, replica, res));
+					}
+
+				var source = IntStream.range(0, replicas.size()).filter( i -> infos.get(i).isOK() && infos.get(i).value().lastModified() > deletedAt ).findFirst();
+				if( source.isEmpty() )
+					continue;
+
+				for( int i = 0; i < replicas.size(); i++ )
+					if( infos.get(i).error() == NOT_FOUND || (infos.get(i).isOK() && infos.get(i).value().lastModified() <= deletedAt) ) {
+						var in = replicas.get( source.getAsInt() ).storage.readStream( path );
+						if( in.isOK() )
+							try( var is = in.value() ) {
+								var res = replicas.get(i).storage.write( path, is );
+								var replica = i;
+								Log.info(() -> String.format("repaired %s in replica %d: %s\n", path, replica, res));
+							}
+					}
+			} catch( IOException | RuntimeException x ) {
+				Log.warning(() -> String.format("repair of %s failed: %s\n", path, x.getMessage()));
+			}
+		}
+	}
+
+	/*
+	 * When the blob was last deleted, on its own or with all the blobs of its owner; 0 if never.
+	 */
+	private long deletedAt( String path ) {
+		var owner = path.split("/", 2)[0];
+		return Math.max( tombstones.getOrDefault( path, 0L ), tombstones.getOrDefault( owner, 0L ));
+	}
+
+	private void tombstone( String path, long time ) {
+		synchronized( this ) {
+			try {
+				journal.write( String.join( SEP, path, "" + time ) + "\n");
+				journal.flush();
+			} catch( IOException x ) {
+				throw new UncheckedIOException( x );
+			}
+		}
+		tombstones.merge( path, time, Math::max );
+	}
+
+	/*
+	 * Replays the tombstones journal, and rewrites it without those past their ttl.
+	 */
+	private void recover() {
+		try {
+			if( tombstonesFile.exists() )
+				for( var line : Files.readAllLines( tombstonesFile.toPath() ) ) {
+					var fields = line.split( SEP );
+					if( fields.length == 2 )
+						tombstones.merge( fields[0], Long.parseLong( fields[1] ), Math::max );
+				}
+			var expired = System.currentTimeMillis() - tombstoneTtlMillis;
+			tombstones.values().removeIf( t -> t < expired );
+
+			tombstonesFile.getAbsoluteFile().getParentFile().mkdirs();
+			var compacted = new File( tombstonesFile.getPath() + ".new" );
+			try( var w = new FileWriter( compacted ) ) {
+				for( var e : tombstones.entrySet() )
+					w.write( String.join( SEP, e.getKey(), "" + e.getValue() ) + "\n");
+			}
+			Files.move( compacted.toPath(), tombstonesFile.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING );
+			journal = new FileWriter( tombstonesFile, true );
+		} catch( IOException | NumberFormatException x ) {
+			throw new IllegalStateException( x );
+		}
+	}
+
+	static class Replica {
+		static final double ALPHA = 0.2;
+
+		final BlobStorage storage;
+		volatile double latency;
+
+		Replica(BlobStorage storage) {
+			this.storage = storage;
+		}
+
+		double latency() {
+			return latency;
+		}
+
+		<T> Result<T> timed( Function<Replica, Result<T>> op, Latencies latencies ) {
+			var t0 = System.nanoTime();
+			var res = op.apply( this );
+			var ms = (System.nanoTime() - t0) / 1_000_000.0;
+			latency = latency * (1 - ALPHA) + ms * ALPHA;
+			if( res.isOK() )
+				latencies.add( ms );
+			return res;
+		}
+	}
+
+	/*
+	 * A window of the most recent read latencies, in ms.
+	 */
+	static class Latencies {
+		final double[] samples;
+		long count;
+		long p95 = INITIAL_HEDGE_DELAY_MS;
+
+		Latencies(int size) {
+			this.samples = new double[size];
+		}
+
+		synchronized void add( double ms ) {
+			samples[ (int) (count++ % samples.length) ] = ms;
+			if( count % 32 == 0 ) {
+				var sorted = Arrays.copyOf( samples, (int) Math.min( count, samples.length ));
+				Arrays.sort( sorted );
+				p95 = Math.max( MIN_HEDGE_DELAY_MS, (long) Math.ceil( sorted[ (int)(sorted.length * 0.95) ] ));
+			}
+		}
+
+		synchronized long p95() {
+			return p95;
+		}
+	}
+
+}
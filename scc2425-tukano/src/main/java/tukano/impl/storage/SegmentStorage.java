@@ -0,0 +1,617 @@
+package tukano.impl.storage;
+
+import static tukano.api.Result.error;
+import static tukano.api.Result.ok;
+import static tukano.api.Result.ErrorCode.BAD_REQUEST;
+import static tukano.api.Result.ErrorCode.CONFLICT;
+import static tukano.api.Result.ErrorCode.INTERNAL_ERROR;
+import static tukano.api.Result.ErrorCode.NOT_FOUND;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.logging.Logger;
+
+import tukano.api.BlobInfo;
+import tukano.api.Result;
+import tukano.impl.storage.FileRangeInputStream.TransferMode;
+import utils.Hex;
+import utils.IO;
+import utils.Props;
+import utils.TryCatch;
+
+/**
+ * Log-structured blob storage.
+ *
+ * Blobs are appended, one record after the other, to large segment files, so storing a blob
+ * costs neither an inode nor a directory entry, and reading one does not open a file: segments
+ * stay open, and blobs are read with positioned (or memory-mapped, see TransferMode) reads.
+ * An in-memory index maps each blob path to its segment, offset and length.
+ *
+ * Each record has a header with the path, size, SHA-256 and write time of the blob, so the index
+ * is rebuilt on startup by scanning the segments in order, discarding a torn record at the tail.
+ * Deletes append a tombstone record.
+ *
+ * Only the newest segment is appended to; once it reaches blobs.segments.maxBytes, a new one is started.
+ * Sealed segments whose live records fall below blobs.segments.compactLivePct percent of their size are
+ * compacted in the background: their live records are copied to the newest segment, and the file is deleted.
+ *
+ * Uploads are spooled (in memory, if small) before being appended, so appends, which are serialized,
+ * never wait for the client. They are acknowledged according to the durability mode (see Durability).
+ */
+public class SegmentStorage implements BlobStorage {
+	private static Logger Log = Logger.getLogger(SegmentStorage.class.getName());
+
+	private static final long MB = 1024 * 1024;
+	private static final String ROOT_DIR_PROP = "blobs.segments.root";
+	private static final String MAX_BYTES_PROP = "blobs.segments.maxBytes";
+	private static final String SPOOL_BYTES_PROP = "blobs.segments.spoolBytes";
+	private static final String COMPACT_INTERVAL_PROP = "blobs.segments.compactInterval";
+	private static final String COMPACT_LIVE_PCT_PROP = "blobs.segments.compactLivePct";
+	private static final String DEFAULT_ROOT_DIR = "/tmp/segments/";
+	private static final long DEFAULT_MAX_BYTES = 256 * MB;
+	private static final int DEFAULT_SPOOL_BYTES = (int) MB;
+	private static final int INITIAL_SPOOL_BYTES = 8 * 1024;
+	private static final int DEFAULT_COMPACT_INTERVAL = 60;
+	private static final int DEFAULT_COMPACT_LIVE_PCT = 50;
+	private static final String TMP_DIR = "tmp", SEGMENT_PREFIX = "segment-", SEGMENT_SUFFIX = ".log";
+
+	/*
+	 * Record header: magic, size (or TOMBSTONE), write time, digest, path length and path, followed by the contents.
+	 */
+	private static final int MAGIC = 0x54554b41;
+	private static final long TOMBSTONE = -1;
+	private static final int DIGEST_BYTES = 32;
+	private static final int FIXED_HEADER_BYTES = 4 + 8 + 8 + DIGEST_BYTES + 2;
+
+	public record Stats(int segments, int blobs, long liveBytes, long totalBytes, long compactions, long reclaimedBytes) {}
+
+	/*
+	 * Where a blob is: its record starts at header, its contents at offset.
+	 */
+	record Entry(int segment, long header, long offset, long size, String digest, long lastModified) {
+		long recordBytes() {
+			return offset - header + size;
+		}
+	}
+
+	/*
+	 * The channel of a segment is closed once it is retired (compacted) and its last reader is done:
+	 * the storage holds a reference until then, and each read (or open stream) holds another.
+	 */
+	static class Segment {
+		final int id;
+		final File file;
+		final FileChannel channel;
+		final AtomicLong live = new AtomicLong();
+		final AtomicInteger references = new AtomicInteger( 1 );
+		volatile long size;
+
+		Segment( int id, File file ) throws IOException {
+			this.id = id;
+			this.file = file;
+			this.channel = FileChannel.open( file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE );
+		}
+
+		/*
+		 * Fails once the segment is retired and all its readers are done.
+		 */
+		boolean acquire() {
+			for(;;) {
+				var n = references.get();
+				if( n == 0 )
+					return false;
+				if( references.compareAndSet( n, n + 1 ))
+					return true;
+			}
+		}
+
+		void release() {
+			if( references.decrementAndGet() == 0 )
+				IO.close( channel );
+		}
+	}
+
+	final File root, tmpDir;
+	final long maxSegmentBytes;
+	final int spoolBytes, compactLivePct;
+	final TransferMode transferMode;
+	final Durability durability;
+
+	final Map<String, Entry> index = new ConcurrentHashMap<>();
+	final NavigableMap<Integer, Segment> segments = new ConcurrentSkipListMap<>();
+	final ReentrantLock appendLock = new ReentrantLock();
+	final AtomicLong compactions = new AtomicLong(), reclaimedBytes = new AtomicLong();
+	private volatile Segment active;
+
+	public SegmentStorage() {
+		this.root = new File( Props.get(ROOT_DIR_PROP, DEFAULT_ROOT_DIR));
+		this.tmpDir = new File( root, TMP_DIR );
+		this.maxSegmentBytes = Props.get(MAX_BYTES_PROP, DEFAULT_MAX_BYTES);
+		this.spoolBytes = Props.get(SPOOL_BYTES_PROP, DEFAULT_SPOOL_BYTES);
+		this.compactLivePct = Props.get(COMPACT_LIVE_PCT_PROP, DEFAULT_COMPACT_LIVE_PCT);
+		this.transferMode = TransferMode.configured();
+		this.durability = new Durability();
+
+		tmpDir.mkdirs();
+		recover();
+
+		var interval = Props.get(COMPACT_INTERVAL_PROP, DEFAULT_COMPACT_INTERVAL);
+		if( interval > 0 ) {
+			var t = new Thread( () -> compactor( interval ), "segments-compactor" );
+			t.setDaemon( true );
+			t.setPriority( Thread.MIN_PRIORITY );
+			t.start();
+		}
+	}
+
+	@Override
+	public Result<Void> write(String path, InputStream in) {
+		if (path == null)
+			return error(BAD_REQUEST);
+
+		try( var spool = spool( in ) ) {
+			Segment segment;
+			appendLock.lock();
+			try {
+				var existing = index.get( path );
+				if( existing != null )
+					return existing.digest().equals( spool.digest ) ? ok() : error(CONFLICT);
+
+				segment = append( path, spool );
+			} finally {
+				appendLock.unlock();
+			}
+			durability.force( segment.file.toPath() ).join();
+			return ok();
+		} catch( IOException | RuntimeException x ) {
+			x.printStackTrace();
+			return error(INTERNAL_ERROR);
+		}
+	}
+
+	/*
+	 * Deletes the blob at the given path, or all the blobs under it, if it is a prefix (eg. a userId).
+	 */
+	@Override
+	public Result<Void> delete(String path) {
+		if (path == null)
+			return error(BAD_REQUEST);
+
+		var prefix = path + "/";
+		var paths = path.contains("/") ? List.of( path ) : index.keySet().stream().filter( p -> p.startsWith( prefix )).toList();
+
+		var found = false;
+		appendLock.lock();
+		try {
+			for( var p : paths ) {
+				var e = index.get( p );
+				if( e == null )
+					continue;
+
+				appendTombstone( p );
+				index.remove( p );
+				segments.get( e.segment() ).live.addAndGet( - e.recordBytes() );
+				found = true;
+			}
+		} catch( IOException x ) {
+			x.printStackTrace();
+			return error(INTERNAL_ERROR);
+		} finally {
+			appendLock.unlock();
+		}
+		return found ? ok() : error(NOT_FOUND);
+	}
+
+	@Override
+	public Result<Long> size(String path) {
+		if (path == null)
+			return error(BAD_REQUEST);
+
+		var e = index.get( path );
+		return e != null ? ok( e.size() ) : error(NOT_FOUND);
+	}
+
+	@Override
+	public Result<BlobInfo> stat(String path) {
+		if (path == null)
+			return error(BAD_REQUEST);
+
+		var e = index.get( path );
+		return e != null ? ok( new BlobInfo( e.size(), e.digest(), e.lastModified() )) : error(NOT_FOUND);
+	}
+
+	@Override
+	public Result<InputStream> readStream(String path, long offset, long length) {
+		if (path == null || offset < 0 || length < 0)
+			return error(BAD_REQUEST);
+
+		var at = locate( path );
+		if( at == null )
+			return error(NOT_FOUND);
+
+		var e = at.entry();
+		var segment = at.segment();
+		try {
+			var start = Math.min( offset, e.size() );
+			return ok( FileRangeInputStream.shared( segment.channel, e.offset() + start, Math.min( length, e.size() - start ), transferMode, segment::release ));
+		} catch( IOException x ) {
+			x.printStackTrace();
+			segment.release();
+			return error(INTERNAL_ERROR);
+		}
+	}
+
+	/*
+	 * A single positioned read, in the I/O pool.
+	 */
+	@Override
+	public CompletableFuture<Result<ByteBuffer>> readAsync(String path, long offset, int length) {
+		return CompletableFuture.supplyAsync( () -> {
+			if (path == null || offset < 0 || length < 0)
+				return error(BAD_REQUEST);
+
+			var at = locate( path );
+			if( at == null )
+				return error(NOT_FOUND);
+
+			var e = at.entry();
+			var start = Math.min( offset, e.size() );
+			var buf = ByteBuffer.allocate( (int) Math.min( length, e.size() - start ));
+			try {
+				while( buf.hasRemaining() && at.segment().channel.read( buf, e.offset() + start + buf.position() ) >= 0 )
+					;
+				return ok( buf.flip() );
+			} catch( IOException x ) {
+				x.printStackTrace();
+				return error(INTERNAL_ERROR);
+			} finally {
+				at.segment().release();
+			}
+		}, AsyncIO.pool() );
+	}
+
+	@Override
+	public Result<Void> read(String path, Consumer<byte[]> sink) {
+		var res = readStream( path );
+		if( ! res.isOK() )
+			return error( res.error() );
+
+		try( var in = res.value() ) {
+			IO.read( in, IO.BUFFER_SIZE, sink );
+			return ok();
+		} catch( IOException x ) {
+			x.printStackTrace();
+			return error(INTERNAL_ERROR);
+		}
+	}
+
+	public Stats stats() {
+		long live = 0, total = 0;
+		for( var s : segments.values() ) {
+			live += s.live.get();
+			total += s.size;
+		}
+		return new Stats( segments.size(), index.size(), live, total, compactions.get(), reclaimedBytes.get() );
+	}
+
+	record Location(Entry entry, Segment segment) {}
+
+	/*
+	 * The entry of the blob and its segment, which the caller must release once done reading.
+	 * If the segment was just compacted, the entry is looked up again.
+	 */
+	private Location locate( String path ) {
+		for( int attempt = 0; attempt < 2; attempt++ ) {
+			var e = index.get( path );
+			if( e == null )
+				return null;
+
+			var segment = segments.get( e.segment() );
+			if( segment != null && segment.acquire() )
+				return new Location( e, segment );
+		}
+		return null;
+	}
+
+	/*
+	 * Appends the record of the blob to the newest segment, and points the index at it.
+	 */
+	private Segment append( String path, Spool spool ) throws IOException {
+		var lastModified = System.currentTimeMillis();
+		var header = header( path, spool.size, spool.digest, lastModified );
+		var segment = activeFor( header.remaining() + spool.size );
+		var start = segment.size;
+		var offset = write( segment.channel, header, start );
+		var end = spool.transferTo( segment.channel, offset );
+
+		segment.size = end;
+		segment.live.addAndGet( end - start );
+		index.put( path, new Entry( segment.id, start, offset, spool.size, spool.digest, lastModified ));
+		return segment;
+	}
+
+	private void appendTombstone( String path ) throws IOException {
+		var header = header( path, TOMBSTONE, null, System.currentTimeMillis() );
+		var segment = activeFor( header.remaining() );
+		segment.size = write( segment.channel, header, segment.size );
+	}
+
+	/*
+	 * Starts a new segment when the record does not fit in the current one (unless it is empty).
+	 */
+	private Segment activeFor( long recordBytes ) throws IOException {
+		if( active == null || (active.size > 0 && active.size + recordBytes > maxSegmentBytes) ) {
+			var id = segments.isEmpty() ? 1 : segments.lastKey() + 1;
+			active = new Segment( id, segmentFile( id ));
+			segments.put( id, active );
+		}
+		return active;
+	}
+
+	private static long write( FileChannel channel, ByteBuffer buf, long position ) throws IOException {
+		while( buf.hasRemaining() )
+			position += channel.write( buf, position );
+		return position;
+	}
+
+	private static ByteBuffer header( String path, long size, String digest, long lastModified ) {
+		var name = path.getBytes( StandardCharsets.UTF_8 );
+		var buf = ByteBuffer.allocate( FIXED_HEADER_BYTES + name.length );
+		buf.putInt( MAGIC ).putLong( size ).putLong( lastModified );
+		buf.put( digest == null ? new byte[DIGEST_BYTES] : hexToBytes( digest ));
+		buf.putShort( (short) name.length ).put( name );
+		return buf.flip();
+	}
+
+	private void compactor( int interval ) {
+		for(;;) {
+			try {
+				TimeUnit.SECONDS.sleep( interval );
+
+				for( var segment : new ArrayList<>( segments.values() ))
+					if( segment != active && segment.live.get() * 100 < (long) compactLivePct * segment.size )
+						compact( segment );
+			} catch( InterruptedException x ) {
+				return;
+			} catch( IOException | RuntimeException x ) {
+				Log.warning(() -> String.format("segment compaction failed: %s\n", x));
+			}
+		}
+	}
+
+	/*
+	 * Copies the records of the segment that are still live to the newest segment, one at a time,
+	 * under the append lock, so a blob that is deleted or written meanwhile is left alone.
+	 *
+	 * Tombstones are carried over while an older segment may still hold a record of their blob,
+	 * unless it was written again since. Oldest segments are compacted first, so they are dropped soon.
+	 */
+	private void compact( Segment segment ) throws IOException {
+		long copied = 0;
+		for( long pos = 0; pos < segment.size; ) {
+			var header = readHeader( segment, pos );
+			var path = header.path;
+			var recordBytes = header.recordBytes();
+
+			appendLock.lock();
+			try {
+				var e = index.get( path );
+				if( header.size == TOMBSTONE ) {
+					if( e == null && segments.firstKey() < segment.id )
+						appendTombstone( path );
+				} else if( e != null && e.segment() == segment.id && e.header() == pos ) {
+					var target = activeFor( recordBytes );
+					var start = target.size;
+					target.channel.position( start );
+					for( long n = 0; n < recordBytes; )
+						n += segment.channel.transferTo( pos + n, recordBytes - n, target.channel );
+
+					target.size = start + recordBytes;
+					target.live.addAndGet( recordBytes );
+					index.put( path, new Entry( target.id, start, start + (e.offset() - e.header()), e.size(), e.digest(), e.lastModified() ));
+					copied += recordBytes;
+				}
+			} finally {
+				appendLock.unlock();
+			}
+			pos += recordBytes;
+		}
+		if( active != null )
+			durability.force( active.file.toPath() ).join();
+
+		var reclaimed = segment.size - copied;
+		segments.remove( segment.id );
+		IO.delete( segment.file );
+		segment.release();
+		compactions.incrementAndGet();
+		reclaimedBytes.addAndGet( reclaimed );
+		Log.info(() -> String.format("segment %d compacted, %d bytes reclaimed: %s\n", segment.id, reclaimed, stats()));
+	}
+
+	/*
+	 * Replays the segments in order. A record that does not check out ends its segment (eg. a torn
+	 * append), and the segment is truncated there, so the next append overwrites it.
+	 */
+	private void recover() {
+		try {
+			var files = root.listFiles( (__, name) -> name.startsWith( SEGMENT_PREFIX ) && name.endsWith( SEGMENT_SUFFIX ));
+			for( var file : files ) {
+				var id = Integer.parseInt( file.getName().substring( SEGMENT_PREFIX.length(), file.getName().length() - SEGMENT_SUFFIX.length() ));
+				segments.put( id, new Segment( id, file ));
+			}
+
+			for( var segment : segments.values() ) {
+				var length = segment.channel.size();
+				long pos = 0;
+				for( Header h; (h = readHeader( segment, pos, length )) != null; pos += h.recordBytes() ) {
+					var prev = h.size == TOMBSTONE ? index.remove( h.path ) : index.put( h.path, h.entry( segment.id, pos ));
+					if( prev != null )
+						segments.get( prev.segment() ).live.addAndGet( - prev.recordBytes() );
+					if( h.size != TOMBSTONE )
+						segment.live.addAndGet( h.recordBytes() );
+				}
+				if( pos < length ) {
+					var torn = pos;
+					Log.warning(() -> String.format("segment %s truncated at %d of %d bytes\n", segment.file, torn, length));
+					segment.channel.truncate( pos );
+				}
+				segment.size = pos;
+			}
+			if( ! segments.isEmpty() )
+				active = segments.lastEntry().getValue();
+
+			Log.info(() -> String.format("segments: %s\n", stats()));
+		} catch( IOException | NumberFormatException x ) {
+			throw new IllegalStateException( x );
+		}
+	}
+
+	record Header(String path, long size, String digest, long lastModified, int headerBytes) {
+		long recordBytes() {
+			return headerBytes + Math.max( 0, size );
+		}
+
+		Entry entry( int segment, long pos ) {
+			return new Entry( segment, pos, pos + headerBytes, size, digest, lastModified );
+		}
+	}
+
+	private Header readHeader( Segment segment, long pos ) throws IOException {
+		var h = readHeader( segment, pos, segment.size );
+		if( h == null )
+			throw new IOException( "bad record at " + pos + " of " + segment.file );
+		return h;
+	}
+
+	/*
+	 * The header of the record at pos, or null, if there is no whole record there.
+	 */
+	private Header readHeader( Segment segment, long pos, long length ) throws IOException {
+		if( pos + FIXED_HEADER_BYTES > length )
+			return null;
+
+		var fixed = ByteBuffer.allocate( FIXED_HEADER_BYTES );
+		readFully( segment, fixed, pos );
+		if( fixed.getInt() != MAGIC )
+			return null;
+
+		var size = fixed.getLong();
+		var lastModified = fixed.getLong();
+		var digest = new byte[DIGEST_BYTES];
+		fixed.get( digest );
+		var name = ByteBuffer.allocate( fixed.getShort() & 0xFFFF );
+		var headerBytes = FIXED_HEADER_BYTES + name.capacity();
+		if( size < TOMBSTONE || pos + headerBytes + Math.max( 0, size ) > length )
+			return null;
+
+		readFully( segment, name, pos + FIXED_HEADER_BYTES );
+		return new Header( new String( name.array(), StandardCharsets.UTF_8 ), size, Hex.of( digest ), lastModified, headerBytes );
+	}
+
+	private static void readFully( Segment segment, ByteBuffer buf, long pos ) throws IOException {
+		while( buf.hasRemaining() && segment.channel.read( buf, pos + buf.position() ) >= 0 )
+			;
+		buf.flip();
+	}
+
+	private File segmentFile( int id ) {
+		return new File( root, String.format("%s%06d%s", SEGMENT_PREFIX, id, SEGMENT_SUFFIX ));
+	}
+
+	/*
+	 * An upload, with its size and digest: the first blobs.segments.spoolBytes in memory (in a buffer
+	 * that starts small and doubles as needed, as most blobs here are small),
+	 * and the rest, if any, in a temporary file.
+	 */
+	static class Spool implements Closeable {
+		final byte[] head;
+		final int headBytes;
+		final File file;
+		final long size;
+		final String digest;
+
+		Spool( byte[] head, int headBytes, File file, long size, String digest ) {
+			this.head = head;
+			this.headBytes = headBytes;
+			this.file = file;
+			this.size = size;
+			this.digest = digest;
+		}
+
+		long transferTo( FileChannel target, long position ) throws IOException {
+			position = write( target, ByteBuffer.wrap( head, 0, headBytes ), position );
+			if( file != null )
+				try( var in = FileChannel.open( file.toPath(), StandardOpenOption.READ )) {
+					for( long n = 0, len = in.size(); n < len; )
+						n += target.transferFrom( in, position + n, len - n );
+					position += in.size();
+				}
+			return position;
+		}
+
+		@Override
+		public void close() {
+			if( file != null )
+				IO.delete( file );
+		}
+	}
+
+	private Spool spool( InputStream in ) throws IOException {
+		var md = TryCatch.maybe( () -> MessageDigest.getInstance("SHA-256"));
+		var din = new DigestInputStream( in, md );
+		var head = new byte[Math.min( spoolBytes, INITIAL_SPOOL_BYTES )];
+		int n = 0;
+		for(;;) {
+			n += din.readNBytes( head, n, head.length - n );
+			if( n < head.length || head.length == spoolBytes )
+				break;
+			head = Arrays.copyOf( head, (int) Math.min( spoolBytes, 2L * head.length ));
+		}
+
+		File file = null;
+		long size = n;
+		if( n == spoolBytes ) {
+			file = File.createTempFile( "upload", null, tmpDir );
+			try( var out = new FileOutputStream( file )) {
+				size += IO.copy( din, out );
+			} catch( IOException | RuntimeException x ) {
+				IO.delete( file );
+				throw x;
+			}
+			if( size == n ) {
+				IO.delete( file );
+				file = null;
+			}
+		}
+		return new Spool( head, n, file, size, Hex.of( md.digest() ));
+	}
+
+	private static byte[] hexToBytes( String hex ) {
+		var bytes = new byte[hex.length() / 2];
+		for( int i = 0; i < bytes.length; i++ )
+			bytes[i] = (byte) Integer.parseInt( hex.substring( 2 * i, 2 * i + 2 ), 16 );
+		return bytes;
+	}
+}
@@ -0,0 +1,535 @@
+package tukano.impl.storage;
+
+import static java.util.concurrent.CompletableFuture.completedFuture;
+import static tukano.api.Result.error;
+import static tukano.api.Result.ok;
+import static tukano.api.Result.ErrorCode.BAD_REQUEST;
+import static tukano.api.Result.ErrorCode.CONFLICT;
+import static tukano.api.Result.ErrorCode.INTERNAL_ERROR;
+import static tukano.api.Result.ErrorCode.NOT_FOUND;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+import java.util.logging.Logger;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import tukano.api.BlobInfo;
+import tukano.api.Result;
+import utils.Hash;
+import utils.Hex;
+import utils.IO;
+import utils.Props;
+
+/**
+ * A BlobStorage decorator that moves blobs nobody watches anymore from the underlying (hot) storage
+ * to a cold tier: a directory of gzip'ed copies, standing in for cheaper, slower storage.
+ *
+ * Each blob has a heat score: every download from its start (see accessed) and its upload add 1, and the
+ * score halves every blobs.tier.halfLife seconds. Blobs not read since the server started score as if only
+ * uploaded. A background pass, every blobs.tier.interval seconds (0, the default, disables tiering), demotes
+ * the blobs whose score fell below blobs.tier.coldScorePct percent.
+ *
+ * A cold copy is compressed in blocks, each a gzip member of its own, with an index of where each one starts,
+ * so reading a range only decompresses from the start of the block it begins in. Once the score of a cold
+ * blob reaches blobs.tier.promoteHits again, reading it copies it back to the hot tier in the background.
+ *
+ * Either tier may hold a blob, so all operations check the hot tier first, then the cold one.
+ * A blob is moved under its (striped) lock, as are deletes, so they do not interleave.
+ */
+public class TieredStorage implements BlobStorage {
+	private static Logger Log = Logger.getLogger(TieredStorage.class.getName());
+
+	public static final String INTERVAL_PROP = "blobs.tier.interval";
+	private static final String COLD_ROOT_PROP = "blobs.tier.coldRoot";
+	private static final String HALF_LIFE_PROP = "blobs.tier.halfLife";
+	private static final String COLD_SCORE_PCT_PROP = "blobs.tier.coldScorePct";
+	private static final String PROMOTE_HITS_PROP = "blobs.tier.promoteHits";
+	private static final int DEFAULT_INTERVAL = 0;
+	private static final String DEFAULT_COLD_ROOT = "/tmp/blobs-cold/";
+	private static final int DEFAULT_HALF_LIFE = 24 * 3600;
+	private static final int DEFAULT_COLD_SCORE_PCT = 10;
+	private static final int DEFAULT_PROMOTE_HITS = 2;
+	private static final int LOCK_STRIPES = 256;
+	private static final int COLD_BLOCK_SIZE = 1 << 20;
+	private static final String DATA_SUFFIX = ".gz", INDEX_SUFFIX = ".idx", INFO_SUFFIX = ".info", TMP_SUFFIX = ".tmp", INFO_SEP = " ";
+
+	public record Stats(long coldReads, long demoted, long demotedBytes, long compressedBytes, long promoted, long errors, long lastPassMillis) {}
+
+	/*
+	 * The score of a blob, as of its last access.
+	 */
+	record Heat(double score, long stamp) {
+		double at( long now, double halfLifeMillis ) {
+			return score * Math.pow( 0.5, Math.max( 0, now - stamp ) / halfLifeMillis );
+		}
+	}
+
+	final BlobStorage hot;
+	final File coldRoot;
+	final int interval, promoteHits;
+	final double halfLifeMillis, coldScore;
+	final Map<String, Heat> heats = new ConcurrentHashMap<>();
+	final Set<String> promoting = ConcurrentHashMap.newKeySet();
+	final ReentrantLock[] locks = new ReentrantLock[ LOCK_STRIPES ];
+	final ExecutorService promoter;
+
+	volatile long lastPassMillis;
+	final AtomicLong coldReads = new AtomicLong(), demoted = new AtomicLong(), demotedBytes = new AtomicLong();
+	final AtomicLong compressedBytes = new AtomicLong(), promoted = new AtomicLong(), errors = new AtomicLong();
+
+	public TieredStorage(BlobStorage hot) {
+		this.hot = hot;
+		this.coldRoot = new File( Props.get(COLD_ROOT_PROP, DEFAULT_COLD_ROOT));
+		this.interval = Props.get(INTERVAL_PROP, DEFAULT_INTERVAL);
+		this.halfLifeMillis = Props.get(HALF_LIFE_PROP, DEFAULT_HALF_LIFE) * 1000.0;
+		this.coldScore = Props.get(COLD_SCORE_PCT_PROP, DEFAULT_COLD_SCORE_PCT) / 100.0;
+		this.promoteHits = Props.get(PROMOTE_HITS_PROP, DEFAULT_PROMOTE_HITS);
+		for( int i = 0; i < locks.length; i++ )
+			locks[i] = new ReentrantLock();
+
+		this.promoter = Executors.newSingleThreadExecutor( r -> {
+			var t = Executors.defaultThreadFactory().newThread(r);
+			t.setName("blobs-promote:" + t.getName());
+			t.setDaemon(true);
+			return t;
+		});
+		coldRoot.mkdirs();
+	}
+
+	/**
+	 * Starts the background demotion of cold blobs, going through the blobs known to the index,
+	 * unless tiering is disabled.
+	 */
+	public void start( UserIndexStorage index ) {
+		if( interval <= 0 )
+			return;
+
+		var t = new Thread( () -> migrate( index ), "blobs-tiering" );
+		t.setDaemon( true );
+		t.setPriority( Thread.MIN_PRIORITY );
+		t.start();
+	}
+
+	/**
+	 * Counts a download of the blob. Called from above the caches, so the downloads they serve count,
+	 * and the reads of the storages themselves (prefetches, demotions...) do not.
+	 */
+	public void accessed( String path ) {
+		touch( path );
+	}
+
+	/*
+	 * Uploads count as an access, before the cold tier is checked, so a pass that
+	 * takes the lock afterwards does not find the blob cold.
+	 */
+	@Override
+	public Result<Void> write(String path, InputStream in) {
+		if (path == null)
+			return error(BAD_REQUEST);
+
+		touch( path );
+		var info = locked( path, () -> coldInfo( path ));
+		return info != null ? matches( info, in ) : hot.write( path, in );
+	}
+
+	@Override
+	public CompletableFuture<Result<Void>> writeAsync(String path, InputStream in) {
+		if (path == null)
+			return completedFuture(error(BAD_REQUEST));
+
+		touch( path );
+		var info = locked( path, () -> coldInfo( path ));
+		return info != null ? CompletableFuture.supplyAsync( () -> matches( info, in ), AsyncIO.pool() ) : hot.writeAsync( path, in );
+	}
+
+	/*
+	 * Deletes the blob from both tiers, or, given an owner, all its blobs.
+	 */
+	@Override
+	public Result<Void> delete(String path) {
+		if (path == null)
+			return error(BAD_REQUEST);
+
+		if( ! path.contains("/") ) {
+			var res = hot.delete( path );
+			heats.keySet().removeIf( k -> k.startsWith( path + "/" ));
+			return deleteTree( new File( coldRoot, path )) ? ok() : res;
+		}
+
+		return locked( path, () -> {
+			var res = hot.delete( path );
+			heats.remove( path );
+			return deleteCold( path ) ? ok() : res;
+		});
+	}
+
+	@Override
+	public Result<Long> size(String path) {
+		var res = hot.size( path );
+		if( res.isOK() || res.error() != NOT_FOUND )
+			return res;
+
+		var info = coldInfo( path );
+		return info != null ? ok( info.size() ) : hot.size( path );
+	}
+
+	@Override
+	public Result<BlobInfo> stat(String path) {
+		var res = hot.stat( path );
+		if( res.isOK() || res.error() != NOT_FOUND )
+			return res;
+
+		var info = coldInfo( path );
+		return info != null ? ok( info ) : hot.stat( path );
+	}
+
+	/*
+	 * A blob that is not found in either tier is looked up in the hot one again,
+	 * in case it was just promoted.
+	 */
+	@Override
+	public Result<InputStream> readStream(String path, long offset, long length) {
+		if (path == null || offset < 0 || length < 0)
+			return error(BAD_REQUEST);
+
+		var res = hot.readStream( path, offset, length );
+		if( res.isOK() || res.error() != NOT_FOUND )
+			return res;
+
+		var cold = coldStream( path, offset, length );
+		return cold.isOK() || cold.error() != NOT_FOUND ? cold : hot.readStream( path, offset, length );
+	}
+
+	@Override
+	public CompletableFuture<Result<ByteBuffer>> readAsync(String path, long offset, int length) {
+		if (path == null || offset < 0 || length < 0)
+			return completedFuture(error(BAD_REQUEST));
+
+		return hot.readAsync( path, offset, length ).thenCompose( res -> {
+			if( res.isOK() || res.error() != NOT_FOUND )
+				return completedFuture( res );
+
+			return CompletableFuture.supplyAsync( () -> Result.errorOrValue( coldStream( path, offset, length ), in -> ByteBuffer.wrap( IO.readAllBytes( in ))), AsyncIO.pool() )
+					.thenCompose( cold -> cold.isOK() || cold.error() != NOT_FOUND ? completedFuture( cold ) : hot.readAsync( path, offset, length ));
+		});
+	}
+
+	@Override
+	public Result<Void> read(String path, Consumer<byte[]> sink) {
+		var res = hot.read( path, sink );
+		if( res.isOK() || res.error() != NOT_FOUND )
+			return res;
+
+		var cold = coldStream( path, 0, Long.MAX_VALUE );
+		if( ! cold.isOK() )
+			return cold.error() == NOT_FOUND ? hot.read( path, sink ) : error( cold.error() );
+
+		try( var in = cold.value() ) {
+			IO.read( in, IO.BUFFER_SIZE, sink );
+			return ok();
+		} catch( IOException x ) {
+			x.printStackTrace();
+			return error(INTERNAL_ERROR);
+		}
+	}
+
+	@Override
+	public void prefetch(String path) {
+		hot.prefetch( path );
+	}
+
+	public Stats stats() {
+		return new Stats( coldReads.get(), demoted.get(), demotedBytes.get(), compressedBytes.get(), promoted.get(), errors.get(), lastPassMillis );
+	}
+
+	private void migrate( UserIndexStorage index ) {
+		for(;;) {
+			try {
+				TimeUnit.SECONDS.sleep( interval );
+				var t0 = System.currentTimeMillis();
+				for( var owner : index.owners() )
+					for( var name : index.names( owner ))
+						demote( owner + "/" + name );
+
+				var now = System.currentTimeMillis();
+				heats.values().removeIf( h -> h.at( now, halfLifeMillis ) < coldScore );
+				lastPassMillis = System.currentTimeMillis() - t0;
+				Log.info(() -> String.format("tiering pass done: %s\n", stats()));
+			} catch( InterruptedException x ) {
+				return;
+			} catch( RuntimeException x ) {
+				errors.incrementAndGet();
+				Log.warning(() -> String.format("tiering pass failed: %s\n", x));
+			}
+		}
+	}
+
+	/*
+	 * Compressed copy and its block index first, then its metadata, which marks it as complete, and only
+	 * then the hot copy is deleted. The metadata keeps the digest and time of the original upload.
+	 */
+	private void demote( String path ) {
+		locked( path, () -> {
+			var info = hot.stat( path );
+			if( ! info.isOK() || score( path, info.value().lastModified() ) >= coldScore || coldInfo( path ) != null )
+				return null;
+
+			var data = dataFile( path );
+			File tmp = null;
+			try {
+				data.getParentFile().mkdirs();
+				tmp = File.createTempFile( "." + data.getName() + ".", TMP_SUFFIX, data.getParentFile() );
+
+				var in = hot.readStream( path );
+				if( ! in.isOK() )
+					return null;
+
+				long[] blocks;
+				try( var is = in.value(); var out = new FileOutputStream( tmp )) {
+					blocks = compress( is, out );
+				}
+				Files.move( tmp.toPath(), data.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING );
+				saveIndex( path, blocks );
+				saveInfo( path, info.value() );
+
+				if( hot.delete( path ).isOK() ) {
+					demoted.incrementAndGet();
+					demotedBytes.addAndGet( info.value().size() );
+					compressedBytes.addAndGet( data.length() );
+					Log.fine(() -> String.format("demoted: %s, %d -> %d bytes\n", path, info.value().size(), data.length()));
+				} else // deleted meanwhile (eg. with all the blobs of its owner), so the copy goes too
+					deleteCold( path );
+			} catch( IOException | RuntimeException x ) {
+				errors.incrementAndGet();
+				Log.warning(() -> String.format("cannot demote %s: %s\n", path, x));
+				deleteCold( path );
+			} finally {
+				if( tmp != null )
+					IO.delete( tmp );
+			}
+			return null;
+		});
+	}
+
+	/*
+	 * Decompresses the blob back into the hot tier, in the background, once per blob at a time.
+	 */
+	private void promote( String path ) {
+		if( ! promoting.add( path ))
+			return;
+
+		promoter.execute( () -> {
+			try {
+				locked( path, () -> {
+					var in = coldStream( path, 0, Long.MAX_VALUE );
+					if( ! in.isOK() )
+						return null;
+
+					try( var is = in.value() ) {
+						if( hot.write( path, is ).isOK() ) {
+							deleteCold( path );
+							promoted.incrementAndGet();
+							Log.fine(() -> String.format("promoted: %s\n", path));
+						} else
+							errors.incrementAndGet();
+					} catch( IOException x ) {
+						errors.incrementAndGet();
+					}
+					return null;
+				});
+			} finally {
+				promoting.remove( path );
+			}
+		});
+	}
+
+	/*
+	 * Each block of the blob goes into a gzip member of its own; there is at least one, even if empty.
+	 * Returns where each starts in the compressed copy.
+	 */
+	private long[] compress( InputStream in, OutputStream out ) throws IOException {
+		var blocks = new ArrayList<Long>();
+		var block = new byte[COLD_BLOCK_SIZE];
+		var member = new ByteArrayOutputStream();
+		long pos = 0;
+		int n;
+		do {
+			n = in.readNBytes( block, 0, block.length );
+			member.reset();
+			try( var gz = new GZIPOutputStream( member, IO.BUFFER_SIZE )) {
+				gz.write( block, 0, n );
+			}
+			blocks.add( pos );
+			member.writeTo( out );
+			pos += member.size();
+		} while( n == block.length );
+		return blocks.stream().mapToLong( Long::longValue ).toArray();
+	}
+
+	/*
+	 * A range of a cold blob, decompressed from the start of the block it begins in (the following
+	 * members are read on as one gzip stream). Copies without an index are a single member.
+	 * Reads of a blob that has become hot again promote it.
+	 */
+	private Result<InputStream> coldStream( String path, long offset, long length ) {
+		var info = coldInfo( path );
+		if( info == null )
+			return error(NOT_FOUND);
+
+		try {
+			var blocks = coldIndex( path );
+			var start = Math.min( offset, info.size() );
+			var block = blocks.length > 1 ? (int) Math.min( start / COLD_BLOCK_SIZE, blocks.length - 1 ) : 0;
+
+			var file = new FileInputStream( dataFile( path ));
+			try {
+				file.getChannel().position( blocks[block] );
+				var in = new GZIPInputStream( new BufferedInputStream( file, IO.BUFFER_SIZE ), IO.BUFFER_SIZE );
+				in.skipNBytes( start - (long) block * COLD_BLOCK_SIZE );
+				coldReads.incrementAndGet();
+				if( score( path, info.lastModified() ) >= promoteHits )
+					promote( path );
+				return ok( IO.limit( in, length ));
+			} catch( IOException x ) {
+				file.close();
+				throw x;
+			}
+		} catch( FileNotFoundException | NoSuchFileException x ) {
+			return error(NOT_FOUND);
+		} catch( IOException x ) {
+			x.printStackTrace();
+			return error(INTERNAL_ERROR);
+		}
+	}
+
+	private Result<Void> matches( BlobInfo info, InputStream in ) {
+		return info.digest().equals( Hex.of( Hash.sha256( in ))) ? ok() : error(CONFLICT);
+	}
+
+	private void touch( String path ) {
+		var now = System.currentTimeMillis();
+		heats.compute( path, (__, h) -> new Heat( (h == null ? 0 : h.at( now, halfLifeMillis )) + 1, now ));
+	}
+
+	/*
+	 * Blobs without a score are taken to have been accessed only when uploaded.
+	 */
+	private double score( String path, long lastModified ) {
+		var h = heats.get( path );
+		return h != null ? h.at( System.currentTimeMillis(), halfLifeMillis ) : new Heat( 1, lastModified ).at( System.currentTimeMillis(), halfLifeMillis );
+	}
+
+	private BlobInfo coldInfo( String path ) {
+		try {
+			var fields = Files.readString( infoFile( path ).toPath() ).trim().split( INFO_SEP );
+			if( fields.length == 3 )
+				return new BlobInfo( Long.parseLong( fields[0] ), fields[1], Long.parseLong( fields[2] ));
+		} catch( NoSuchFileException x ) {
+			// not cold...
+		} catch( IOException | NumberFormatException x ) {
+			Log.warning(() -> String.format("bad cold metadata for %s: %s\n", path, x.getMessage()));
+		}
+		return null;
+	}
+
+	/*
+	 * Copies demoted before blocks were introduced have no index, and are read from the start.
+	 */
+	private long[] coldIndex( String path ) throws IOException {
+		try {
+			var buf = ByteBuffer.wrap( Files.readAllBytes( indexFile( path ).toPath() ));
+			var blocks = new long[ buf.remaining() / Long.BYTES ];
+			buf.asLongBuffer().get( blocks );
+			return blocks.length > 0 ? blocks : new long[] { 0 };
+		} catch( NoSuchFileException x ) {
+			return new long[] { 0 };
+		}
+	}
+
+	private void saveIndex( String path, long[] blocks ) throws IOException {
+		var buf = ByteBuffer.allocate( blocks.length * Long.BYTES );
+		buf.asLongBuffer().put( blocks );
+		Files.write( indexFile( path ).toPath(), buf.array() );
+	}
+
+	private void saveInfo( String path, BlobInfo info ) throws IOException {
+		var sidecar = infoFile( path );
+		var tmp = File.createTempFile( "." + sidecar.getName() + ".", TMP_SUFFIX, sidecar.getParentFile() );
+		try {
+			Files.writeString( tmp.toPath(), String.join( INFO_SEP, "" + info.size(), info.digest(), "" + info.lastModified() ));
+			Files.move( tmp.toPath(), sidecar.toPath(), StandardCopyOption.ATOMIC_MOVE );
+		} finally {
+			IO.delete( tmp );
+		}
+	}
+
+	/*
+	 * Metadata first, so the blob stops being cold before its contents go away.
+	 */
+	private boolean deleteCold( String path ) {
+		var found = IO.delete( infoFile( path ));
+		IO.delete( indexFile( path ));
+		return IO.delete( dataFile( path )) || found;
+	}
+
+	private boolean deleteTree( File dir ) {
+		if( ! dir.exists() )
+			return false;
+
+		try (var files = Files.walk( dir.toPath() )) {
+			files.sorted( Comparator.reverseOrder() ).map( Path::toFile ).forEach( File::delete );
+			return true;
+		} catch (IOException x) {
+			x.printStackTrace();
+			return false;
+		}
+	}
+
+	private File dataFile( String path ) {
+		return new File( coldRoot, path + DATA_SUFFIX );
+	}
+
+	private File indexFile( String path ) {
+		return new File( coldRoot, path + INDEX_SUFFIX );
+	}
+
+	private File infoFile( String path ) {
+		return new File( coldRoot, path + INFO_SUFFIX );
+	}
+
+	private <T> T locked( String path, Supplier<T> task ) {
+		var lock = locks[ Math.floorMod( path.hashCode(), locks.length ) ];
+		lock.lock();
+		try {
+			return task.get();
+		} finally {
+			lock.unlock();
+		}
+	}
+}
@@ -0,0 +1,254 @@
+package tukano.impl.storage;
+
+import static tukano.api.Result.error;
+import static tukano.api.Result.ok;
+import static tukano.api.Result.ErrorCode.BAD_REQUEST;
+import static tukano.api.Result.ErrorCode.INTERNAL_ERROR;
+import static tukano.api.Result.ErrorCode.NOT_FOUND;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Comparator;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.logging.Logger;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+
+import tukano.api.Result;
+import utils.IO;
+import utils.Props;
+import utils.Random;
+
+/**
+ * Resumable uploads: a blob is sent as numbered chunks, in any order and in parallel,
+ * each retried on its own, then committed into the blob storage as a whole.
+ *
+ * Each session is a directory in the uploads area, holding the path of the blob and one file
+ * per chunk received. Chunks are streamed to a temporary file and renamed when complete,
+ * so a chunk cut midway is simply not there. Commit claims the session directory with an
+ * atomic rename, so it cannot race with late chunks or another commit, and streams the chunks,
+ * in order, into the storage. Sessions survive restarts and expire if left idle.
+ *
+ * A committed session leaves a marker behind, until it expires too, so a commit retried because
+ * its response was lost succeeds again, rather than finding the session gone.
+ */
+public class UploadSessions {
+	private static Logger Log = Logger.getLogger(UploadSessions.class.getName());
+
+	private static final String ROOT_DIR_PROP = "blobs.uploads.root";
+	private static final String TTL_PROP = "blobs.uploads.ttl";
+	private static final String DEFAULT_ROOT_DIR = "/tmp/uploads/";
+	private static final int DEFAULT_TTL = 24 * 3600;
+	private static final int MAX_CHUNKS = 100_000;
+	private static final String PATH_FILE = "path";
+	private static final String CHUNK_PREFIX = "chunk-";
+	private static final String COMMITTING = ".committing";
+	private static final String COMMITTED = ".committed";
+
+	final File root;
+
+	public UploadSessions() {
+		this.root = new File( Props.get(ROOT_DIR_PROP, DEFAULT_ROOT_DIR));
+		root.mkdirs();
+
+		var ttl = Props.get(TTL_PROP, DEFAULT_TTL);
+		Executors.newSingleThreadScheduledExecutor( r -> {
+			var t = Executors.defaultThreadFactory().newThread(r);
+			t.setDaemon(true);
+			return t;
+		}).scheduleAtFixedRate( () -> expire( ttl ), 0, Math.max( 1, ttl / 10 ), TimeUnit.SECONDS);
+	}
+
+	/**
+	 * Opens a session for uploading the blob at the given path, returning its id.
+	 */
+	public Result<String> open( String path ) {
+		var id = Random.key128();
+		var dir = new File( root, id );
+		try {
+			Files.createDirectories( dir.toPath() );
+			Files.writeString( new File( dir, PATH_FILE ).toPath(), path );
+			return ok( id );
+		} catch( IOException x ) {
+			x.printStackTrace();
+			return error(INTERNAL_ERROR);
+		}
+	}
+
+	/**
+	 * Stores a chunk, replacing it if it was already received.
+	 */
+	public Result<Void> put( String path, String id, int chunk, InputStream in ) {
+		if( chunk < 0 || chunk >= MAX_CHUNKS )
+			return error(BAD_REQUEST);
+
+		var dir = session( path, id );
+		if( dir == null )
+			return error(NOT_FOUND);
+
+		File tmp = null;
+		try {
+			tmp = File.createTempFile( "." + CHUNK_PREFIX, null, dir );
+			IO.write( tmp, in );
+			Files.move( tmp.toPath(), new File( dir, CHUNK_PREFIX + chunk ).toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING );
+			dir.setLastModified( System.currentTimeMillis() );
+			return ok();
+		} catch( IOException | RuntimeException x ) {
+			// the session was committed, or expired, meanwhile...
+			return dir.exists() ? error(INTERNAL_ERROR) : error(NOT_FOUND);
+		} finally {
+			if( tmp != null )
+				IO.delete( tmp );
+		}
+	}
+
+	/**
+	 * The numbers of the chunks received so far, in ascending order.
+	 */
+	public Result<List<Integer>> received( String path, String id ) {
+		var dir = session( path, id );
+		if( dir == null )
+			return error(NOT_FOUND);
+
+		return ok( chunks( dir ).sorted().toList() );
+	}
+
+	/**
+	 * Hands chunks 0 to count-1, as a single stream, to the writer, and closes the session
+	 * if it succeeds. Otherwise, the session is left as it was, so the commit can be retried.
+	 * Committing a session that was already committed succeeds, without writing anything.
+	 */
+	public Result<Void> commit( String path, String id, int count, Function<InputStream, Result<Void>> writer ) {
+		if( count <= 0 || count > MAX_CHUNKS )
+			return error(BAD_REQUEST);
+
+		var dir = session( path, id );
+		if( dir == null )
+			return committed( path, id ) ? ok() : error(NOT_FOUND);
+
+		var claimed = new File( root, id + COMMITTING );
+		try {
+			Files.move( dir.toPath(), claimed.toPath(), StandardCopyOption.ATOMIC_MOVE );
+		} catch( IOException x ) {
+			return error(NOT_FOUND);
+		}
+
+		var ok = false;
+		try {
+			var files = IntStream.range(0, count).mapToObj( i -> new File( claimed, CHUNK_PREFIX + i )).toList();
+			if( ! files.stream().allMatch( File::isFile ) || chunks( claimed ).anyMatch( i -> i >= count ))
+				return error(BAD_REQUEST);
+
+			try( var in = concat( files ) ) {
+				var res = writer.apply( in );
+				ok = res.isOK();
+				return res;
+			}
+		} catch( IOException | UncheckedIOException x ) {
+			x.printStackTrace();
+			return error(INTERNAL_ERROR);
+		} finally {
+			if( ok ) {
+				markCommitted( path, id );
+				delete( claimed );
+			}
+			else if( ! claimed.renameTo( dir ) )
+				Log.warning(() -> String.format("cannot reopen upload session %s\n", id));
+		}
+	}
+
+	/*
+	 * The directory of the session, if it exists and belongs to the given blob path.
+	 */
+	private File session( String path, String id ) {
+		if( id == null || ! id.matches("[0-9a-v]+") )
+			return null;
+
+		var dir = new File( root, id );
+		try {
+			return Files.readString( new File( dir, PATH_FILE ).toPath() ).equals( path ) ? dir : null;
+		} catch( IOException x ) {
+			return null;
+		}
+	}
+
+	private boolean committed( String path, String id ) {
+		if( id == null || ! id.matches("[0-9a-v]+") )
+			return false;
+
+		try {
+			return Files.readString( new File( root, id + COMMITTED ).toPath() ).equals( path );
+		} catch( IOException x ) {
+			return false;
+		}
+	}
+
+	private void markCommitted( String path, String id ) {
+		try {
+			Files.writeString( new File( root, id + COMMITTED ).toPath(), path );
+		} catch( IOException x ) {
+			Log.warning(() -> String.format("cannot mark upload session %s as committed: %s\n", id, x.getMessage()));
+		}
+	}
+
+	private static Stream<Integer> chunks( File dir ) {
+		var names = dir.list( (__, name) -> name.startsWith( CHUNK_PREFIX ));
+		return names == null ? Stream.empty() : Stream.of( names ).map( name -> Integer.valueOf( name.substring( CHUNK_PREFIX.length() )));
+	}
+
+	/*
+	 * The chunks, one after the other, each file only opened when its turn comes.
+	 */
+	private static InputStream concat( List<File> files ) {
+		var it = files.iterator();
+		return new SequenceInputStream( new Enumeration<InputStream>() {
+			@Override
+			public boolean hasMoreElements() {
+				return it.hasNext();
+			}
+
+			@Override
+			public InputStream nextElement() {
+				try {
+					return new FileInputStream( it.next() );
+				} catch( IOException x ) {
+					throw new UncheckedIOException( x );
+				}
+			}
+		});
+	}
+
+	private void expire( int ttl ) {
+		var deadline = System.currentTimeMillis() - ttl * 1000L;
+		var dirs = root.listFiles( f -> f.isDirectory() && f.lastModified() < deadline && ! f.getName().endsWith( COMMITTING ));
+		if( dirs != null )
+			for( var dir : dirs ) {
+				Log.info(() -> String.format("upload session %s expired\n", dir.getName()));
+				delete( dir );
+			}
+
+		var markers = root.listFiles( f -> f.isFile() && f.lastModified() < deadline && f.getName().endsWith( COMMITTED ));
+		if( markers != null )
+			for( var marker : markers )
+				IO.delete( marker );
+	}
+
+	private static void delete( File dir ) {
+		try( var files = Files.walk( dir.toPath() ) ) {
+			files.sorted( Comparator.reverseOrder() ).map( Path::toFile ).forEach( File::delete );
+		} catch( IOException x ) {
+			x.printStackTrace();
+		}
+	}
+}
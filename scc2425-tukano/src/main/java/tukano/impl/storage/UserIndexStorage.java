@@ -0,0 +1,322 @@
+package tukano.impl.storage;
+
+import static tukano.api.Result.error;
+import static tukano.api.Result.ok;
+import static tukano.api.Result.ErrorCode.BAD_REQUEST;
+import static tukano.api.Result.ErrorCode.INTERNAL_ERROR;
+import static tukano.api.Result.ErrorCode.NOT_FOUND;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.logging.Logger;
+
+import tukano.api.BlobInfo;
+import tukano.api.BlobUsage;
+import tukano.api.Result;
+import utils.Props;
+
+/**
+ * A BlobStorage decorator that keeps, per owner, the names and sizes of its blobs and their total,
+ * updated on each write and delete, so the usage of a user is known without a scan.
+ *
+ * Deleting all the blobs of an owner goes from the index: its blobs are split in shards,
+ * deleted in parallel, and only what is left (eg. empty directories) is deleted by prefix.
+ *
+ * Like the index of the content-addressed storage, it is kept in memory and persisted as an
+ * append-only journal, compacted on startup and whenever it grows well past the live entries.
+ */
+public class UserIndexStorage implements BlobStorage {
+	private static Logger Log = Logger.getLogger(UserIndexStorage.class.getName());
+
+	private static final String JOURNAL_PROP = "blobs.index.journal";
+	private static final String DELETE_THREADS_PROP = "blobs.index.deleteThreads";
+	private static final String DEFAULT_JOURNAL = "/tmp/blobs-index.journal";
+	private static final int DEFAULT_DELETE_THREADS = 8;
+	private static final int COMPACTION_FACTOR = 2, COMPACTION_MIN_ENTRIES = 10_000;
+	private static final String ADD = "+", REMOVE = "-", SEP = "\t";
+
+	/*
+	 * The blobs of an owner, by name, with their sizes.
+	 */
+	static class Owner {
+		final Map<String, Long> blobs = new ConcurrentHashMap<>();
+		final AtomicLong bytes = new AtomicLong();
+
+		Long put( String name, long size ) {
+			var prev = blobs.put( name, size );
+			bytes.addAndGet( size - (prev == null ? 0 : prev) );
+			return prev;
+		}
+
+		boolean remove( String name ) {
+			var prev = blobs.remove( name );
+			if( prev != null )
+				bytes.addAndGet( -prev );
+			return prev != null;
+		}
+	}
+
+	final BlobStorage storage;
+	final File journalFile;
+	final ExecutorService deleters;
+	final int shards;
+	final Map<String, Owner> owners = new ConcurrentHashMap<>();
+	final AtomicInteger live = new AtomicInteger();
+
+	private Writer journal;
+	private int journalEntries;
+
+	public UserIndexStorage(BlobStorage storage) {
+		this.storage = storage;
+		this.journalFile = new File( Props.get(JOURNAL_PROP, DEFAULT_JOURNAL));
+		this.shards = Props.get(DELETE_THREADS_PROP, DEFAULT_DELETE_THREADS);
+		this.deleters = Executors.newFixedThreadPool( shards, r -> {
+			var t = Executors.defaultThreadFactory().newThread(r);
+			t.setName("blobs-delete:" + t.getName());
+			t.setDaemon(true);
+			return t;
+		});
+		recover();
+	}
+
+	@Override
+	public Result<Void> write(String path, InputStream in) {
+		var res = storage.write( path, in );
+		if( res.isOK() )
+			added( path );
+		return res;
+	}
+
+	@Override
+	public CompletableFuture<Result<Void>> writeAsync(String path, InputStream in) {
+		return storage.writeAsync( path, in ).thenApply( res -> {
+			if( res.isOK() )
+				added( path );
+			return res;
+		});
+	}
+
+	/*
+	 * Deletes the blob at the given path, or, given an owner, all its blobs.
+	 */
+	@Override
+	public Result<Void> delete(String path) {
+		if (path == null)
+			return error(BAD_REQUEST);
+
+		if( ! path.contains("/") )
+			return deleteAll( path );
+
+		var res = storage.delete( path );
+		if( res.isOK() || res.error() == NOT_FOUND )
+			removed( path );
+		return res;
+	}
+
+	@Override
+	public Result<Long> size(String path) {
+		return storage.size( path );
+	}
+
+	@Override
+	public Result<BlobInfo> stat(String path) {
+		return storage.stat( path );
+	}
+
+	@Override
+	public Result<InputStream> readStream(String path, long offset, long length) {
+		return storage.readStream( path, offset, length );
+	}
+
+	@Override
+	public CompletableFuture<Result<ByteBuffer>> readAsync(String path, long offset, int length) {
+		return storage.readAsync( path, offset, length );
+	}
+
+	@Override
+	public Result<Void> read(String path, Consumer<byte[]> sink) {
+		return storage.read( path, sink );
+	}
+
+	@Override
+	public void prefetch(String path) {
+		storage.prefetch( path );
+	}
+
+	/**
+	 * Number of blobs and total bytes of the owner, in constant time.
+	 */
+	public BlobUsage usage( String owner ) {
+		var o = owners.get( owner );
+		return o == null ? new BlobUsage( owner, 0, 0 ) : new BlobUsage( owner, o.blobs.size(), o.bytes.get() );
+	}
+
+	/**
+	 * The owners with blobs, in order.
+	 */
+	public List<String> owners() {
+		return owners.keySet().stream().sorted().toList();
+	}
+
+	/**
+	 * The names of the blobs of the owner, in order.
+	 */
+	public List<String> names( String owner ) {
+		var o = owners.get( owner );
+		return o == null ? List.of() : o.blobs.keySet().stream().sorted().toList();
+	}
+
+	/*
+	 * The blobs of the owner are dealt to the shards round-robin, and each shard deletes its own, in sequence.
+	 * Then, the prefix is deleted, to remove what the index does not know about. If the owner is left
+	 * without blobs, a single journal entry records it.
+	 */
+	private Result<Void> deleteAll( String owner ) {
+		var o = owners.get( owner );
+		var names = o == null ? List.<String>of() : new ArrayList<>( o.blobs.keySet() );
+
+		var deleted = ConcurrentHashMap.<String>newKeySet();
+		var tasks = new ArrayList<CompletableFuture<Void>>();
+		for( int s = 0; s < Math.min( shards, names.size() ); s++ ) {
+			var shard = s;
+			tasks.add( CompletableFuture.runAsync( () -> {
+				for( int i = shard; i < names.size(); i += shards ) {
+					var res = storage.delete( owner + "/" + names.get(i) );
+					if( res.isOK() || res.error() == NOT_FOUND )
+						deleted.add( names.get(i) );
+				}
+			}, deleters ));
+		}
+		CompletableFuture.allOf( tasks.toArray( CompletableFuture[]::new )).join();
+
+		owners.computeIfPresent( owner, (__, v) -> {
+			for( var name : deleted )
+				if( v.remove( name ))
+					live.decrementAndGet();
+			if( v.blobs.isEmpty() ) {
+				log( REMOVE, owner );
+				return null;
+			}
+			deleted.forEach( name -> log( REMOVE, owner + "/" + name ));
+			return v;
+		});
+
+		var rest = storage.delete( owner );
+		if( deleted.size() < names.size() || ( ! rest.isOK() && rest.error() != NOT_FOUND ))
+			return error(INTERNAL_ERROR);
+
+		return names.isEmpty() && ! rest.isOK() ? error(NOT_FOUND) : ok();
+	}
+
+	private void added( String path ) {
+		var size = storage.size( path );
+		if( ! size.isOK() )
+			return;
+
+		var parts = path.split("/", 2);
+		if( parts.length < 2 )
+			return;
+
+		// within compute(), so updates of an owner, and their journal entries, are in the same order
+		owners.compute( parts[0], (__, o) -> {
+			o = o != null ? o : new Owner();
+			var prev = o.put( parts[1], size.value() );
+			if( prev == null )
+				live.incrementAndGet();
+			if( ! size.value().equals( prev ))
+				log( ADD, path, "" + size.value() );
+			return o;
+		});
+	}
+
+	private void removed( String path ) {
+		var parts = path.split("/", 2);
+		owners.computeIfPresent( parts[0], (__, o) -> {
+			if( o.remove( parts[1] )) {
+				live.decrementAndGet();
+				log( REMOVE, path );
+			}
+			return o;
+		});
+	}
+
+	/*
+	 * Called while the change is being made, so it is compacted (if due) before its entry is appended.
+	 */
+	synchronized private void log( String... fields ) {
+		try {
+			if( journalEntries > COMPACTION_FACTOR * live.get() + COMPACTION_MIN_ENTRIES )
+				compact();
+			journal.write( String.join( SEP, fields ) + "\n");
+			journal.flush();
+			journalEntries++;
+		} catch( IOException x ) {
+			throw new UncheckedIOException( x );
+		}
+	}
+
+	/*
+	 * Rewrites the journal with only the live entries. Replaying the journal is idempotent,
+	 * so an entry changed while it is being rewritten is still right, once its own line follows.
+	 */
+	synchronized private void compact() throws IOException {
+		if( journal != null )
+			journal.close();
+
+		var compacted = new File( journalFile.getPath() + ".new" );
+		int entries = 0;
+		try( var w = new FileWriter( compacted ) ) {
+			for( var o : owners.entrySet() )
+				for( var b : o.getValue().blobs.entrySet() ) {
+					w.write( String.join( SEP, ADD, o.getKey() + "/" + b.getKey(), "" + b.getValue() ) + "\n");
+					entries++;
+				}
+		}
+		Files.move( compacted.toPath(), journalFile.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING );
+		journal = new FileWriter( journalFile, true );
+		journalEntries = entries;
+	}
+
+	private void recover() {
+		try {
+			if( journalFile.exists() )
+				for( var line : Files.readAllLines( journalFile.toPath() ) ) {
+					var fields = line.split( SEP );
+					if( fields.length < 2 )
+						continue;
+					var parts = fields[1].split("/", 2);
+					if( fields[0].equals( ADD ) && fields.length == 3 && parts.length == 2 )
+						owners.computeIfAbsent( parts[0], __ -> new Owner() ).put( parts[1], Long.parseLong( fields[2] ));
+					else if( fields[0].equals( REMOVE ) && parts.length == 1 )
+						owners.remove( parts[0] );
+					else if( fields[0].equals( REMOVE ) && owners.containsKey( parts[0] ))
+						owners.get( parts[0] ).remove( parts[1] );
+				}
+			owners.values().removeIf( o -> o.blobs.isEmpty() );
+			live.set( owners.values().stream().mapToInt( o -> o.blobs.size() ).sum() );
+
+			journalFile.getAbsoluteFile().getParentFile().mkdirs();
+			compact();
+			Log.info(() -> String.format("user index: %d owners, %d blobs\n", owners.size(), live.get()));
+		} catch( IOException | NumberFormatException x ) {
+			throw new IllegalStateException( x );
+		}
+	}
+}
@@ -0,0 +1,80 @@
+package tukano.impl.storage;
+
+import static tukano.api.Result.error;
+import static tukano.api.Result.ErrorCode.INTERNAL_ERROR;
+
+import java.io.File;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import tukano.api.Result;
+
+/**
+ * A local disk (or directory) holding blobs, with its own I/O thread pool,
+ * so that a slow or busy disk only queues its own requests.
+ */
+public class Volume {
+
+	public record Stats(String root, long reads, long writes, long bytesRead, long bytesWritten, int queueDepth, double readMBps, double writeMBps) {}
+
+	final File root;
+	final ExecutorService pool;
+	final long startTime = System.currentTimeMillis();
+	final AtomicInteger queueDepth = new AtomicInteger();
+	final AtomicLong reads = new AtomicLong(), writes = new AtomicLong();
+	final AtomicLong bytesRead = new AtomicLong(), bytesWritten = new AtomicLong();
+
+	Volume(File root, int threads) {
+		this.root = root;
+		this.pool = Executors.newFixedThreadPool(threads, r -> {
+			var t = Executors.defaultThreadFactory().newThread(r);
+			t.setName("volume:" + root + ":" + t.getName());
+			t.setDaemon(true);
+			return t;
+		});
+	}
+
+	/*
+	 * Runs the I/O operation in the pool of this volume, waiting for its result.
+	 */
+	<T> Result<T> execute(Callable<Result<T>> op) {
+		queueDepth.incrementAndGet();
+		try {
+			return pool.submit(op).get();
+		} catch (ExecutionException x) {
+			x.getCause().printStackTrace();
+			return error(INTERNAL_ERROR);
+		} catch (InterruptedException x) {
+			Thread.currentThread().interrupt();
+			return error(INTERNAL_ERROR);
+		} finally {
+			queueDepth.decrementAndGet();
+		}
+	}
+
+	void readDone(long bytes) {
+		reads.incrementAndGet();
+		bytesRead.addAndGet(bytes);
+	}
+
+	void writeDone(long bytes) {
+		writes.incrementAndGet();
+		bytesWritten.addAndGet(bytes);
+	}
+
+	Stats stats() {
+		var secs = Math.max(1, System.currentTimeMillis() - startTime) / 1000.0;
+		var mb = 1024.0 * 1024.0;
+		return new Stats(root.getPath(), reads.get(), writes.get(), bytesRead.get(), bytesWritten.get(), queueDepth.get(),
+				bytesRead.get() / mb / secs, bytesWritten.get() / mb / secs);
+	}
+
+	@Override
+	public String toString() {
+		return root.getPath();
+	}
+}
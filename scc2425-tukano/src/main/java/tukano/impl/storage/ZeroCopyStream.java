@@ -0,0 +1,19 @@
+package tukano.impl.storage;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * A stream that can send its next bytes into an OutputStream without copying them through a heap
+ * buffer of its own, eg. with FileChannel.transferTo, or from mapped or direct buffers.
+ * 
+ * Downloads send the streams that are so in chunks, each once the client is granted it.
+ */
+public interface ZeroCopyStream {
+
+	/**
+	 * Sends up to count of the next bytes of the stream into out.
+	 * @return the number of bytes sent, 0 only at the end of the stream
+	 */
+	long transferTo(OutputStream out, long count) throws IOException;
+}
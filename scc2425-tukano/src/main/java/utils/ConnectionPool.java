@@ -0,0 +1,174 @@
+package utils;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.Properties;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+import javax.sql.DataSource;
+
+import org.hibernate.engine.jdbc.connections.spi.ConnectionProvider;
+
+import com.zaxxer.hikari.HikariConfig;
+import com.zaxxer.hikari.HikariDataSource;
+import com.zaxxer.hikari.metrics.IMetricsTracker;
+import com.zaxxer.hikari.metrics.MetricsTrackerFactory;
+import com.zaxxer.hikari.metrics.PoolStats;
+
+/**
+ * The JDBC connection pool (HikariCP) behind Hibernate.
+ *
+ * It keeps between db.pool.minIdle and db.pool.maxSize connections; a session waits at most
+ * db.pool.acquireTimeout ms for one, and a connection held longer than db.pool.leakThreshold ms
+ * is logged, with the stack trace of whoever took it (0 turns leak detection off).
+ *
+ * Besides the JMX beans of the pool, it counts acquisitions, how long they waited and how long
+ * connections were held, and logs them with the active, idle and waiting counts every
+ * db.pool.reportInterval seconds, so the pool can be sized against the contention measured.
+ *
+ * The pool does not cache prepared statements: drivers that can (eg. PostgreSQL's prepareThreshold,
+ * MySQL's cachePrepStmts) have it turned on in the connection.url. HSQLDB compiles a statement in a
+ * few microseconds, so it goes without.
+ */
+public class ConnectionPool implements ConnectionProvider {
+	private static final long serialVersionUID = 1L;
+	private static Logger Log = Logger.getLogger(ConnectionPool.class.getName());
+
+	private static final String MIN_IDLE_PROP = "db.pool.minIdle";
+	private static final String MAX_SIZE_PROP = "db.pool.maxSize";
+	private static final String ACQUIRE_TIMEOUT_PROP = "db.pool.acquireTimeout";
+	private static final String IDLE_TIMEOUT_PROP = "db.pool.idleTimeout";
+	private static final String LEAK_THRESHOLD_PROP = "db.pool.leakThreshold";
+	private static final String REPORT_INTERVAL_PROP = "db.pool.reportInterval";
+	private static final int DEFAULT_MIN_IDLE = 8;
+	private static final int DEFAULT_MAX_SIZE = 64;
+	private static final long DEFAULT_ACQUIRE_TIMEOUT = 5_000;
+	private static final long DEFAULT_IDLE_TIMEOUT = 600_000;
+	private static final long DEFAULT_LEAK_THRESHOLD = 30_000;
+	private static final int DEFAULT_REPORT_INTERVAL = 60;
+	private static final String POOL_NAME = "tukano-db";
+
+	public record Stats(int active, int idle, int total, int waiting, long acquisitions, double avgWaitMillis,
+			double maxWaitMillis, long timeouts, double avgUsageMillis) {}
+
+	final HikariDataSource dataSource;
+	final AtomicLong acquisitions = new AtomicLong(), waitNanos = new AtomicLong(), maxWaitNanos = new AtomicLong();
+	final AtomicLong usages = new AtomicLong(), usageMillis = new AtomicLong(), timeouts = new AtomicLong();
+
+	/**
+	 * A pool of connections to the database of the given (Hibernate) connection properties.
+	 */
+	public ConnectionPool( String driver, String url, String username, String password ) {
+		var config = new HikariConfig();
+		config.setPoolName( POOL_NAME );
+		if( driver != null )
+			config.setDriverClassName( driver );
+		config.setJdbcUrl( url );
+		config.setUsername( username );
+		config.setPassword( password == null ? "" : password );
+		config.setMinimumIdle( Props.get(MIN_IDLE_PROP, DEFAULT_MIN_IDLE));
+		config.setMaximumPoolSize( Props.get(MAX_SIZE_PROP, DEFAULT_MAX_SIZE));
+		config.setConnectionTimeout( Props.get(ACQUIRE_TIMEOUT_PROP, DEFAULT_ACQUIRE_TIMEOUT));
+		config.setIdleTimeout( Props.get(IDLE_TIMEOUT_PROP, DEFAULT_IDLE_TIMEOUT));
+		config.setLeakDetectionThreshold( Props.get(LEAK_THRESHOLD_PROP, DEFAULT_LEAK_THRESHOLD));
+		// as the built-in pool had them; Hibernate is told, so it does not toggle it on every transaction
+		config.setAutoCommit( false );
+		config.setRegisterMbeans( true );
+		config.setMetricsTrackerFactory( new Tracker() );
+		this.dataSource = new HikariDataSource( config );
+
+		var interval = Props.get(REPORT_INTERVAL_PROP, DEFAULT_REPORT_INTERVAL);
+		if( interval > 0 )
+			Executors.newSingleThreadScheduledExecutor( r -> {
+				var t = new Thread( r, "db-pool-report" );
+				t.setDaemon( true );
+				return t;
+			}).scheduleAtFixedRate( () -> Log.info(() -> String.format("db pool: %s\n", stats())), interval, interval, TimeUnit.SECONDS);
+
+		Log.info(() -> String.format("db pool: %d..%d connections to %s\n", config.getMinimumIdle(), config.getMaximumPoolSize(), url));
+	}
+
+	public DataSource dataSource() {
+		return dataSource;
+	}
+
+	/**
+	 * The Hibernate settings for sessions to take their connections from the pool.
+	 */
+	public Properties settings() {
+		var props = new Properties();
+		props.put( "hibernate.connection.provider_class", this );
+		props.put( "hibernate.connection.provider_disables_autocommit", "true" );
+		return props;
+	}
+
+	@Override
+	public Connection getConnection() throws SQLException {
+		return dataSource.getConnection();
+	}
+
+	@Override
+	public void closeConnection( Connection connection ) throws SQLException {
+		connection.close();
+	}
+
+	@Override
+	public boolean supportsAggressiveRelease() {
+		return false;
+	}
+
+	@Override
+	public boolean isUnwrappableAs( Class<?> type ) {
+		return type.isInstance( this ) || type.isInstance( dataSource );
+	}
+
+	@Override
+	@SuppressWarnings("unchecked")
+	public <T> T unwrap( Class<T> type ) {
+		return (T) (type.isInstance( this ) ? this : dataSource);
+	}
+
+	public Stats stats() {
+		var pool = dataSource.getHikariPoolMXBean();
+		var n = acquisitions.get();
+		var u = usages.get();
+		return new Stats( pool.getActiveConnections(), pool.getIdleConnections(), pool.getTotalConnections(), pool.getThreadsAwaitingConnection(),
+				n, n == 0 ? 0 : waitNanos.get() / 1e6 / n, maxWaitNanos.get() / 1e6, timeouts.get(), u == 0 ? 0 : (double) usageMillis.get() / u );
+	}
+
+	public void close() {
+		dataSource.close();
+	}
+
+	/*
+	 * Called by the pool on each checkout and return of a connection.
+	 */
+	class Tracker implements MetricsTrackerFactory, IMetricsTracker {
+
+		@Override
+		public IMetricsTracker create( String poolName, PoolStats poolStats ) {
+			return this;
+		}
+
+		@Override
+		public void recordConnectionAcquiredNanos( long elapsedAcquiredNanos ) {
+			acquisitions.incrementAndGet();
+			waitNanos.addAndGet( elapsedAcquiredNanos );
+			maxWaitNanos.accumulateAndGet( elapsedAcquiredNanos, Math::max );
+		}
+
+		@Override
+		public void recordConnectionUsageMillis( long elapsedBorrowedMillis ) {
+			usages.incrementAndGet();
+			usageMillis.addAndGet( elapsedBorrowedMillis );
+		}
+
+		@Override
+		public void recordConnectionTimeout() {
+			timeouts.incrementAndGet();
+		}
+	}
+}
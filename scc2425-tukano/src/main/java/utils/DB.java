@@ -1,6 +1,10 @@
 package utils;
 
+import java.sql.ResultSet;
+import java.sql.SQLException;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.function.Consumer;
 import java.util.function.Function;
 
@@ -8,8 +12,75 @@ import org.hibernate.Session;
 
 import tukano.api.Result;
 
+/**
+ * Database access helpers.
+ *
+ * Queries on the hot path are registered once, by name, as parameterized SQL, and run with bind
+ * parameters, as prepared statements, so their parameters can never be taken for SQL. Rows are
+ * mapped to the result type by a projection (a single column, for scalar types).
+ *
+ * Queries built with String.format are run as fresh native queries, so they are the slow path.
+ *
+ * Within a unit of work (begin/end), all calls share the session of the unit of work; otherwise,
+ * each call uses a session, and a transaction, of its own.
+ */
 public class DB {
 
+	/**
+	 * Maps the current row of a result set.
+	 */
+	@FunctionalInterface
+	public interface Projection<T> {
+		T map(ResultSet rs) throws SQLException;
+	}
+
+	/**
+	 * A named SQL statement, with ? for its parameters. A List parameter is bound as an array,
+	 * eg. for IN ( UNNEST(?) ).
+	 */
+	public record Query<T>(String name, String sql, Projection<T> projection) {}
+
+	private static final Map<String, Query<?>> queries = new ConcurrentHashMap<>();
+
+	/**
+	 * Registers a query whose rows have a single column of the given type.
+	 */
+	public static <T> Query<T> query(String name, String sql, Class<T> clazz) {
+		return query(name, sql, rs -> rs.getObject(1, clazz));
+	}
+
+	public static <T> Query<T> query(String name, String sql, Projection<T> projection) {
+		var q = new Query<>(name, sql, projection);
+		if (queries.putIfAbsent(name, q) != null)
+			throw new IllegalStateException("Query already registered: " + name);
+		return q;
+	}
+
+	/**
+	 * Registers a statement that returns no rows (eg. UPDATE, DELETE).
+	 */
+	public static Query<Void> update(String name, String sql) {
+		return query(name, sql, rs -> null);
+	}
+
+	public static <T> List<T> sql(Query<T> query, Object... args) {
+		return Hibernate.getInstance().query(query.sql(), query.projection(), args);
+	}
+
+	/**
+	 * Runs the statement in a transaction of its own.
+	 */
+	public static Result<Integer> update(Query<?> query, Object... args) {
+		return Hibernate.getInstance().execute((Session session) -> Result.ok(update(session, query, args)));
+	}
+
+	/**
+	 * Runs the statement in the transaction of the given session.
+	 */
+	public static int update(Session session, Query<?> query, Object... args) {
+		return Hibernate.getInstance().update(session, query.sql(), args);
+	}
+
 	public static <T> List<T> sql(String query, Class<T> clazz) {
 		return Hibernate.getInstance().sql(query, clazz);
 	}
@@ -41,4 +112,38 @@ public class DB {
 	public static <T> Result<T> transaction( Function<Session, Result<T>> func) {
 		return Hibernate.getInstance().execute( func );
 	}
+
+	/**
+	 * Starts a unit of work on the current thread: until it ends, the calls of the thread share
+	 * one session, and so one connection and one transaction, taken on first use.
+	 */
+	public static void begin() {
+		Hibernate.getInstance().begin();
+	}
+
+	/**
+	 * The session of the unit of work of the current thread, or null if there is none.
+	 */
+	public static Session current() {
+		return Hibernate.getInstance().current();
+	}
+
+	/**
+	 * Runs the task once the unit of work of the current thread commits, or right away, if there is none.
+	 */
+	public static void afterCommit(Runnable task) {
+		Hibernate.getInstance().afterCommit(task);
+	}
+
+	/**
+	 * Ends the unit of work of the current thread, committing it if asked to and nothing failed,
+	 * or else rolling it back.
+	 */
+	public static Result<Void> end(boolean commit) {
+		return Hibernate.getInstance().end(commit);
+	}
+
+	public static ConnectionPool.Stats poolStats() {
+		return Hibernate.getInstance().poolStats();
+	}
 }
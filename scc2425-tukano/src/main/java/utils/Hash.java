@@ -1,5 +1,9 @@
 package utils;
 
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
 import java.math.BigInteger;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
@@ -34,6 +38,29 @@ public class Hash {
 			return sha256.digest();
 		}
 		
+		/*
+		 * Streaming digest, uses its own MessageDigest so it can run concurrently...
+		 */
+		public static byte[] sha256( InputStream in ) {
+			try {
+				var md = MessageDigest.getInstance("SHA-256");
+				var buf = new byte[IO.BUFFER_SIZE];
+				int n;
+				while ((n = in.read(buf)) > 0)
+					md.update(buf, 0, n);
+				return md.digest();
+			} catch (NoSuchAlgorithmException | IOException x) {
+				throw new RuntimeException(x);
+			}
+		}
+		
+		public static byte[] sha256( File file ) {
+			try (var in = new FileInputStream(file)) {
+				return sha256( in );
+			} catch (IOException x) {
+				throw new RuntimeException(x);
+			}
+		}
 		
 		synchronized public static String of(Object ...values) {
 			if (md5 == null) {
@@ -1,6 +1,10 @@
 package utils;
 
 import java.io.File;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.function.Consumer;
 import java.util.function.Function;
@@ -27,9 +31,28 @@ public class Hibernate {
 	private SessionFactory sessionFactory;
 	private static Hibernate instance;
 
+	private ConnectionPool pool;
+
+	/*
+	 * The unit of work of a thread: a session, and its transaction, opened on first use and shared by
+	 * all the calls made until it ends. A failed statement marks it for rollback.
+	 */
+	static class UnitOfWork {
+		Session session;
+		Transaction tx;
+		boolean rollbackOnly;
+		final List<Runnable> afterCommit = new ArrayList<>();
+	}
+
+	private final ThreadLocal<UnitOfWork> units = new ThreadLocal<>();
+
 	private Hibernate() {
 		try {
-			sessionFactory = new Configuration().configure(new File(HIBERNATE_CFG_FILE)).buildSessionFactory();
+			var configuration = new Configuration().configure(new File(HIBERNATE_CFG_FILE));
+			pool = new ConnectionPool(setting(configuration, "connection.driver_class"), setting(configuration, "connection.url"),
+					setting(configuration, "connection.username"), setting(configuration, "connection.password"));
+			configuration.addProperties(pool.settings());
+			sessionFactory = configuration.buildSessionFactory();
 
 		} catch (Exception e) {
 			e.printStackTrace();
@@ -48,6 +71,90 @@ public class Hibernate {
 		return instance;
 	}
 
+	/**
+	 * Connection pool usage: active, idle and waiting, and how long acquisitions waited.
+	 */
+	public ConnectionPool.Stats poolStats() {
+		return pool.stats();
+	}
+
+	private static String setting(Configuration configuration, String name) {
+		var value = configuration.getProperty("hibernate." + name);
+		return value != null ? value : configuration.getProperty(name);
+	}
+
+	/**
+	 * Starts a unit of work on the current thread. Until it ends, all the calls of the thread
+	 * use the same session, and so the same connection and transaction.
+	 */
+	public void begin() {
+		if (units.get() != null)
+			end(false); // left over by a request that did not end it
+		units.set(new UnitOfWork());
+	}
+
+	/**
+	 * The session of the unit of work of the current thread, opened (and its transaction begun)
+	 * on first use; null, if there is no unit of work.
+	 */
+	public Session current() {
+		var unit = units.get();
+		if (unit == null)
+			return null;
+		if (unit.session == null) {
+			unit.session = sessionFactory.openSession();
+			unit.tx = unit.session.beginTransaction();
+		}
+		return unit.session;
+	}
+
+	/**
+	 * Runs the task once the unit of work of the current thread is committed, or right away,
+	 * if there is none. If it is rolled back, the task is dropped.
+	 */
+	public void afterCommit(Runnable task) {
+		var unit = units.get();
+		if (unit == null)
+			task.run();
+		else
+			unit.afterCommit.add(task);
+	}
+
+	/**
+	 * Ends the unit of work of the current thread, committing its transaction, unless told
+	 * otherwise or a statement failed, in which case it is rolled back.
+	 */
+	public Result<Void> end(boolean commit) {
+		var unit = units.get();
+		units.remove();
+		if (unit == null)
+			return Result.ok();
+		if (unit.session == null) {
+			if (commit)
+				unit.afterCommit.forEach(Runnable::run);
+			return Result.ok();
+		}
+
+		try {
+			if (commit && !unit.rollbackOnly) {
+				unit.session.flush();
+				unit.tx.commit();
+				unit.afterCommit.forEach(Runnable::run);
+			} else
+				unit.tx.rollback();
+			return Result.ok();
+		} catch (ConstraintViolationException __) {
+			rollback(unit.tx);
+			return Result.error(ErrorCode.CONFLICT);
+		} catch (Exception e) {
+			rollback(unit.tx);
+			e.printStackTrace();
+			return Result.error(ErrorCode.INTERNAL_ERROR);
+		} finally {
+			unit.session.close();
+		}
+	}
+
 	public Result<Void> persistOne(Object  obj) {
 		return execute( (hibernate) -> {
 			hibernate.persist( obj );
@@ -72,26 +179,81 @@ public class Hibernate {
 	}
 		
 	public <T> Result<T> getOne(Object id, Class<T> clazz) {
-		try (var session = sessionFactory.openSession()) {
+		return read( session -> {
 			var res = session.find(clazz, id);
 			if (res == null)
 				return Result.error(ErrorCode.NOT_FOUND);
 			else
 				return Result.ok(res);
-		} catch (Exception e) {
-			throw e;
-		}
+		});
 	}
 	
 	public <T> List<T> sql(String sqlStatement, Class<T> clazz) {
-		try (var session = sessionFactory.openSession()) {
+		return read( session -> {
 			var query = session.createNativeQuery(sqlStatement, clazz);
 			return query.list();
-		} catch (Exception e) {
+		});
+	}
+	
+	public <T> List<T> query(String sql, DB.Projection<T> projection, Object... args) {
+		return read( session -> session.doReturningWork( connection -> {
+			try (var ps = prepared( connection, sql, args ); var rs = ps.executeQuery()) {
+				var res = new ArrayList<T>();
+				while (rs.next())
+					res.add( projection.map( rs ) );
+				return res;
+			}
+		}));
+	}
+
+	/*
+	 * Reads in the session of the unit of work, if there is one, or else in a session of its own.
+	 */
+	private <T> T read(Function<Session, T> func) {
+		var unit = units.get();
+		if (unit != null)
+			try {
+				return func.apply( current() );
+			} catch (RuntimeException e) {
+				unit.rollbackOnly = true;
+				throw e;
+			}
+
+		try (var session = sessionFactory.openSession()) {
+			return func.apply( session );
+		}
+	}
+
+	public int update(Session session, String sql, Object... args) {
+		return session.doReturningWork( connection -> {
+			try (var ps = prepared( connection, sql, args )) {
+				var count = ps.executeUpdate();
+				connection.clearWarnings(); // eg. no rows deleted
+				return count;
+			}
+		});
+	}
+
+	/*
+	 * Prepared on each call, and closed by the caller: the pool hands out a new proxy of the connection
+	 * on every checkout, and closes its statements when it is returned, so they cannot be kept across
+	 * sessions here. Statement caching, if any, is up to the driver (see ConnectionPool).
+	 */
+	private PreparedStatement prepared(Connection connection, String sql, Object... args) throws SQLException {
+		var ps = connection.prepareStatement( sql );
+		try {
+			for (int i = 0; i < args.length; i++)
+				if (args[i] instanceof List<?> list)
+					ps.setArray( i + 1, connection.createArrayOf( "VARCHAR", list.toArray() ) );
+				else
+					ps.setObject( i + 1, args[i] );
+			return ps;
+		} catch (SQLException e) {
+			ps.close();
 			throw e;
 		}
 	}
-	
+
 	public <T> Result<T> execute(Consumer<Session> proc) {
 		return execute( (hibernate) -> {
 			proc.accept( hibernate);
@@ -99,7 +261,26 @@ public class Hibernate {
 		});
 	}
 	
+	/*
+	 * Within a unit of work, the changes are flushed, so conflicts are reported here, but they are
+	 * only committed when it ends.
+	 */
 	public <T> Result<T> execute(Function<Session, Result<T>> func) {
+		var unit = units.get();
+		if (unit != null)
+			try {
+				var session = current();
+				var res = func.apply( session );
+				session.flush();
+				return res;
+			} catch (ConstraintViolationException __) {
+				unit.rollbackOnly = true;
+				return Result.error(ErrorCode.CONFLICT);
+			} catch (RuntimeException e) {
+				unit.rollbackOnly = true;
+				throw e;
+			}
+
 		Transaction tx = null;
 		try (var session = sessionFactory.openSession()) {
 			tx = session.beginTransaction();
@@ -119,4 +300,13 @@ public class Hibernate {
 			throw e;
 		}
 	}
+
+	private static void rollback(Transaction tx) {
+		try {
+			if (tx.isActive())
+				tx.rollback();
+		} catch (RuntimeException __) {
+			// closing the session ends it anyway
+		}
+	}
 }
\ No newline at end of file
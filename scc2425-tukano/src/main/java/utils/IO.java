@@ -5,6 +5,8 @@ import java.io.BufferedReader;
 import java.io.Closeable;
 import java.io.File;
 import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
@@ -14,20 +16,82 @@ import java.util.function.Consumer;
 
 final public class IO {
 
+	public static final int BUFFER_SIZE = 64 * 1024;
 
 	public static void write( File out, byte[] data ) {
 		try {
-			System.out.println("WRITE>>>>" + out);
-			
 			Files.write( out.toPath(), data);
 		} catch( Exception x ) {
 			x.printStackTrace();
 		}
 	}
 
+	/**
+	 * Copies the stream into the file, in bounded chunks.
+	 * @return the number of bytes written
+	 */
+	public static long write( File out, InputStream in ) {
+		try (var os = new FileOutputStream(out)) {
+			return copy( in, os );
+		} catch( IOException x ) {
+			throw new RuntimeException( x );
+		}
+	}
+
+	public static long copy( InputStream in, OutputStream out ) throws IOException {
+		long total = 0;
+		int n;
+		var buf = new byte[BUFFER_SIZE];
+		while ((n = in.read(buf)) > 0) {
+			out.write(buf, 0, n);
+			total += n;
+		}
+		return total;
+	}
+
+	/**
+	 * Wraps the stream so that at most limit bytes can be read from it.
+	 */
+	public static InputStream limit( InputStream in, long limit ) {
+		return new FilterInputStream( in ) {
+			long remaining = limit;
+
+			@Override
+			public int read() throws IOException {
+				if( remaining <= 0 )
+					return -1;
+				int b = super.read();
+				if( b >= 0 )
+					remaining--;
+				return b;
+			}
+
+			@Override
+			public int read(byte[] b, int off, int len) throws IOException {
+				if( remaining <= 0 )
+					return -1;
+				int n = super.read(b, off, (int)Math.min(len, remaining));
+				if( n > 0 )
+					remaining -= n;
+				return n;
+			}
+			
+			@Override
+			public long skip(long n) throws IOException {
+				var skipped = super.skip( Math.min(n, remaining));
+				remaining -= skipped;
+				return skipped;
+			}
+
+			@Override
+			public int available() throws IOException {
+				return (int)Math.min(super.available(), remaining);
+			}
+		};
+	}
+
 	public static byte[] read( File from) {
 		try {
-			System.out.println("READ>>>>" + from);
 			return Files.readAllBytes( from.toPath() );
 		} catch( Exception x ) {
 			x.printStackTrace();
@@ -37,14 +101,22 @@ final public class IO {
 	
 	public static void read( File from, int chunkSize, Consumer<byte[]> sink) {
 		try (var fis = new FileInputStream(from)) {
-			int n;
-			var chunk = new byte[chunkSize];
-			while ((n = fis.read(chunk)) > 0)
-				sink.accept(Arrays.copyOf(chunk, n));
+			read(fis, chunkSize, sink);
 		} catch (IOException x) {
 			throw new RuntimeException(x);
 		}
 	}
+
+	/**
+	 * Passes the stream to the sink in chunks of chunkSize bytes, all read into the same array,
+	 * which the sink must copy if it keeps it past the call. Only a last, partial chunk is copied.
+	 */
+	public static void read( InputStream in, int chunkSize, Consumer<byte[]> sink) throws IOException {
+		int n;
+		var chunk = new byte[chunkSize];
+		while ((n = in.readNBytes(chunk, 0, chunkSize)) > 0)
+			sink.accept(n == chunkSize ? chunk : Arrays.copyOf(chunk, n));
+	}
 	
 	public static boolean delete( File file) {
 		try {
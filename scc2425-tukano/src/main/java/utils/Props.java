@@ -12,4 +12,16 @@ public class Props {
 				System.setProperty(parts[0], parts[1]);
 		}
 	}
+
+	public static String get(String key, String defaultValue) {
+		return System.getProperty(key, defaultValue);
+	}
+
+	public static int get(String key, int defaultValue) {
+		return Integer.valueOf( System.getProperty(key, String.valueOf(defaultValue)));
+	}
+
+	public static long get(String key, long defaultValue) {
+		return Long.valueOf( System.getProperty(key, String.valueOf(defaultValue)));
+	}
 }
@@ -3,7 +3,7 @@ package utils;
 import java.math.BigInteger;
 
 public class Random {
-	private static final java.util.Random rg = new java.util.Random();
+	private static final java.util.Random rg = new java.security.SecureRandom();
 	private static final int RADIX = 32;
 	
 	public static String key128() {
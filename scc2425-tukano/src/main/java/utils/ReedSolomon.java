@@ -0,0 +1,177 @@
+package utils;
+
+/**
+ * Systematic Reed-Solomon erasure code over GF(2^8), for k data shards plus m parity shards.
+ *
+ * Any k of the k+m shards suffice to rebuild the others. The code is byte-wise, so shards
+ * can be encoded and decoded over any byte range, as long as it is the same in all of them.
+ *
+ * The encoding matrix is a Vandermonde matrix normalized so that its top k rows are the identity.
+ */
+public class ReedSolomon {
+	private static final int FIELD_SIZE = 256;
+	private static final int POLYNOMIAL = 0x11D;
+
+	private static final byte[] EXP = new byte[FIELD_SIZE * 2];
+	private static final int[] LOG = new int[FIELD_SIZE];
+	private static final byte[][] MUL = new byte[FIELD_SIZE][FIELD_SIZE];
+
+	static {
+		int x = 1;
+		for (int i = 0; i < FIELD_SIZE - 1; i++) {
+			EXP[i] = (byte) x;
+			LOG[x] = i;
+			x <<= 1;
+			if (x >= FIELD_SIZE)
+				x ^= POLYNOMIAL;
+		}
+		for (int i = FIELD_SIZE - 1; i < EXP.length; i++)
+			EXP[i] = EXP[i - (FIELD_SIZE - 1)];
+
+		for (int a = 0; a < FIELD_SIZE; a++)
+			for (int b = 0; b < FIELD_SIZE; b++)
+				MUL[a][b] = (a == 0 || b == 0) ? 0 : EXP[LOG[a] + LOG[b]];
+	}
+
+	final int dataShards, parityShards;
+	final byte[][] matrix;
+
+	public ReedSolomon(int dataShards, int parityShards) {
+		if (dataShards <= 0 || parityShards < 0 || dataShards + parityShards > FIELD_SIZE)
+			throw new IllegalArgumentException("invalid shard counts");
+
+		this.dataShards = dataShards;
+		this.parityShards = parityShards;
+
+		var vandermonde = new byte[dataShards + parityShards][dataShards];
+		for (int r = 0; r < vandermonde.length; r++)
+			for (int c = 0; c < dataShards; c++)
+				vandermonde[r][c] = pow(r, c);
+
+		var top = new byte[dataShards][];
+		for (int r = 0; r < dataShards; r++)
+			top[r] = vandermonde[r].clone();
+
+		this.matrix = multiply(vandermonde, invert(top));
+	}
+
+	public int dataShards() {
+		return dataShards;
+	}
+
+	public int parityShards() {
+		return parityShards;
+	}
+
+	/**
+	 * Computes the parity shards from the data shards, over [offset, offset+len).
+	 * shards holds the k data shards, followed by the m parity shards to be filled.
+	 */
+	public void encodeParity(byte[][] shards, int offset, int len) {
+		for (int p = 0; p < parityShards; p++)
+			combine(matrix[dataShards + p], shards, shards[dataShards + p], offset, len);
+	}
+
+	/**
+	 * Rebuilds the missing data shards, over [offset, offset+len), from any k present shards.
+	 * Missing shards must be allocated; present[i] tells which shards hold valid contents.
+	 */
+	public void decodeMissing(byte[][] shards, boolean[] present, int offset, int len) {
+		var rows = new byte[dataShards][];
+		var inputs = new byte[dataShards][];
+		for (int i = 0, n = 0; n < dataShards; i++) {
+			if (i == shards.length)
+				throw new IllegalArgumentException("not enough shards to decode");
+			if (present[i]) {
+				rows[n] = matrix[i];
+				inputs[n++] = shards[i];
+			}
+		}
+
+		var decode = invert(rows);
+		for (int d = 0; d < dataShards; d++)
+			if (!present[d])
+				combine(decode[d], inputs, shards[d], offset, len);
+	}
+
+	/*
+	 * out = sum_j coefficients[j] * inputs[j], byte-wise in GF(2^8)
+	 */
+	private void combine(byte[] coefficients, byte[][] inputs, byte[] out, int offset, int len) {
+		var first = MUL[coefficients[0] & 0xFF];
+		var in = inputs[0];
+		for (int b = offset; b < offset + len; b++)
+			out[b] = first[in[b] & 0xFF];
+
+		for (int j = 1; j < dataShards; j++) {
+			var table = MUL[coefficients[j] & 0xFF];
+			in = inputs[j];
+			for (int b = offset; b < offset + len; b++)
+				out[b] ^= table[in[b] & 0xFF];
+		}
+	}
+
+	private static byte pow(int a, int n) {
+		if (n == 0)
+			return 1;
+		if (a == 0)
+			return 0;
+		return EXP[(LOG[a] * n) % (FIELD_SIZE - 1)];
+	}
+
+	private static byte div(byte a, byte b) {
+		if (a == 0)
+			return 0;
+		return EXP[LOG[a & 0xFF] - LOG[b & 0xFF] + FIELD_SIZE - 1];
+	}
+
+	private static byte[][] multiply(byte[][] a, byte[][] b) {
+		var res = new byte[a.length][b[0].length];
+		for (int r = 0; r < a.length; r++)
+			for (int c = 0; c < b[0].length; c++) {
+				byte v = 0;
+				for (int i = 0; i < b.length; i++)
+					v ^= MUL[a[r][i] & 0xFF][b[i][c] & 0xFF];
+				res[r][c] = v;
+			}
+		return res;
+	}
+
+	/*
+	 * Gauss-Jordan elimination in GF(2^8)
+	 */
+	private static byte[][] invert(byte[][] m) {
+		int n = m.length;
+		var work = new byte[n][2 * n];
+		for (int r = 0; r < n; r++) {
+			System.arraycopy(m[r], 0, work[r], 0, n);
+			work[r][n + r] = 1;
+		}
+		for (int c = 0; c < n; c++) {
+			int pivot = c;
+			while (pivot < n && work[pivot][c] == 0)
+				pivot++;
+			if (pivot == n)
+				throw new IllegalArgumentException("singular matrix");
+
+			var tmp = work[c];
+			work[c] = work[pivot];
+			work[pivot] = tmp;
+
+			var scale = work[c][c];
+			for (int i = 0; i < 2 * n; i++)
+				work[c][i] = div(work[c][i], scale);
+
+			for (int r = 0; r < n; r++)
+				if (r != c && work[r][c] != 0) {
+					var f = MUL[work[r][c] & 0xFF];
+					for (int i = 0; i < 2 * n; i++)
+						work[r][i] ^= f[work[c][i] & 0xFF];
+				}
+		}
+		var res = new byte[n][n];
+		for (int r = 0; r < n; r++)
+			System.arraycopy(work[r], n, res[r], 0, n);
+		return res;
+	}
+}
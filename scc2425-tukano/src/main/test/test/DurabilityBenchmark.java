@@ -0,0 +1,86 @@
+package test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+
+import tukano.impl.storage.Durability;
+import tukano.impl.storage.FilesystemStorage;
+
+/**
+ * Throughput and latency of uploads to the filesystem storage under each durability mode
+ * (none, per-write fsync, group commit), with a single writer and with concurrent writers.
+ * Should be pointed at a real disk: on tmpfs, fsync costs nothing.
+ *
+ * Usage: DurabilityBenchmark [dir] [blobSizeKB] [writesPerThread] [groupCommitMs]
+ */
+public class DurabilityBenchmark {
+	static final List<Integer> THREADS = List.of(1, 4, 16, 64);
+
+	public static void main(String[] args) throws Exception {
+		var dir = args.length > 0 ? args[0] : "/var/tmp/durability-bench/";
+		var blobSize = (args.length > 1 ? Integer.parseInt(args[1]) : 64) * 1024;
+		var writes = args.length > 2 ? Integer.parseInt(args[2]) : 100;
+		var groupCommitMs = args.length > 3 ? args[3] : "5";
+
+		var data = new byte[blobSize];
+		new Random(1L).nextBytes(data);
+
+		System.setProperty("blobs.fs.reportInterval", "0");
+		System.setProperty("blobs.fs.groupCommitMs", groupCommitMs);
+		System.setProperty("blobs.fs.volumeThreads", "" + THREADS.get(THREADS.size() - 1));
+
+		System.out.printf("%-8s %8s %12s %10s %10s %10s %10s\n", "mode", "threads", "writes/s", "MB/s", "avg ms", "p99 ms", "batch");
+		for (var mode : Durability.Mode.values()) {
+			System.setProperty("blobs.fs.durability", mode.name().toLowerCase());
+			for (var threads : THREADS) {
+				var storage = new FilesystemStorage(dir);
+				run(storage, mode, threads, writes, data);
+				storage.delete("bench");
+			}
+		}
+		System.exit(0);
+	}
+
+	static void run(FilesystemStorage storage, Durability.Mode mode, int threads, int writes, byte[] data) throws Exception {
+		var latencies = Collections.synchronizedList(new ArrayList<Double>());
+		var pool = Executors.newFixedThreadPool(threads);
+		var go = new CountDownLatch(1);
+		var done = new CountDownLatch(threads);
+		for (int i = 0; i < threads; i++) {
+			var id = i;
+			pool.execute(() -> {
+				try {
+					go.await();
+					for (int j = 0; j < writes; j++) {
+						var t0 = System.nanoTime();
+						var res = storage.write("bench/" + mode + "-" + threads + "-" + id + "-" + j, data);
+						if (!res.isOK())
+							throw new IllegalStateException("write failed: " + res);
+						latencies.add((System.nanoTime() - t0) / 1e6);
+					}
+				} catch (InterruptedException x) {
+					Thread.currentThread().interrupt();
+				} finally {
+					done.countDown();
+				}
+			});
+		}
+		var t0 = System.nanoTime();
+		go.countDown();
+		done.await();
+		var secs = (System.nanoTime() - t0) / 1e9;
+		pool.shutdown();
+
+		var sorted = latencies.stream().mapToDouble(Double::doubleValue).sorted().toArray();
+		var stats = storage.durabilityStats();
+		System.out.printf("%-8s %8d %12.0f %10.1f %10.2f %10.2f %10s\n", mode.name().toLowerCase(), threads,
+				sorted.length / secs, sorted.length * (double) data.length / 1024 / 1024 / secs,
+				Arrays.stream(sorted).average().orElse(0), sorted[(int) (sorted.length * 0.99)],
+				stats.batches() > 0 ? String.format("%.1f", stats.avgBatch()) : "-");
+	}
+}
@@ -0,0 +1,157 @@
+package test;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import tukano.impl.storage.BlobStorage;
+import tukano.impl.storage.ErasureCodedStorage;
+import tukano.impl.storage.FilesystemStorage;
+import utils.ReedSolomon;
+
+/**
+ * Compares the erasure-coded storage with the plain filesystem storage:
+ * raw encode/decode throughput of the codec, and latency of full and ranged reads,
+ * with all fragments present and with m of them missing.
+ *
+ * Usage: ErasureCodingBenchmark [dir] [blobSizeMB] [blobs]
+ */
+public class ErasureCodingBenchmark {
+	static final int K = 4, M = 2, CELL_SIZE = 64 * 1024;
+	static final int RANGE = 256 * 1024;
+	static final int ROUNDS = 20;
+
+	public static void main(String[] args) throws Exception {
+		var dir = args.length > 0 ? args[0] : "/tmp/ec-bench/";
+		var blobSize = (args.length > 1 ? Integer.parseInt(args[1]) : 16) * 1024 * 1024;
+		var blobs = args.length > 2 ? Integer.parseInt(args[2]) : 8;
+
+		codec(blobSize);
+
+		var data = new byte[blobSize];
+		new Random(1L).nextBytes(data);
+
+		var fs = new FilesystemStorage(dir + "fs/");
+		var ecVolumes = new ArrayList<BlobStorage>();
+		for (int i = 0; i < K + M; i++)
+			ecVolumes.add(new FilesystemStorage(dir + "ec" + i + "/"));
+		var ec = new ErasureCodedStorage(ecVolumes, K, M, CELL_SIZE);
+
+		var paths = new ArrayList<String>();
+		for (int i = 0; i < blobs; i++)
+			paths.add("bench/blob" + System.nanoTime());
+
+		System.out.printf("%-12s %10s %10s %10s %10s %10s\n", "storage", "write MB/s", "full ms", "range ms", "range p99", "disk MB");
+		run("fs", fs, paths, data, dir + "fs/");
+		run("ec " + K + "+" + M, ec, paths, data, dir + "ec");
+
+		// degraded reads: drop the first m data fragments of every blob
+		for (var path : paths)
+			for (int i = 0; i < M; i++)
+				ecVolumes.get(Math.floorMod(path.hashCode() + i, ecVolumes.size())).delete(path + "." + i);
+		reads("ec degraded", ec, paths, data, -1, -1);
+
+		fs.delete("bench");
+		ec.delete("bench");
+		System.exit(0);
+	}
+
+	static void codec(int size) {
+		var rs = new ReedSolomon(K, M);
+		var shardSize = size / K;
+		var shards = new byte[K + M][shardSize];
+		var r = new Random(2L);
+		for (int i = 0; i < K; i++)
+			r.nextBytes(shards[i]);
+
+		var t0 = System.nanoTime();
+		for (int i = 0; i < ROUNDS; i++)
+			rs.encodeParity(shards, 0, shardSize);
+		var encode = mbps((long) size * ROUNDS, System.nanoTime() - t0);
+
+		var original = shards[0].clone();
+		var present = new boolean[K + M];
+		Arrays.fill(present, true);
+		for (int i = 0; i < M; i++)
+			present[i] = false;
+
+		t0 = System.nanoTime();
+		for (int i = 0; i < ROUNDS; i++)
+			rs.decodeMissing(shards, present, 0, shardSize);
+		var decode = mbps((long) size * ROUNDS, System.nanoTime() - t0);
+
+		System.out.printf("codec %d+%d: encode %.1f MB/s, decode (%d missing) %.1f MB/s, correct: %s\n\n", K, M, encode, M, decode, Arrays.equals(original, shards[0]));
+	}
+
+	static void run(String name, BlobStorage storage, List<String> paths, byte[] data, String dir) throws Exception {
+		var t0 = System.nanoTime();
+		for (var path : paths)
+			storage.write(path, data);
+		var write = mbps((long) data.length * paths.size(), System.nanoTime() - t0);
+
+		reads(name, storage, paths, data, write, du(dir) / 1024.0 / 1024.0);
+	}
+
+	static void reads(String name, BlobStorage storage, List<String> paths, byte[] data, double write, double disk) throws Exception {
+		var full = new ArrayList<Double>();
+		for (var path : paths) {
+			var t0 = System.nanoTime();
+			var bytes = storage.read(path).value();
+			full.add(ms(System.nanoTime() - t0));
+			if (!Arrays.equals(data, bytes))
+				throw new IllegalStateException(name + ": wrong contents of " + path);
+		}
+
+		var r = new Random(3L);
+		var ranged = new ArrayList<Double>();
+		for (int i = 0; i < ROUNDS * paths.size(); i++) {
+			var path = paths.get(i % paths.size());
+			var offset = r.nextInt(data.length - RANGE);
+			var t0 = System.nanoTime();
+			byte[] bytes;
+			try (var in = storage.readStream(path, offset, RANGE).value()) {
+				bytes = in.readAllBytes();
+			}
+			ranged.add(ms(System.nanoTime() - t0));
+			if (!Arrays.equals(data, offset, offset + RANGE, bytes, 0, bytes.length))
+				throw new IllegalStateException(name + ": wrong range of " + path);
+		}
+		System.out.printf("%-12s %10s %10.2f %10.2f %10.2f %10s\n", name, write < 0 ? "-" : String.format("%.1f", write),
+				avg(full), avg(ranged), p99(ranged), disk < 0 ? "-" : String.format("%.1f", disk));
+	}
+
+	static long du(String prefix) {
+		var parent = new File(prefix).getParentFile();
+		var name = new File(prefix).getName();
+		long total = 0;
+		for (var f : parent.listFiles((d, n) -> n.startsWith(name)))
+			total += du(f);
+		return total;
+	}
+
+	static long du(File f) {
+		if (f.isFile())
+			return f.length();
+		var files = f.listFiles();
+		return files == null ? 0 : Arrays.stream(files).mapToLong(ErasureCodingBenchmark::du).sum();
+	}
+
+	static double avg(List<Double> samples) {
+		return samples.stream().mapToDouble(Double::doubleValue).average().orElse(0);
+	}
+
+	static double p99(List<Double> samples) {
+		var sorted = samples.stream().mapToDouble(Double::doubleValue).sorted().toArray();
+		return sorted[(int) (sorted.length * 0.99)];
+	}
+
+	static double mbps(long bytes, long nanos) {
+		return bytes / 1024.0 / 1024.0 / (nanos / 1e9);
+	}
+
+	static double ms(long nanos) {
+		return nanos / 1e6;
+	}
+}
@@ -0,0 +1,86 @@
+package test;
+
+import java.util.Arrays;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import tukano.api.User;
+import tukano.impl.JavaShorts;
+import tukano.impl.JavaUsers;
+import tukano.impl.Token;
+import utils.DB;
+
+/**
+ * Latency of getShort, which reads the like count kept in the short, as the Likes table grows,
+ * next to the count(*) over the likes of the short that it used to run on every fetch.
+ * A tenth of the likes are on the short being read, the rest on others.
+ *
+ * Usage: GetShortBenchmark [reads] [maxLikes]
+ */
+public class GetShortBenchmark {
+	static final int SHORTS = 10;
+
+	// the operations log each call, which would be most of what is measured
+	static final Logger Log = Logger.getLogger("tukano");
+
+	static final DB.Query<Long> LIKES_COUNT = DB.query("bench.likesCount", "SELECT count(*) FROM Likes l WHERE l.shortId = ?", Long.class);
+	static final DB.Query<Void> INSERT_LIKE = DB.update("bench.insertLike", "INSERT INTO Likes (userId, shortId, ownerId) VALUES (?, ?, ?)");
+	static final DB.Query<Void> SET_LIKES = DB.update("bench.setLikes", "UPDATE Short s SET totalLikes = (SELECT count(*) FROM Likes l WHERE l.shortId = s.shortId)");
+
+	public static void main(String[] args) throws Exception {
+		var reads = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+		var maxLikes = args.length > 1 ? Integer.parseInt(args[1]) : 100_000;
+
+		Log.setLevel(Level.WARNING);
+		Token.setSecret("bench");
+		var users = JavaUsers.getInstance();
+		var shorts = JavaShorts.getInstance();
+		users.createUser(new User("bench", "pwd", "bench@tukano", "Bench"));
+
+		var ids = new String[SHORTS];
+		for (int i = 0; i < ids.length; i++)
+			ids[i] = shorts.createShort("bench", "pwd").value().getShortId();
+		var target = ids[0];
+
+		System.out.printf("%10s %12s %12s %12s %14s %14s\n", "likes", "of short", "getShort us", "p99 us", "count(*) us", "p99 us");
+		int likes = 0;
+		for (int size = 1000; size <= maxLikes; size *= 10) {
+			var from = likes;
+			var to = size;
+			DB.transaction(hibernate -> {
+				for (int i = from; i < to; i++)
+					DB.update(hibernate, INSERT_LIKE, "user" + i, i % 10 == 0 ? target : ids[1 + i % (ids.length - 1)], "bench");
+			});
+			DB.update(SET_LIKES);
+			likes = size;
+
+			var getShort = time(reads, () -> shorts.getShort(target).value().getTotalLikes());
+			var count = time(reads, () -> DB.sql(LIKES_COUNT, target).get(0));
+			System.out.printf("%10d %12d %12.1f %12.1f %14.1f %14.1f\n", likes, shorts.getShort(target).value().getTotalLikes(),
+					avg(getShort), p99(getShort), avg(count), p99(count));
+		}
+		System.exit(0);
+	}
+
+	static double[] time(int reads, Runnable read) {
+		for (int i = 0; i < reads / 10; i++)
+			read.run();
+
+		var latencies = new double[reads];
+		for (int i = 0; i < reads; i++) {
+			var t0 = System.nanoTime();
+			read.run();
+			latencies[i] = (System.nanoTime() - t0) / 1e3;
+		}
+		Arrays.sort(latencies);
+		return latencies;
+	}
+
+	static double avg(double[] sorted) {
+		return Arrays.stream(sorted).average().orElse(0);
+	}
+
+	static double p99(double[] sorted) {
+		return sorted[(int) (sorted.length * 0.99)];
+	}
+}
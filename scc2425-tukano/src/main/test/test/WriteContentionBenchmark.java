@@ -0,0 +1,180 @@
+package test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.IntFunction;
+
+import tukano.api.Result;
+import tukano.impl.storage.FilesystemStorage;
+
+/**
+ * Concurrent uploads and downloads against the filesystem storage:
+ *
+ * - same blob, same bytes: every upload must succeed, and readers must only ever see
+ *   no blob or the whole blob;
+ * - same blob, different bytes: exactly one upload wins, the others get CONFLICT,
+ *   and the stored blob is the winner's;
+ * - distinct blobs: write throughput and latency with a single lock vs striped locks.
+ *
+ * Usage: WriteContentionBenchmark [dir] [threads] [blobSizeKB] [rounds]
+ */
+public class WriteContentionBenchmark {
+	static final String LOCK_STRIPES_PROP = "blobs.fs.lockStripes";
+	static final int BLOBS_PER_THREAD = 200;
+
+	public static void main(String[] args) throws Exception {
+		var dir = args.length > 0 ? args[0] : "/tmp/contention-bench/";
+		var threads = args.length > 1 ? Integer.parseInt(args[1]) : 16;
+		var blobSize = (args.length > 2 ? Integer.parseInt(args[2]) : 256) * 1024;
+		var rounds = args.length > 3 ? Integer.parseInt(args[3]) : 50;
+
+		System.setProperty("blobs.fs.reportInterval", "0");
+		var storage = new FilesystemStorage(dir);
+
+		sameBytes(storage, threads, blobSize, rounds);
+		differentBytes(storage, threads, blobSize, rounds);
+
+		System.out.printf("\n%-10s %8s %12s %10s %10s\n", "stripes", "threads", "writes/s", "avg ms", "p99 ms");
+		for (var stripes : List.of(1, 1024)) {
+			System.setProperty(LOCK_STRIPES_PROP, "" + stripes);
+			distinct(new FilesystemStorage(dir), stripes, threads, blobSize / 16);
+		}
+		storage.delete("bench");
+		System.exit(0);
+	}
+
+	static void sameBytes(FilesystemStorage storage, int threads, int blobSize, int rounds) throws Exception {
+		var data = bytes(blobSize, 1);
+		var outcomes = new ConcurrentHashMap<Result.ErrorCode, AtomicLong>();
+		AtomicLong reads = new AtomicLong(), torn = new AtomicLong();
+
+		var t0 = System.nanoTime();
+		for (int r = 0; r < rounds; r++) {
+			var path = "bench/same" + r;
+			var done = new AtomicBoolean();
+			var readers = new ArrayList<Thread>();
+			for (int i = 0; i < threads / 2; i++)
+				readers.add(start(() -> {
+					while (!done.get()) {
+						var res = storage.read(path);
+						if (res.isOK()) {
+							reads.incrementAndGet();
+							if (!Arrays.equals(data, res.value()))
+								torn.incrementAndGet();
+						}
+					}
+				}));
+			race(threads, i -> storage.write(path, data), outcomes);
+			done.set(true);
+			for (var t : readers)
+				t.join();
+		}
+		System.out.printf("same bytes:      %d rounds x %d uploads in %.0f ms, outcomes: %s, reads: %d, torn reads: %d\n",
+				rounds, threads, ms(System.nanoTime() - t0), outcomes, reads.get(), torn.get());
+	}
+
+	static void differentBytes(FilesystemStorage storage, int threads, int blobSize, int rounds) throws Exception {
+		var contents = new ArrayList<byte[]>();
+		for (int i = 0; i < threads; i++)
+			contents.add(bytes(blobSize, 100 + i));
+
+		var outcomes = new ConcurrentHashMap<Result.ErrorCode, AtomicLong>();
+		var badRounds = 0;
+		for (int r = 0; r < rounds; r++) {
+			var path = "bench/different" + r;
+			var winners = Collections.synchronizedList(new ArrayList<Integer>());
+			race(threads, i -> {
+				var res = storage.write(path, contents.get(i));
+				if (res.isOK())
+					winners.add(i);
+				return res;
+			}, outcomes);
+			var stored = storage.read(path).value();
+			if (winners.size() != 1 || !Arrays.equals(stored, contents.get(winners.get(0))))
+				badRounds++;
+		}
+		System.out.printf("different bytes: %d rounds x %d uploads, outcomes: %s, rounds without a single, stored winner: %d\n",
+				rounds, threads, outcomes, badRounds);
+	}
+
+	static void distinct(FilesystemStorage storage, int stripes, int threads, int blobSize) throws Exception {
+		var data = bytes(blobSize, 2);
+		var latencies = Collections.synchronizedList(new ArrayList<Double>());
+		var pool = Executors.newFixedThreadPool(threads);
+		var go = new CountDownLatch(1);
+		var done = new CountDownLatch(threads);
+		for (int i = 0; i < threads; i++) {
+			var id = i;
+			pool.execute(() -> {
+				try {
+					go.await();
+					for (int j = 0; j < BLOBS_PER_THREAD; j++) {
+						var t0 = System.nanoTime();
+						storage.write("bench/s" + stripes + "-" + id + "-" + j, data);
+						latencies.add(ms(System.nanoTime() - t0));
+					}
+				} catch (InterruptedException x) {
+					Thread.currentThread().interrupt();
+				} finally {
+					done.countDown();
+				}
+			});
+		}
+		var t0 = System.nanoTime();
+		go.countDown();
+		done.await();
+		var secs = (System.nanoTime() - t0) / 1e9;
+		pool.shutdown();
+
+		var sorted = latencies.stream().mapToDouble(Double::doubleValue).sorted().toArray();
+		System.out.printf("%-10d %8d %12.0f %10.2f %10.2f\n", stripes, threads, sorted.length / secs,
+				Arrays.stream(sorted).average().orElse(0), sorted[(int) (sorted.length * 0.99)]);
+	}
+
+	/*
+	 * Starts all the uploads at once, and tallies their outcomes.
+	 */
+	static void race(int threads, IntFunction<Result<Void>> upload, ConcurrentHashMap<Result.ErrorCode, AtomicLong> outcomes) throws Exception {
+		var go = new CountDownLatch(1);
+		var workers = new ArrayList<Thread>();
+		for (int i = 0; i < threads; i++) {
+			var id = i;
+			workers.add(start(() -> {
+				try {
+					go.await();
+					var res = upload.apply(id);
+					outcomes.computeIfAbsent(res.error(), __ -> new AtomicLong()).incrementAndGet();
+				} catch (InterruptedException x) {
+					Thread.currentThread().interrupt();
+				}
+			}));
+		}
+		go.countDown();
+		for (var t : workers)
+			t.join();
+	}
+
+	static Thread start(Runnable r) {
+		var t = new Thread(r);
+		t.start();
+		return t;
+	}
+
+	static byte[] bytes(int size, long seed) {
+		var data = new byte[size];
+		new Random(seed).nextBytes(data);
+		return data;
+	}
+
+	static double ms(long nanos) {
+		return nanos / 1e6;
+	}
+}
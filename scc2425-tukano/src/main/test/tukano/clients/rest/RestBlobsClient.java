@@ -1,7 +1,19 @@
 package tukano.clients.rest;
 
+import static tukano.api.Result.error;
+import static tukano.api.Result.ok;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.util.List;
+
 import jakarta.ws.rs.client.Entity;
+import jakarta.ws.rs.core.GenericType;
+import jakarta.ws.rs.core.HttpHeaders;
 import jakarta.ws.rs.core.MediaType;
+import jakarta.ws.rs.core.Response.Status;
+import tukano.api.BlobInfo;
+import tukano.api.BlobUsage;
 import tukano.api.Blobs;
 import tukano.api.Result;
 import tukano.api.rest.RestBlobs;
@@ -20,6 +32,14 @@ public class RestBlobsClient extends RestClient implements Blobs {
 				.post( Entity.entity(bytes, MediaType.APPLICATION_OCTET_STREAM_TYPE)));
 	}
 
+	private Result<Void> _upload(String blobURL, InputStream in, String token) {
+		return super.toJavaResult(
+				client.target( blobURL )
+				.queryParam(RestBlobs.TOKEN, token)
+				.request()
+				.post( Entity.entity(in, MediaType.APPLICATION_OCTET_STREAM_TYPE)));
+	}
+
 	private Result<byte[]> _download(String blobURL, String token) {
 		return super.toJavaResult(
 				client.target( blobURL )
@@ -29,6 +49,101 @@ public class RestBlobsClient extends RestClient implements Blobs {
 				.get(), byte[].class);
 	}
 
+	/*
+	 * A length that reaches past the largest offset (eg. Long.MAX_VALUE, for the rest of the blob)
+	 * is sent as an open-ended range.
+	 */
+	private Result<InputStream> _download(String blobURL, long offset, long length, String token) {
+		var range = length > Long.MAX_VALUE - offset ? String.format("bytes=%d-", offset) : String.format("bytes=%d-%d", offset, offset + length - 1);
+		var r = client.target( blobURL )
+				.queryParam(RestBlobs.TOKEN, token)
+				.request()
+				.header(RestBlobs.RANGE, range)
+				.accept(MediaType.APPLICATION_OCTET_STREAM_TYPE)
+				.get();
+		try {
+			var status = r.getStatusInfo().toEnum();
+			if( status == Status.OK || status == Status.PARTIAL_CONTENT )
+				return ok( new ByteArrayInputStream( r.readEntity(byte[].class)));
+			else
+				return error( getErrorCodeFrom(status.getStatusCode()));
+		} finally {
+			r.close();
+		}
+	}
+
+	private Result<Long> _size(String blobURL, String token) {
+		var r = client.target( blobURL )
+				.queryParam(RestBlobs.TOKEN, token)
+				.request()
+				.head();
+		try {
+			var status = r.getStatusInfo().toEnum();
+			if( status == Status.OK )
+				return ok( Long.valueOf( r.getHeaderString(HttpHeaders.CONTENT_LENGTH)));
+			else
+				return error( getErrorCodeFrom(status.getStatusCode()));
+		} finally {
+			r.close();
+		}
+	}
+
+	private Result<BlobInfo> _stat(String blobURL, String token) {
+		var r = client.target( blobURL )
+				.queryParam(RestBlobs.TOKEN, token)
+				.request()
+				.head();
+		try {
+			var status = r.getStatusInfo().toEnum();
+			if( status == Status.OK )
+				return ok( new BlobInfo( Long.valueOf( r.getHeaderString(HttpHeaders.CONTENT_LENGTH)), r.getEntityTag().getValue(), r.getLastModified().getTime()));
+			else
+				return error( getErrorCodeFrom(status.getStatusCode()));
+		} finally {
+			r.close();
+		}
+	}
+
+	private Result<String> _openUpload(String blobURL, String token) {
+		return super.toJavaResult(
+				client.target( blobURL )
+				.path( RestBlobs.UPLOADS )
+				.queryParam(RestBlobs.TOKEN, token)
+				.request()
+				.accept(MediaType.APPLICATION_JSON)
+				.post( Entity.json("")), String.class);
+	}
+
+	private Result<Void> _uploadChunk(String blobURL, String sessionId, int chunk, InputStream in) {
+		return super.toJavaResult(
+				client.target( blobURL )
+				.path( RestBlobs.UPLOADS )
+				.path( sessionId )
+				.path( Integer.toString( chunk ))
+				.request()
+				.put( Entity.entity(in, MediaType.APPLICATION_OCTET_STREAM_TYPE)));
+	}
+
+	private Result<List<Integer>> _uploadedChunks(String blobURL, String sessionId) {
+		return super.toJavaResult(
+				client.target( blobURL )
+				.path( RestBlobs.UPLOADS )
+				.path( sessionId )
+				.request()
+				.accept(MediaType.APPLICATION_JSON)
+				.get(), new GenericType<List<Integer>>() {});
+	}
+
+	private Result<Void> _commitUpload(String blobURL, String sessionId, int chunks) {
+		return super.toJavaResult(
+				client.target( blobURL )
+				.path( RestBlobs.UPLOADS )
+				.path( sessionId )
+				.queryParam(RestBlobs.CHUNKS, chunks)
+				.request()
+				.post( Entity.json("")));
+	}
+
 	private Result<Void> _delete(String blobURL, String token) {
 		return super.toJavaResult(
 				client.target( blobURL )
@@ -37,6 +152,16 @@ public class RestBlobsClient extends RestClient implements Blobs {
 				.delete());
 	}
 	
+	private Result<BlobUsage> _usage(String userId, String token) {
+		return super.toJavaResult(
+				target.path(userId)
+				.path(RestBlobs.USAGE)
+				.queryParam( RestBlobs.TOKEN, token )
+				.request()
+				.accept(MediaType.APPLICATION_JSON)
+				.get(), BlobUsage.class);
+	}
+
 	private Result<Void> _deleteAllBlobs(String userId, String token) {
 		return super.toJavaResult(
 				target.path(userId)
@@ -51,16 +176,66 @@ public class RestBlobsClient extends RestClient implements Blobs {
 		return super.reTry( () -> _upload(blobId, bytes, token));
 	}
 
+	@Override
+	public Result<Void> upload(String blobId, InputStream in, String token) {
+		return _upload(blobId, in, token);
+	}
+
 	@Override
 	public Result<byte[]> download(String blobId, String token) {
 		return super.reTry( () -> _download(blobId, token));
 	}
 
+	@Override
+	public Result<InputStream> downloadStream(String blobId, String token) {
+		return Result.errorOrValue( download(blobId, token), ByteArrayInputStream::new);
+	}
+
+	@Override
+	public Result<InputStream> downloadStream(String blobId, long offset, long length, String token) {
+		return super.reTry( () -> _download(blobId, offset, length, token));
+	}
+
+	@Override
+	public Result<Long> size(String blobId, String token) {
+		return super.reTry( () -> _size(blobId, token));
+	}
+
+	@Override
+	public Result<BlobInfo> stat(String blobId, String token) {
+		return super.reTry( () -> _stat(blobId, token));
+	}
+
+	@Override
+	public Result<String> openUpload(String blobId, String token) {
+		return super.reTry( () -> _openUpload(blobId, token));
+	}
+
+	@Override
+	public Result<Void> uploadChunk(String blobId, String sessionId, int chunk, InputStream in) {
+		return _uploadChunk(blobId, sessionId, chunk, in);
+	}
+
+	@Override
+	public Result<List<Integer>> uploadedChunks(String blobId, String sessionId) {
+		return super.reTry( () -> _uploadedChunks(blobId, sessionId));
+	}
+
+	@Override
+	public Result<Void> commitUpload(String blobId, String sessionId, int chunks) {
+		return super.reTry( () -> _commitUpload(blobId, sessionId, chunks));
+	}
+
 	@Override
 	public Result<Void> delete(String blobId, String token) {
 		return super.reTry( () -> _delete(blobId, token));
 	}
 	
+	@Override
+	public Result<BlobUsage> usage(String userId, String token) {
+		return super.reTry( () -> _usage(userId, token));
+	}
+
 	@Override
 	public Result<Void> deleteAllBlobs(String userId, String password) {
 		return super.reTry( () -> _deleteAllBlobs(userId, password));